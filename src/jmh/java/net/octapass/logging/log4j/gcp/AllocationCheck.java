@@ -0,0 +1,93 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.sun.management.ThreadMXBean;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation regression check of {@link GoogleCloudLoggingAppender#logEntryFor}, run by the {@code test} phase of
+ * the {@code benchmarks} profile. Measures the bytes a warmed up conversion allocates with the thread allocation
+ * counter of the JVM, and exits with status 1 if a case exceeds its budget.
+ * <p>
+ * The budgets leave about a quarter of headroom over the measured allocation, enough for JIT noise but not for an
+ * extra copy of the payload or of the labels.
+ */
+public final class AllocationCheck {
+
+    private static final int WARMUP_ITERATIONS = 50_000;
+    private static final int ITERATIONS = 20_000;
+
+    private AllocationCheck() {
+    }
+
+    public static void main(String[] args) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counters not supported, skipping the allocation check");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Case[] cases = {
+                new Case(0, 0, PayloadType.TEXT, 1_000),
+                new Case(8, 0, PayloadType.TEXT, 1_650),
+                new Case(0, 0, PayloadType.JSON, 1_500),
+                new Case(8, 0, PayloadType.JSON, 2_050),
+                new Case(8, 1, PayloadType.JSON, 6_500),
+                new Case(8, 0, PayloadType.JSON, true, 9_000),
+        };
+        int failures = 0;
+        for (Case c : cases) {
+            long bytesPerOp = c.measure(threads);
+            boolean failed = bytesPerOp > c.maxBytesPerOp;
+            System.out.printf("%-47s %,7d B/op, budget %,7d B/op%s%n", c, bytesPerOp, c.maxBytesPerOp,
+                    failed ? "  FAILED" : "");
+            if (failed) {
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of " + cases.length + " cases exceed their allocation budget");
+            System.exit(1);
+        }
+    }
+
+    private record Case(int contextSize, int exceptionDepth, PayloadType payloadType, boolean jsonLayout,
+                        long maxBytesPerOp) {
+
+        Case(int contextSize, int exceptionDepth, PayloadType payloadType, long maxBytesPerOp) {
+            this(contextSize, exceptionDepth, payloadType, false, maxBytesPerOp);
+        }
+
+        long measure(ThreadMXBean threads) {
+            GoogleCloudLoggingAppender appender = BenchmarkEvents.appender(
+                    BenchmarkEvents.manager(BenchmarkEvents.noopLogging(), false, null), payloadType,
+                    jsonLayout ? BenchmarkEvents.jsonLayout() : null);
+            LogEvent event = BenchmarkEvents.event(contextSize, exceptionDepth);
+            long sink = 0;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                sink += consume(appender.logEntryFor(event));
+            }
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink += consume(appender.logEntryFor(event));
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            if (sink == 42) {
+                System.out.print(""); // keeps the entries observable
+            }
+            return allocated / ITERATIONS;
+        }
+
+        private static long consume(LogEntry entry) {
+            return entry.getLabels().size();
+        }
+
+        @Override
+        public String toString() {
+            return "logEntryFor contextSize=" + contextSize + " exceptionDepth=" + exceptionDepth + " " + payloadType
+                    + (jsonLayout ? " layout" : "");
+        }
+    }
+}
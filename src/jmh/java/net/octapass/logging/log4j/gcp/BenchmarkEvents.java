@@ -0,0 +1,171 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.Logging;
+import com.google.cloud.logging.spi.v2.LoggingRpc;
+import com.google.logging.v2.WriteLogEntriesRequest;
+import com.google.logging.v2.WriteLogEntriesResponse;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.util.JsonUtils;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+final class BenchmarkEvents {
+
+    private BenchmarkEvents() {
+    }
+
+    static LogEvent event(int contextSize, int exceptionDepth) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap(contextSize);
+        for (int i = 0; i < contextSize; i++) {
+            contextData.putValue("key" + i, "value" + i);
+        }
+        contextData.putValue("logging.googleapis.trace", "projects/benchmark/traces/0af7651916cd43dd8448eb211c80319c");
+        contextData.freeze();
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("net.octapass.benchmark.Service")
+                .setLevel(exceptionDepth > 0 ? Level.ERROR : Level.INFO)
+                .setMessage(new ParameterizedMessage("Handled request {} in {} ms", "GET /orders/42", 17))
+                .setContextData(contextData)
+                .setThrown(exceptionDepth > 0 ? exception(exceptionDepth) : null)
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * Returns an exception with the given number of causes below it, thrown a few frames deep.
+     */
+    static Throwable exception(int depth) {
+        Throwable cause = null;
+        for (int i = 0; i < depth; i++) {
+            cause = nest(8, i, cause);
+        }
+        return cause;
+    }
+
+    private static Throwable nest(int frames, int level, Throwable cause) {
+        if (frames > 0) {
+            return nest(frames - 1, level, cause);
+        }
+        return new IllegalStateException("failure at level " + level, cause);
+    }
+
+    /**
+     * Returns a {@link Logging} client that accepts and discards every call.
+     */
+    static Logging noopLogging() {
+        return (Logging) Proxy.newProxyInstance(Logging.class.getClassLoader(), new Class<?>[] {Logging.class},
+                (proxy, method, args) -> {
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    }
+                    if (type == int.class) {
+                        return 0;
+                    }
+                    if (type == long.class) {
+                        return 0L;
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Returns an RPC layer that serializes every write request, as the channel would, adds its size to the given
+     * counter and completes it right away.
+     */
+    static LoggingRpc serializingRpc(LongAdder bytes) {
+        return (LoggingRpc) Proxy.newProxyInstance(LoggingRpc.class.getClassLoader(), new Class<?>[] {LoggingRpc.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "write" -> {
+                        WriteLogEntriesRequest request = (WriteLogEntriesRequest) args[0];
+                        try {
+                            request.writeTo(OutputStream.nullOutputStream());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        bytes.add(request.getSerializedSize());
+                        yield ApiFutures.immediateFuture(WriteLogEntriesResponse.getDefaultInstance());
+                    }
+                    case "close" -> null;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "BenchmarkEvents.LoggingRpc";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static GoogleCloudLoggingManager manager(Logging logging, boolean redirectToStdout, BufferSettings settings) {
+        return new GoogleCloudLoggingManager(LoggerContext.getContext(false), "benchmark", "benchmark", logging,
+                StatusLogger.getLogger(), redirectToStdout, settings, null, null, null, null);
+    }
+
+    static GoogleCloudLoggingAppender appender(GoogleCloudLoggingManager manager) {
+        return new GoogleCloudLoggingAppender(manager, "benchmark", "benchmark", null, null, true, null,
+                MonitoredResource.of("global", Map.of("project_id", "benchmark")));
+    }
+
+    static GoogleCloudLoggingAppender appender(GoogleCloudLoggingManager manager, PayloadType payloadType) {
+        return appender(manager, payloadType, null);
+    }
+
+    static GoogleCloudLoggingAppender appender(GoogleCloudLoggingManager manager, PayloadType payloadType,
+                                               Layout<? extends Serializable> layout) {
+        EnhancerPipeline enhancers = EnhancerPipeline.compile(List.of(), List.of(),
+                List.of(new ContextDataEventEnhancer()), StatusLogger.getLogger());
+        return new GoogleCloudLoggingAppender(manager, "benchmark", "benchmark", null, layout, true, null,
+                MonitoredResource.of("global", Map.of("project_id", "benchmark")),
+                new StackTraceRenderer(0, 0, 200 * 1024, 256), 200 * 1024, enhancers, null, null, payloadType, null,
+                null);
+    }
+
+    /**
+     * Returns a layout rendering events as a JSON object of logger, level and message, standing in for
+     * {@code JsonTemplateLayout}.
+     */
+    static Layout<String> jsonLayout() {
+        return new JsonLayout();
+    }
+
+    private static final class JsonLayout extends AbstractStringLayout {
+
+        JsonLayout() {
+            super(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toSerializable(LogEvent event) {
+            StringBuilder json = getStringBuilder();
+            json.append("{\"logger\":\"");
+            JsonUtils.quoteAsString(event.getLoggerName(), json);
+            json.append("\",\"level\":\"").append(event.getLevel().name()).append("\",\"message\":\"");
+            JsonUtils.quoteAsString(event.getMessage().getFormattedMessage(), json);
+            return json.append("\",\"thread\":\"main\",\"sequence\":17}").toString();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json; charset=UTF-8";
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Payload;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The bundled {@link LoggingEventEnhancer} implementations.
+ */
+@State(Scope.Benchmark)
+public class EnhancerBenchmark {
+
+    @Param({"0", "8", "32"})
+    public int contextSize;
+
+    private final LoggingEventEnhancer contextData = new ContextDataEventEnhancer();
+    private final LoggingEventEnhancer filteredContextData = ContextDataEventEnhancer.createContextDataLabels(
+            "key1, key2*, logging.*", "key21", "key1=first", 16);
+    private final LoggingEventEnhancer trace = new TraceLoggingEventEnhancer();
+    private final LoggingEventEnhancer traceHeader = TraceLoggingEventEnhancer.createTraceContext("benchmark");
+    private LogEvent event;
+    private LogEvent traceparentEvent;
+    private LogEvent cloudTraceContextEvent;
+
+    @Setup
+    public void setUp() {
+        event = BenchmarkEvents.event(contextSize, 0);
+        traceparentEvent = withHeader(event, "traceparent",
+                "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        cloudTraceContextEvent = withHeader(event, "X-Cloud-Trace-Context",
+                "0af7651916cd43dd8448eb211c80319c/13235353014750950193;o=1");
+    }
+
+    /**
+     * Returns the event with the given header in place of the prebuilt trace.
+     */
+    private static LogEvent withHeader(LogEvent event, String key, String value) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap(event.getContextData());
+        contextData.remove("logging.googleapis.trace");
+        contextData.putValue(key, value);
+        contextData.freeze();
+        return new Log4jLogEvent.Builder(event).setContextData(contextData).build();
+    }
+
+    @Benchmark
+    public LogEntry contextData() {
+        LogEntry.Builder builder = LogEntry.newBuilder(Payload.StringPayload.of("message"));
+        contextData.enhanceLogEntry(builder, event);
+        return builder.build();
+    }
+
+    @Benchmark
+    public LogEntry filteredContextData() {
+        LogEntry.Builder builder = LogEntry.newBuilder(Payload.StringPayload.of("message"));
+        filteredContextData.enhanceLogEntry(builder, event);
+        return builder.build();
+    }
+
+    @Benchmark
+    public LogEntry trace() {
+        LogEntry.Builder builder = LogEntry.newBuilder(Payload.StringPayload.of("message"));
+        trace.enhanceLogEntry(builder, event);
+        return builder.build();
+    }
+
+    @Benchmark
+    public LogEntry traceparent() {
+        LogEntry.Builder builder = LogEntry.newBuilder(Payload.StringPayload.of("message"));
+        traceHeader.enhanceLogEntry(builder, traceparentEvent);
+        return builder.build();
+    }
+
+    @Benchmark
+    public LogEntry cloudTraceContext() {
+        LogEntry.Builder builder = LogEntry.newBuilder(Payload.StringPayload.of("message"));
+        traceHeader.enhanceLogEntry(builder, cloudTraceContextEvent);
+        return builder.build();
+    }
+}
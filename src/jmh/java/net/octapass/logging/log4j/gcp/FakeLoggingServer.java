@@ -0,0 +1,280 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.logging.Logging;
+import com.google.cloud.logging.LoggingOptions;
+import com.google.cloud.logging.spi.v2.LoggingRpc;
+import com.google.cloud.logging.v2.LoggingClient;
+import com.google.cloud.logging.v2.LoggingSettings;
+import com.google.logging.type.LogSeverity;
+import com.google.logging.v2.LogEntry;
+import com.google.logging.v2.WriteLogEntriesRequest;
+import com.google.logging.v2.WriteLogEntriesResponse;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in for the Cloud Logging {@code LoggingServiceV2} that accepts {@code WriteLogEntries} calls on a local port,
+ * with configurable latency, error rate and throttling.
+ * <p>
+ * {@link #newClient} returns a regular {@link Logging} client talking to it over a plaintext channel. The client
+ * library has its own plaintext mode for {@code localhost} hosts, but that mode shuts its channel down right after
+ * creating it, so the client gets an RPC layer that only implements {@code write} instead.
+ */
+final class FakeLoggingServer implements Closeable {
+
+    private static final String SERVICE_NAME = "google.logging.v2.LoggingServiceV2";
+    private static final String DIAGNOSTIC_LOG = "/diagnostic-log"; // written once by the client library itself
+    private static final MethodDescriptor<WriteLogEntriesRequest, WriteLogEntriesResponse> WRITE_LOG_ENTRIES =
+            MethodDescriptor.<WriteLogEntriesRequest, WriteLogEntriesResponse>newBuilder()
+                    .setType(MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "WriteLogEntries"))
+                    .setRequestMarshaller(ProtoUtils.marshaller(WriteLogEntriesRequest.getDefaultInstance()))
+                    .setResponseMarshaller(ProtoUtils.marshaller(WriteLogEntriesResponse.getDefaultInstance()))
+                    .build();
+
+    private final long latencyMillis;
+    private volatile double errorRate;
+    private final long minIntervalNanos;
+    private final Server server;
+    private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FakeLoggingServer-Responder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextAllowedNanos = new AtomicLong(System.nanoTime());
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder errorEntries = new LongAdder();
+    private final LongAdder errorDelayMillis = new LongAdder();
+    private final LongAccumulator maxErrorDelayMillis = new LongAccumulator(Math::max, 0);
+    private final Map<WriteLogEntriesRequest, Integer> failedAttempts = new ConcurrentHashMap<>();
+    private final LongAccumulator maxAttempts = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param latencyMillis     delay before every response
+     * @param errorRate         fraction of requests failed with {@code UNAVAILABLE}
+     * @param maxRequestsPerSec requests accepted per second, further requests fail with {@code RESOURCE_EXHAUSTED};
+     *                          {@code 0} for no limit
+     */
+    FakeLoggingServer(long latencyMillis, double errorRate, int maxRequestsPerSec) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.minIntervalNanos = maxRequestsPerSec > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSec : 0;
+        ServerServiceDefinition service = ServerServiceDefinition.builder(SERVICE_NAME)
+                .addMethod(WRITE_LOG_ENTRIES, ServerCalls.asyncUnaryCall(this::writeLogEntries))
+                .build();
+        this.server = Grpc.newServerBuilderForPort(0, InsecureServerCredentials.create())
+                .addService(service)
+                .build()
+                .start();
+    }
+
+    /**
+     * Returns a client for this server, with the same gax settings, batching included, as the default client.
+     */
+    Logging newClient(String projectId) {
+        return newClient(projectId, null);
+    }
+
+    /**
+     * Returns a client for this server with the given {@code WriteLogEntries} batching settings, or the default
+     * ones if {@code null}.
+     */
+    Logging newClient(String projectId, BatchingSettings batchingSettings) {
+        return newClient(projectId, batchingSettings, null);
+    }
+
+    /**
+     * Returns a client for this server with the given {@code WriteLogEntries} batching and retry settings, or the
+     * default ones if {@code null}. Like the real client, it retries {@code UNAVAILABLE} but not
+     * {@code RESOURCE_EXHAUSTED}.
+     */
+    Logging newClient(String projectId, BatchingSettings batchingSettings, RetrySettings retrySettings) {
+        return LoggingOptions.newBuilder()
+                .setProjectId(projectId)
+                .setCredentials(NoCredentials.getInstance())
+                .setServiceRpcFactory(options -> newRpc(batchingSettings, retrySettings))
+                .build()
+                .getService();
+    }
+
+    private LoggingRpc newRpc(BatchingSettings batchingSettings, RetrySettings retrySettings) {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        LoggingClient client;
+        try {
+            LoggingSettings.Builder settings = LoggingSettings.newBuilder()
+                    .setTransportChannelProvider(
+                            FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+                    .setCredentialsProvider(NoCredentialsProvider.create());
+            if (batchingSettings != null) {
+                settings.writeLogEntriesSettings().setBatchingSettings(batchingSettings);
+            }
+            if (retrySettings != null) {
+                settings.writeLogEntriesSettings().setRetrySettings(retrySettings);
+            }
+            client = LoggingClient.create(settings.build());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Class<?>[] interfaces = {LoggingRpc.class};
+        return (LoggingRpc) Proxy.newProxyInstance(LoggingRpc.class.getClassLoader(), interfaces,
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "write" -> client.writeLogEntriesCallable().futureCall((WriteLogEntriesRequest) args[0]);
+                    case "close" -> {
+                        client.close();
+                        channel.shutdown();
+                        yield null;
+                    }
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "FakeLoggingServer.LoggingRpc";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * Changes the fraction of requests failed with {@code UNAVAILABLE}, {@code 1} for an outage.
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    long entries() {
+        return entries.sum();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    long failures() {
+        return failures.sum();
+    }
+
+    long throttled() {
+        return throttled.sum();
+    }
+
+    /**
+     * Returns the entries of severity ERROR and above accepted.
+     */
+    long errorEntries() {
+        return errorEntries.sum();
+    }
+
+    /**
+     * Returns the mean time from the timestamp of an ERROR entry until the request holding it arrived.
+     */
+    double meanErrorDelayMillis() {
+        return errorDelayMillis.sum() / (double) Math.max(1, errorEntries.sum());
+    }
+
+    long maxErrorDelayMillis() {
+        return maxErrorDelayMillis.get();
+    }
+
+    /**
+     * Returns the most times the same request arrived, counting the failed attempts and the one accepted, if any.
+     */
+    long maxAttempts() {
+        return maxAttempts.get();
+    }
+
+    @Override
+    public void close() {
+        server.shutdownNow();
+        responder.shutdownNow();
+    }
+
+    private void writeLogEntries(WriteLogEntriesRequest request, StreamObserver<WriteLogEntriesResponse> response) {
+        requests.increment();
+        Status status = Status.OK;
+        if (!acquire()) {
+            throttled.increment();
+            status = Status.RESOURCE_EXHAUSTED.withDescription("throttled by FakeLoggingServer");
+        } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failures.increment();
+            maxAttempts.accumulate(failedAttempts.merge(request, 1, Integer::sum));
+            status = Status.UNAVAILABLE.withDescription("failure injected by FakeLoggingServer");
+        } else {
+            Integer failed = failedAttempts.remove(request);
+            maxAttempts.accumulate(failed != null ? failed + 1 : 1);
+            long now = System.currentTimeMillis();
+            for (LogEntry entry : request.getEntriesList()) {
+                String logName = entry.getLogName().isEmpty() ? request.getLogName() : entry.getLogName();
+                if (!logName.endsWith(DIAGNOSTIC_LOG)) {
+                    entries.increment();
+                }
+                if (entry.getSeverityValue() >= LogSeverity.ERROR_VALUE) {
+                    long delay = now - entry.getTimestamp().getSeconds() * 1000 - entry.getTimestamp().getNanos()
+                            / 1_000_000;
+                    errorEntries.increment();
+                    errorDelayMillis.add(delay);
+                    maxErrorDelayMillis.accumulate(delay);
+                }
+            }
+            bytes.add(request.getSerializedSize());
+        }
+        Status result = status;
+        responder.schedule(() -> {
+            if (result.isOk()) {
+                response.onNext(WriteLogEntriesResponse.getDefaultInstance());
+                response.onCompleted();
+            } else {
+                response.onError(result.asRuntimeException());
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean acquire() {
+        if (minIntervalNanos == 0) {
+            return true;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextAllowedNanos.get();
+            if (now < next) {
+                return false;
+            }
+            if (nextAllowedNanos.compareAndSet(next, now + minIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.octapass.logging.log4j.gcp;
+
+import java.util.SplittableRandom;
+
+/**
+ * Accuracy check of {@link Histogram}, run by the {@code test} phase of the {@code benchmarks} profile. Maps values
+ * to their bucket and back, and exits with status 1 if the upper bound of a bucket is below one of its values or
+ * more than 12.5% above it.
+ */
+public final class HistogramCheck {
+
+    private static final double MAX_ERROR = 0.125;
+    private static final int SMALL_VALUES = 1 << 20;
+    private static final int RANDOM_VALUES = 1_000_000;
+
+    private HistogramCheck() {
+    }
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (long value = 0; value < SMALL_VALUES; value++) {
+            failures += check(value);
+        }
+        for (int bits = 1; bits < Long.SIZE - 1; bits++) {
+            long power = 1L << bits;
+            failures += check(power - 1) + check(power) + check(power + 1);
+        }
+        failures += check(Long.MAX_VALUE);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            failures += check(random.nextLong(Long.MAX_VALUE) >>> random.nextInt(Long.SIZE - 1));
+        }
+        if (failures > 0) {
+            System.out.println(failures + " values map to a bucket whose upper bound is off by more than "
+                    + MAX_ERROR * 100 + "%");
+            System.exit(1);
+        }
+        System.out.println("Histogram buckets are within " + MAX_ERROR * 100 + "% of their values");
+    }
+
+    private static int check(long value) {
+        int bucket = Histogram.bucket(value);
+        long upperBound = Histogram.upperBound(bucket);
+        if (upperBound >= value && upperBound - value <= value * MAX_ERROR) {
+            return 0;
+        }
+        if (value < SMALL_VALUES || Long.bitCount(value) <= 2) {
+            System.out.printf("value %,d: bucket %d, upper bound %,d%n", value, bucket, upperBound);
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,459 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.Logging;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.async.AsyncLoggerContext;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test: application threads log through a real {@link LoggerContext} into the appender, which writes
+ * to a {@link FakeLoggingServer}. Reports throughput, append latency percentiles, RPC counts, lost entries and the
+ * garbage collections of the run. Exits with status 1 if a check of the run failed:
+ * <ul>
+ *     <li>no request was sent more than {@code maxRetries + 1} times, unless a spill queue resends it;</li>
+ *     <li>an outage that failed enough writes in a row opened the circuit breaker, and a probe closed it again if
+ *     the run lasted long enough after;</li>
+ *     <li>without a spill queue, every entry not delivered nor failed over to stdout was counted as dropped, or
+ *     without failover, as failed;</li>
+ *     <li>after a restart, every spilled entry was replayed.</li>
+ * </ul>
+ * The circuit breaker and the lost entries are not checked for unbuffered writes through the client library, which
+ * sends them in the background and does not report those that fail.
+ * <p>
+ * Options, all {@code --name value}:
+ * <ul>
+ *     <li>{@code threads} (4), {@code rate} events per second per thread, {@code 0} for as fast as possible (0),
+ *     {@code seconds} (10)</li>
+ *     <li>{@code logs} (1): events are logged in turn through this many loggers, each routed to a log of its own
+ *     by a {@link LogRoute}</li>
+ *     <li>{@code level} of the events (INFO), and {@code errorEvery}: every so many events of a thread is logged
+ *     at ERROR instead (0)</li>
+ *     <li>{@code async} use an {@link AsyncLoggerContext} (false); needs a Disruptor release supported by the Log4j
+ *     release on the classpath</li>
+ *     <li>{@code transport} {@code CLIENT} or {@code DIRECT} (CLIENT), {@code maxInFlightWrites} (1),
+ *     {@code orderedWrites} (false) and {@code maxFlushLatencyMillis} (1000) as on the appender</li>
+ *     <li>{@code maxRetries} (3), {@code circuitBreakerThreshold} (5), {@code circuitBreakerProbeMillis} (30000)
+ *     and {@code failoverToStdout} (false) as on the appender</li>
+ *     <li>{@code latency} server latency in milliseconds (20), {@code errorRate} (0), {@code maxRps} (0)</li>
+ *     <li>{@code outageAfter} and {@code outageSeconds}: seconds into the run after which every request fails,
+ *     and for how long (0)</li>
+ *     <li>{@code buffered} (false), {@code bufferSize}, {@code batchSize}, {@code maxBatchBytes},
+ *     {@code maxLingerMillis}, {@code overflowPolicy}, {@code ringBufferSize}, {@code severityLanes} and
+ *     {@code offHeapBytes} as on the appender's {@code offHeapBufferBytes}</li>
+ *     <li>{@code spill} (false): entries pass through a spill queue in a temporary directory</li>
+ *     <li>{@code restart} (false): with {@code spill}, the API is down for the whole run and the manager is stopped
+ *     with the entries on disk; the API then comes back and a new manager of the same directory, as after an
+ *     application restart, has to replay every one of them</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+    private static final long STOP_TIMEOUT_SECONDS = 60;
+    private static final long RESTART_STOP_TIMEOUT_SECONDS = 2;
+    private static final double BREAKER_CLOSE_MARGIN_SECONDS = 1; // for the probe after the interval to complete
+    private static final String SERVICE_LOGGER = "net.octapass.loadtest.Service";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "0"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        boolean async = Boolean.parseBoolean(options.getOrDefault("async", "false"));
+        int logs = Integer.parseInt(options.getOrDefault("logs", "1"));
+        Level level = Level.valueOf(options.getOrDefault("level", "INFO"));
+        int errorEvery = Integer.parseInt(options.getOrDefault("errorEvery", "0"));
+        double errorRate = Double.parseDouble(options.getOrDefault("errorRate", "0"));
+        boolean restart = Boolean.parseBoolean(options.getOrDefault("restart", "false"));
+        SpillSettings spillSettings = restart || Boolean.parseBoolean(options.getOrDefault("spill", "false"))
+                ? new SpillSettings(Files.createTempDirectory("LoadTest-spill"), 256L * 1024 * 1024, 16 * 1024 * 1024)
+                : null;
+        List<String> failures = new ArrayList<>();
+
+        try (FakeLoggingServer server = new FakeLoggingServer(
+                Long.parseLong(options.getOrDefault("latency", "20")),
+                errorRate, Integer.parseInt(options.getOrDefault("maxRps", "0")))) {
+            LoggerContext context = async ? new AsyncLoggerContext("LoadTest") : new LoggerContext("LoadTest");
+            context.start(configuration(context, level));
+            TransportSettings transportSettings = new TransportSettings(
+                    Transport.valueOf(options.getOrDefault("transport", "CLIENT")),
+                    Integer.parseInt(options.getOrDefault("maxInFlightWrites", "1")),
+                    Boolean.parseBoolean(options.getOrDefault("orderedWrites", "false")),
+                    Long.parseLong(options.getOrDefault("maxFlushLatencyMillis", "1000")));
+            ResilienceSettings resilienceSettings = new ResilienceSettings(
+                    Integer.parseInt(options.getOrDefault("maxRetries", "3")),
+                    Integer.parseInt(options.getOrDefault("circuitBreakerThreshold", "5")),
+                    Long.parseLong(options.getOrDefault("circuitBreakerProbeMillis", "30000")),
+                    Boolean.parseBoolean(options.getOrDefault("failoverToStdout", "false")));
+            // the same client settings the manager factory uses
+            Logging logging = server.newClient("load-test", transportSettings.transport() == Transport.DIRECT
+                    ? GoogleCloudLoggingManager.unbatched() : null,
+                    GoogleCloudLoggingManager.retrySettings(resilienceSettings.maxRetries()));
+            BufferSettings bufferSettings = bufferSettings(options);
+            // unbuffered client writes complete in the client library, which only logs those that fail
+            boolean checkWrites = bufferSettings != null || spillSettings != null
+                    || transportSettings.transport() == Transport.DIRECT;
+            GoogleCloudLoggingManager manager = new GoogleCloudLoggingManager(context, "LoadTest", "load-test",
+                    logging, StatusLogger.getLogger(), false, bufferSettings, spillSettings, null,
+                    transportSettings, resilienceSettings);
+            GoogleCloudLoggingAppender appender = new GoogleCloudLoggingAppender(manager, "gcp", "load-test", null,
+                    null, false, null, MonitoredResource.of("global", Map.of("project_id", "load-test")),
+                    new StackTraceRenderer(0, 0, 200 * 1024, 256), 200 * 1024, EnhancerPipeline.compile(List.of(),
+                    List.of(), List.of(new ContextDataEventEnhancer()), StatusLogger.getLogger()), null, null,
+                    PayloadType.JSON, null, LogRouter.compile("load-test", routes(logs)));
+            appender.start();
+            context.getConfiguration().addAppender(appender);
+            context.getConfiguration().getRootLogger().addAppender(appender, null, null);
+            context.updateLoggers();
+            Logger[] loggers = new Logger[logs];
+            for (int i = 0; i < logs; i++) {
+                loggers[i] = context.getLogger(SERVICE_LOGGER + i);
+            }
+
+            double outageAfter = Double.parseDouble(options.getOrDefault("outageAfter", "0"));
+            double outageSeconds = Double.parseDouble(options.getOrDefault("outageSeconds", "0"));
+            Outage outage = null;
+            if (restart) {
+                server.setErrorRate(1);
+            } else if (outageSeconds > 0) {
+                outage = scheduleOutage(server, outageAfter, outageSeconds, errorRate);
+            }
+            List<Driver> drivers = new ArrayList<>();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            long[] gcBefore = gcCountAndMillis();
+            long start = System.nanoTime();
+            BreakerWatch breaker = watchCircuitBreaker(manager.getMetrics(), start);
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < threads; i++) {
+                Driver driver = new Driver(loggers, level, errorEvery, rate, end);
+                drivers.add(driver);
+                driver.start();
+            }
+            LatencyHistogram latencies = new LatencyHistogram();
+            long sent = 0;
+            for (Driver driver : drivers) {
+                driver.join();
+                latencies.add(driver.latencies);
+                sent += driver.sent;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long[] gcAfter = gcCountAndMillis();
+
+            long stopStart = System.nanoTime();
+            context.stop(restart ? RESTART_STOP_TIMEOUT_SECONDS : STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            double drainSeconds = (System.nanoTime() - stopStart) / 1e9;
+            long delivered = server.entries();
+            Replay replay = restart ? replay(server, errorRate, spillSettings, transportSettings,
+                    resilienceSettings) : null;
+
+            System.out.printf("events:      %,d in %.1f s, %,.0f events/s (%s, %d threads, %d logs)%n",
+                    sent, elapsed, sent / elapsed, async ? "async" : "sync", threads, logs);
+            System.out.printf("append:      p50 %,d ns, p99 %,d ns, p99.9 %,d ns, max %,d ns%n",
+                    latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999),
+                    latencies.max());
+            System.out.printf("rpcs:        %,d (%,d failed, %,d throttled), %,.1f entries/rpc, %,d bytes, "
+                            + "%,.1f bytes/entry%n",
+                    server.requests(), server.failures(), server.throttled(),
+                    server.entries() / (double) Math.max(1, server.requests() - server.failures()
+                            - server.throttled()), server.bytes(), server.bytes() / (double) Math.max(1,
+                            server.entries()));
+            GoogleCloudLoggingManagerMXBean metrics = manager.getMetrics();
+            long lost = sent - server.entries() - metrics.getFailoverCount();
+            System.out.printf("delivered:   %,d, to stdout %,d, lost %,d, drain on stop %.1f s%n",
+                    server.entries(), metrics.getFailoverCount(), lost, drainSeconds);
+            if (replay != null) {
+                System.out.printf("replayed:    %,d after restart, %,d before, %,d corrupt, in %.1f s%n",
+                        server.entries() - delivered, delivered, replay.corrupt, replay.seconds);
+                if (lost != 0) {
+                    failures.add(lost + " entries were not replayed after the restart");
+                }
+                if (!replay.drained) {
+                    failures.add("the spill queue was not empty when the restarted manager stopped");
+                }
+                if (replay.corrupt > 0) {
+                    failures.add(replay.corrupt + " spilled entries could not be decoded");
+                }
+            }
+            if (server.maxAttempts() > resilienceSettings.maxRetries() + 1 && spillSettings == null) {
+                failures.add("a request was sent " + server.maxAttempts() + " times, more than maxRetries + 1");
+            }
+            // a write fails once all its attempts did, so the outage failed at least this many in a row
+            if (checkWrites && outage != null && resilienceSettings.failureThreshold() > 0 && outage.failures
+                    >= (long) resilienceSettings.failureThreshold() * (resilienceSettings.maxRetries() + 1)) {
+                if (!breaker.opened) {
+                    failures.add("the circuit breaker did not open during the outage");
+                } else if (breaker.open && seconds >= outageAfter + outageSeconds
+                        + resilienceSettings.probeIntervalMillis() / 1000.0 + BREAKER_CLOSE_MARGIN_SECONDS) {
+                    failures.add("the circuit breaker did not close after the outage");
+                }
+            }
+            long counted = metrics.getDroppedCount() + (resilienceSettings.failoverToStdout() ? 0
+                    : metrics.getFailedCount());
+            if (checkWrites && replay == null && spillSettings == null && lost != counted) {
+                failures.add(lost + " entries were lost, but " + counted + " were counted as dropped or failed");
+            }
+            if (server.errorEntries() > 0) {
+                System.out.printf("error delay: mean %,.0f ms, max %,d ms over %,d ERROR entries%n",
+                        server.meanErrorDelayMillis(), server.maxErrorDelayMillis(), server.errorEntries());
+            }
+            System.out.printf("write:       p50 %,d us, p99 %,d us, max %,d us, %,.1f entries/batch%n",
+                    metrics.getWriteLatencyP50Micros(), metrics.getWriteLatencyP99Micros(),
+                    metrics.getWriteLatencyMaxMicros(), metrics.getBatchSizeMean());
+            if (!metrics.getLaneDepths().isEmpty()) {
+                System.out.printf("lane wait:   p50 %s us, p99 %s us%n", metrics.getLaneWaitP50Micros(),
+                        metrics.getLaneWaitP99Micros());
+            }
+            System.out.printf("lane drops:  %s%n", metrics.getLaneDroppedCounts());
+            System.out.printf("gc:          %,d collections, %,d ms, peak old generation %,d KiB%n",
+                    gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], peakOldGenerationBytes() / 1024);
+            for (DropReason reason : DropReason.values()) {
+                if (manager.getDroppedCount(reason) > 0) {
+                    System.out.printf("dropped:     %,d %s%n", manager.getDroppedCount(reason), reason);
+                }
+            }
+        }
+        for (String failure : failures) {
+            System.out.println("FAILED:      " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Brings the API back and opens a new manager on the spill directory left by the stopped one, as a restarted
+     * application would, then stops it once it replayed the entries on disk.
+     */
+    private static Replay replay(FakeLoggingServer server, double errorRate, SpillSettings spillSettings,
+                                 TransportSettings transportSettings, ResilienceSettings resilienceSettings) {
+        server.setErrorRate(errorRate);
+        Logging logging = server.newClient("load-test", transportSettings.transport() == Transport.DIRECT
+                ? GoogleCloudLoggingManager.unbatched() : null,
+                GoogleCloudLoggingManager.retrySettings(resilienceSettings.maxRetries()));
+        long start = System.nanoTime();
+        GoogleCloudLoggingManager manager = new GoogleCloudLoggingManager(new LoggerContext("LoadTest-Restart"),
+                "LoadTest-Restart", "load-test", logging, StatusLogger.getLogger(), false, null, spillSettings, null,
+                transportSettings, resilienceSettings);
+        boolean drained = manager.stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return new Replay(drained, manager.getDroppedCount(DropReason.SPILL_CORRUPT),
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private record Replay(boolean drained, long corrupt, double seconds) {
+    }
+
+    private static long[] gcCountAndMillis() {
+        long[] countAndMillis = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            countAndMillis[0] += Math.max(0, collector.getCollectionCount());
+            countAndMillis[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return countAndMillis;
+    }
+
+    private static long peakOldGenerationBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && (pool.getName().contains("Old")
+                    || pool.getName().contains("Tenured"))) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static Outage scheduleOutage(FakeLoggingServer server, double after, double seconds, double errorRate) {
+        Outage outage = new Outage();
+        Thread thread = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep((long) (after * 1000));
+                long failuresBefore = server.failures();
+                server.setErrorRate(1);
+                TimeUnit.MILLISECONDS.sleep((long) (seconds * 1000));
+                server.setErrorRate(errorRate);
+                outage.failures = server.failures() - failuresBefore;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "LoadTest-Outage");
+        thread.setDaemon(true);
+        thread.start();
+        return outage;
+    }
+
+    /**
+     * The requests failed by an outage, once it is over.
+     */
+    private static final class Outage {
+        private volatile long failures;
+    }
+
+    /**
+     * Reports on stderr when the circuit breaker opens and closes, to within 10 ms.
+     */
+    private static BreakerWatch watchCircuitBreaker(GoogleCloudLoggingManagerMXBean metrics, long start) {
+        BreakerWatch watch = new BreakerWatch();
+        Thread watcher = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (metrics.isCircuitBreakerOpen() != watch.open) {
+                    watch.open = !watch.open;
+                    watch.opened |= watch.open;
+                    System.err.printf("breaker:     %s at %.2f s%n", watch.open ? "opened" : "closed",
+                            (System.nanoTime() - start) / 1e9);
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }, "LoadTest-BreakerWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return watch;
+    }
+
+    /**
+     * Whether the circuit breaker was seen open at some point of the run, and is now.
+     */
+    private static final class BreakerWatch {
+        private volatile boolean opened;
+        private volatile boolean open;
+    }
+
+    private static LogRoute[] routes(int logs) {
+        if (logs <= 1) {
+            return null;
+        }
+        LogRoute[] routes = new LogRoute[logs];
+        for (int i = 0; i < logs; i++) {
+            routes[i] = new LogRoute("load-test-" + i, SERVICE_LOGGER + i, null, null, null, null);
+        }
+        return routes;
+    }
+
+    private static BuiltConfiguration configuration(LoggerContext context, Level level) {
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setConfigurationName("LoadTest").setLoggerContext(context);
+        builder.add(builder.newRootLogger(level));
+        return builder.build(false);
+    }
+
+    private static BufferSettings bufferSettings(Map<String, String> options) {
+        if (!Boolean.parseBoolean(options.getOrDefault("buffered", "false"))) {
+            return null;
+        }
+        return new BufferSettings(
+                Integer.parseInt(options.getOrDefault("bufferSize", "8192")),
+                Integer.parseInt(options.getOrDefault("batchSize", "500")),
+                Integer.parseInt(options.getOrDefault("maxBatchBytes", "" + LogEntrySizes.MAX_REQUEST_BYTES)),
+                Long.parseLong(options.getOrDefault("maxLingerMillis", "1000")),
+                OverflowPolicy.valueOf(options.getOrDefault("overflowPolicy", "BLOCK")),
+                null,
+                Integer.parseInt(options.getOrDefault("ringBufferSize", "0")),
+                Boolean.parseBoolean(options.getOrDefault("severityLanes", "false")),
+                Integer.parseInt(options.getOrDefault("offHeapBytes", "0")));
+    }
+
+    private static final class Driver extends Thread {
+        private final Logger[] loggers;
+        private final Level level;
+        private final int errorEvery;
+        private final long intervalNanos;
+        private final long endNanos;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long sent;
+
+        Driver(Logger[] loggers, Level level, int errorEvery, int rate, long endNanos) {
+            super("LoadTest-Driver");
+            this.loggers = loggers;
+            this.level = level;
+            this.errorEvery = errorEvery;
+            this.intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            for (long now = next; now < endNanos; now = System.nanoTime()) {
+                if (intervalNanos > 0) {
+                    if (now < next) {
+                        LockSupport.parkNanos(next - now);
+                        continue;
+                    }
+                    next += intervalNanos;
+                }
+                long before = System.nanoTime();
+                loggers[(int) (sent % loggers.length)].log(errorEvery > 0 && sent % errorEvery == 0 ? Level.ERROR
+                        : level, "Handled request {} in {} ms", sent, 17);
+                latencies.record(System.nanoTime() - before);
+                sent++;
+            }
+        }
+    }
+
+    /**
+     * Log-linear histogram with 16 sub-buckets per power of two, about 6% precision.
+     */
+    private static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 1);
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = exponent < 4 ? (int) nanos : (int) (nanos >>> (exponent - 4)) - SUB_BUCKETS;
+            counts[exponent * SUB_BUCKETS + sub]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    int exponent = i / SUB_BUCKETS;
+                    int sub = i % SUB_BUCKETS;
+                    return exponent < 4 ? sub : (long) (SUB_BUCKETS + sub) << (exponent - 4);
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Conversion of a log event into a {@link LogEntry}, including context data labels and stack trace rendering.
+ */
+@State(Scope.Benchmark)
+public class LogEntryForBenchmark {
+
+    @Param({"0", "8", "32"})
+    public int contextSize;
+
+    @Param({"0", "1", "4"})
+    public int exceptionDepth;
+
+    @Param({"JSON", "TEXT"})
+    public PayloadType payloadType;
+
+    private GoogleCloudLoggingAppender appender;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        appender = BenchmarkEvents.appender(BenchmarkEvents.manager(BenchmarkEvents.noopLogging(), false, null),
+                payloadType);
+        event = BenchmarkEvents.event(contextSize, exceptionDepth);
+    }
+
+    @Benchmark
+    public LogEntry logEntryFor() {
+        return appender.logEntryFor(event);
+    }
+}
@@ -0,0 +1,41 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.Severity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Map;
+
+/**
+ * The rate limit check, from four threads logging through the same logger. Nearly all events are suppressed, which is
+ * the case the check must keep cheap.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class RateLimitBenchmark {
+
+    private EventRateLimiter limiter;
+
+    @Setup
+    public void setUp() {
+        limiter = new EventRateLimiter(new RateLimitConfig(1000, 1000, Map.of(Severity.DEBUG, 0.01), 60));
+    }
+
+    @Benchmark
+    public boolean rateLimited() {
+        return limiter.tryAcquire("net.octapass.benchmark.Service", Severity.INFO);
+    }
+
+    @Benchmark
+    public boolean sampled() {
+        return limiter.tryAcquire("net.octapass.benchmark.Service", Severity.DEBUG);
+    }
+
+    @Benchmark
+    public boolean exempt() {
+        return limiter.tryAcquire("net.octapass.benchmark.Service", Severity.ERROR);
+    }
+}
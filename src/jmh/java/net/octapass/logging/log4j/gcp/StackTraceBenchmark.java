@@ -0,0 +1,41 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Stack trace rendering with and without the render cache. Every invocation renders a new event, so that the
+ * uncached case pays for the {@code ThrowableProxy} as it does in production.
+ */
+@State(Scope.Benchmark)
+public class StackTraceBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int exceptionDepth;
+
+    @Param({"0", "256"})
+    public int cacheSize;
+
+    private StackTraceRenderer renderer;
+    private Throwable thrown;
+    private final StringBuilder payload = new StringBuilder(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        renderer = new StackTraceRenderer(0, 0, 0, cacheSize);
+        thrown = BenchmarkEvents.exception(exceptionDepth);
+    }
+
+    @Benchmark
+    public int render() {
+        LogEvent event = Log4jLogEvent.newBuilder().setThrown(thrown).build();
+        payload.setLength(0);
+        renderer.render(event, payload);
+        return payload.length();
+    }
+}
@@ -0,0 +1,425 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.LoggingOptions;
+import com.google.cloud.logging.Payload;
+import com.google.cloud.logging.Severity;
+import com.google.cloud.logging.spi.v2.LoggingRpc;
+import com.google.logging.v2.WriteLogEntriesRequest;
+import com.google.logging.v2.WriteLogEntriesResponse;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Concurrency stress test of the manager write path. Producer threads call
+ * {@link GoogleCloudLoggingManager#writeLogEntry} while another thread keeps calling
+ * {@link GoogleCloudLoggingManager#flush}. The managers write to a recording RPC layer that counts every entry it
+ * receives by insert id. After each run, the test checks three things:
+ * <ul>
+ *     <li>no loss: every entry a producer wrote was received, or counted as dropped by the manager, and every
+ *     stopped manager reported its buffers drained. In the {@code steady} scenario, nothing may be dropped at all,
+ *     since every buffer blocks when full;</li>
+ *     <li>no duplication: no entry was received twice;</li>
+ *     <li>no deadlock: the run finishes in time. Otherwise the stacks of all threads are printed.</li>
+ * </ul>
+ * Each write mode runs three scenarios for every producer count:
+ * <ul>
+ *     <li>{@code steady}: producers write, then the manager is stopped;</li>
+ *     <li>{@code reconfigure}: a quarter, half and three quarters into the run, producers are switched to a new
+ *     manager and the old one is stopped, while writes to it may still be in progress, as on a reconfiguration;</li>
+ *     <li>{@code shutdown}: half way, the manager is stopped and producers keep writing to it, as threads that log
+ *     during shutdown do.</li>
+ * </ul>
+ * It reports the write throughput of each run, and the scaling of the {@code steady} runs relative to one producer.
+ * It exits with status 1 if any check fails.
+ * <p>
+ * Options, all {@code --name value}:
+ * <ul>
+ *     <li>{@code modes}: comma separated, any of {@code client}, {@code direct}, {@code buffered}, {@code ring},
+ *     {@code lanes}, {@code offheap} and {@code inflight} (all)</li>
+ *     <li>{@code producers}: comma separated producer counts (1,2,4,8,16,32,64)</li>
+ *     <li>{@code scenarios}: comma separated, any of {@code steady}, {@code reconfigure} and {@code shutdown}
+ *     (all)</li>
+ *     <li>{@code events}: entries written per run, split between the producers (200000)</li>
+ *     <li>{@code latency}: delay in milliseconds before each write completes (0)</li>
+ *     <li>{@code timeout}: seconds a run may take before it is reported as stuck (120)</li>
+ * </ul>
+ */
+public final class StressTest {
+
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+    private static final int ERROR_EVERY = 100;
+    private static final AtomicInteger MANAGER_IDS = new AtomicInteger();
+
+    private StressTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        String[] modes = options.getOrDefault("modes", "client,direct,buffered,ring,lanes,offheap,inflight")
+                .split(",");
+        String[] producerCounts = options.getOrDefault("producers", "1,2,4,8,16,32,64").split(",");
+        String[] scenarios = options.getOrDefault("scenarios", "steady,reconfigure,shutdown").split(",");
+        int events = Integer.parseInt(options.getOrDefault("events", "200000"));
+        long latencyMillis = Long.parseLong(options.getOrDefault("latency", "0"));
+        long timeoutSeconds = Long.parseLong(options.getOrDefault("timeout", "120"));
+
+        ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StressTest-Responder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Map<Integer, Double>> scaling = new LinkedHashMap<>();
+        int failures = 0;
+        System.out.printf("%-9s %-12s %9s %12s %10s %8s %8s %8s %10s  %s%n", "mode", "scenario", "producers",
+                "events/s", "delivered", "dropped", "missing", "dupes", "stop ms", "result");
+        for (String mode : modes) {
+            for (String scenario : scenarios) {
+                for (String producers : producerCounts) {
+                    Run run = new Run(mode.trim(), Scenario.valueOf(scenario.trim().toUpperCase()),
+                            Integer.parseInt(producers.trim()), events, latencyMillis, responder);
+                    Result result = run.execute(timeoutSeconds);
+                    System.out.println(result);
+                    failures += result.isPassed() ? 0 : 1;
+                    if (run.scenario == Scenario.STEADY) {
+                        scaling.computeIfAbsent(run.mode, ignored -> new LinkedHashMap<>())
+                                .put(run.producers, result.eventsPerSecond);
+                    }
+                }
+            }
+        }
+        printScaling(scaling);
+        System.out.printf("%d runs failed%n", failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void printScaling(Map<String, Map<Integer, Double>> scaling) {
+        if (scaling.isEmpty()) {
+            return;
+        }
+        System.out.println();
+        System.out.println("steady throughput relative to the fewest producers:");
+        scaling.forEach((mode, curve) -> {
+            StringBuilder line = new StringBuilder(String.format("%-9s", mode));
+            double base = curve.values().iterator().next();
+            curve.forEach((producers, eventsPerSecond) -> line.append(String.format("  %d: %.2fx", producers,
+                    eventsPerSecond / base)));
+            System.out.println(line);
+        });
+    }
+
+    private enum Scenario {
+        STEADY, RECONFIGURE, SHUTDOWN
+    }
+
+    /**
+     * One run of a scenario: its producers, the managers they write to and the record of what reached the RPC layer.
+     */
+    private static final class Run {
+        private final String mode;
+        private final Scenario scenario;
+        private final int producers;
+        private final int perProducer;
+        private final Recorder recorder;
+        private final AtomicReference<GoogleCloudLoggingManager> current = new AtomicReference<>();
+        private final List<GoogleCloudLoggingManager> managers = new ArrayList<>();
+        private final LongAdder progress = new LongAdder();
+        private volatile boolean producing = true;
+
+        Run(String mode, Scenario scenario, int producers, int events, long latencyMillis,
+            ScheduledExecutorService responder) {
+            this.mode = mode;
+            this.scenario = scenario;
+            this.producers = producers;
+            this.perProducer = Math.max(1, events / producers);
+            this.recorder = new Recorder(producers, perProducer, latencyMillis, responder);
+        }
+
+        Result execute(long timeoutSeconds) throws InterruptedException {
+            Thread watchdog = watchdog(timeoutSeconds);
+            current.set(newManager());
+            List<Producer> threads = new ArrayList<>();
+            for (int i = 0; i < producers; i++) {
+                threads.add(new Producer(this, i));
+            }
+            Thread flusher = new Thread(this::flushRepeatedly, "StressTest-Flusher");
+            flusher.setDaemon(true);
+            long start = System.nanoTime();
+            threads.forEach(Thread::start);
+            flusher.start();
+            long total = (long) producers * perProducer;
+            boolean drained = true;
+            switch (scenario) {
+                case RECONFIGURE -> {
+                    for (int quarter = 1; quarter < 4; quarter++) {
+                        awaitProgress(total * quarter / 4);
+                        drained &= current.getAndSet(newManager()).stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    }
+                }
+                case SHUTDOWN -> {
+                    awaitProgress(total / 2);
+                    drained &= current.get().stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                default -> {
+                }
+            }
+            for (Producer producer : threads) {
+                producer.join();
+            }
+            long written = System.nanoTime();
+            producing = false;
+            flusher.join();
+            long stopStart = System.nanoTime();
+            if (scenario != Scenario.SHUTDOWN) {
+                drained &= current.get().stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            long stopNanos = System.nanoTime() - stopStart;
+            watchdog.interrupt();
+
+            long dropped = 0;
+            for (GoogleCloudLoggingManager manager : managers) {
+                dropped += manager.getMetrics().getDroppedCount();
+            }
+            BitSet[] rejected = new BitSet[producers];
+            for (int i = 0; i < producers; i++) {
+                rejected[i] = threads.get(i).rejected;
+            }
+            return new Result(this, total / ((written - start) / 1e9), recorder.delivered(rejected),
+                    recorder.duplicates(), dropped, total - rejected(rejected),
+                    TimeUnit.NANOSECONDS.toMillis(stopNanos), drained);
+        }
+
+        private static long rejected(BitSet[] rejected) {
+            long count = 0;
+            for (BitSet producer : rejected) {
+                count += producer.cardinality();
+            }
+            return count;
+        }
+
+        private GoogleCloudLoggingManager newManager() {
+            BufferSettings buffered = new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 50,
+                    OverflowPolicy.BLOCK, null, 0, false, 0);
+            BufferSettings bufferSettings = switch (mode) {
+                case "client", "direct" -> null;
+                case "buffered", "inflight" -> buffered;
+                case "ring" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 50,
+                        OverflowPolicy.BLOCK, null, 65536, false, 0);
+                case "lanes" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 50,
+                        OverflowPolicy.BLOCK, null, 0, true, 0);
+                case "offheap" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 50,
+                        OverflowPolicy.BLOCK, null, 0, false, 16 << 20);
+                default -> throw new IllegalArgumentException("Unknown mode " + mode);
+            };
+            TransportSettings transportSettings = switch (mode) {
+                case "direct" -> new TransportSettings(Transport.DIRECT, 1, false, 50);
+                case "inflight" -> new TransportSettings(Transport.DIRECT, 4, false, 50);
+                default -> TransportSettings.DEFAULT;
+            };
+            LoggingOptions options = LoggingOptions.newBuilder()
+                    .setProjectId("stress-test")
+                    .setCredentials(NoCredentials.getInstance())
+                    .setServiceRpcFactory(ignored -> recorder.rpc())
+                    .build();
+            GoogleCloudLoggingManager manager = new GoogleCloudLoggingManager(LoggerContext.getContext(false),
+                    "stress-" + MANAGER_IDS.incrementAndGet(), "stress-test", options.getService(),
+                    StatusLogger.getLogger(), false, bufferSettings, null, null, transportSettings,
+                    new ResilienceSettings(3, 0, 30_000, false));
+            managers.add(manager);
+            return manager;
+        }
+
+        private void awaitProgress(long events) {
+            while (progress.sum() < events) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        private void flushRepeatedly() {
+            while (producing) {
+                try {
+                    current.get().flush();
+                } catch (RuntimeException e) {
+                    // a flush racing a stop may fail, the entries it covers are checked all the same
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        /**
+         * Prints the stacks of all threads, and the deadlocked ones, and ends the test if the run takes too long.
+         */
+        private Thread watchdog(long timeoutSeconds) {
+            Thread watchdog = new Thread(() -> {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.printf("%s %s with %d producers did not finish in %d s%n", mode, scenario, producers,
+                        timeoutSeconds);
+                long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+                System.out.printf("deadlocked threads: %d%n", deadlocked != null ? deadlocked.length : 0);
+                for (ThreadInfo thread : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+                    System.out.print(thread);
+                }
+                System.exit(2);
+            }, "StressTest-Watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+            return watchdog;
+        }
+    }
+
+    private static final class Producer extends Thread {
+        private final Run run;
+        private final int id;
+        private final BitSet rejected = new BitSet();
+
+        Producer(Run run, int id) {
+            super("StressTest-Producer-" + id);
+            this.run = run;
+            this.id = id;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            for (int sequence = 0; sequence < run.perProducer; sequence++) {
+                LogEntry entry = LogEntry.newBuilder(Payload.StringPayload.of("stress test entry " + sequence))
+                        .setInsertId(id + ":" + sequence)
+                        .setLogName("stress-test")
+                        .setSeverity(sequence % ERROR_EVERY == 0 ? Severity.ERROR : Severity.INFO)
+                        .build();
+                try {
+                    run.current.get().writeLogEntry(entry);
+                } catch (RuntimeException e) {
+                    rejected.set(sequence); // reported to the caller, as the appender would
+                }
+                run.progress.increment();
+            }
+        }
+    }
+
+    /**
+     * RPC layer that counts the entries it receives by the producer and sequence number in their insert id.
+     */
+    private static final class Recorder {
+        private final AtomicIntegerArray[] received;
+        private final LongAdder unknown = new LongAdder();
+        private final long latencyMillis;
+        private final ScheduledExecutorService responder;
+
+        Recorder(int producers, int perProducer, long latencyMillis, ScheduledExecutorService responder) {
+            this.received = new AtomicIntegerArray[producers];
+            for (int i = 0; i < producers; i++) {
+                received[i] = new AtomicIntegerArray(perProducer);
+            }
+            this.latencyMillis = latencyMillis;
+            this.responder = responder;
+        }
+
+        LoggingRpc rpc() {
+            return (LoggingRpc) Proxy.newProxyInstance(LoggingRpc.class.getClassLoader(),
+                    new Class<?>[] {LoggingRpc.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "write" -> {
+                            record((WriteLogEntriesRequest) args[0]);
+                            if (latencyMillis == 0) {
+                                yield ApiFutures.immediateFuture(WriteLogEntriesResponse.getDefaultInstance());
+                            }
+                            SettableApiFuture<WriteLogEntriesResponse> response = SettableApiFuture.create();
+                            responder.schedule(() -> response.set(WriteLogEntriesResponse.getDefaultInstance()),
+                                    latencyMillis, TimeUnit.MILLISECONDS);
+                            yield response;
+                        }
+                        case "close" -> null;
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        case "toString" -> "StressTest.LoggingRpc";
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        private void record(WriteLogEntriesRequest request) {
+            for (com.google.logging.v2.LogEntry entry : request.getEntriesList()) {
+                String insertId = entry.getInsertId();
+                int separator = insertId.indexOf(':');
+                if (separator < 0) {
+                    unknown.increment(); // the diagnostic entry of the client library
+                    continue;
+                }
+                int producer = Integer.parseInt(insertId, 0, separator, 10);
+                int sequence = Integer.parseInt(insertId, separator + 1, insertId.length(), 10);
+                received[producer].incrementAndGet(sequence);
+            }
+        }
+
+        /**
+         * Returns the number of entries received at least once, of those not rejected by the write call.
+         */
+        long delivered(BitSet[] rejected) {
+            long delivered = 0;
+            for (int producer = 0; producer < received.length; producer++) {
+                for (int sequence = 0; sequence < received[producer].length(); sequence++) {
+                    if (received[producer].get(sequence) > 0 && !rejected[producer].get(sequence)) {
+                        delivered++;
+                    }
+                }
+            }
+            return delivered;
+        }
+
+        long duplicates() {
+            long duplicates = 0;
+            for (AtomicIntegerArray producer : received) {
+                for (int sequence = 0; sequence < producer.length(); sequence++) {
+                    duplicates += Math.max(0, producer.get(sequence) - 1);
+                }
+            }
+            return duplicates;
+        }
+    }
+
+    private record Result(Run run, double eventsPerSecond, long delivered, long duplicates, long dropped,
+                          long written, long stopMillis, boolean drained) {
+
+        long missing() {
+            return written - delivered - dropped;
+        }
+
+        boolean isPassed() {
+            return missing() == 0 && duplicates == 0 && (run.scenario != Scenario.STEADY || dropped == 0) && drained;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-9s %-12s %9d %,12.0f %,10d %,8d %,8d %,8d %,10d  %s", run.mode,
+                    run.scenario.name().toLowerCase(), run.producers, eventsPerSecond, delivered, dropped, missing(),
+                    duplicates, stopMillis, isPassed() ? "ok" : drained ? "FAILED" : "FAILED, not drained on stop");
+        }
+    }
+}
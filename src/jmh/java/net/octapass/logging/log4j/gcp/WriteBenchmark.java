@@ -0,0 +1,64 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GoogleCloudLoggingManager#writeLogEntry} against a {@code Logging} client that discards everything, and the
+ * stdout encoding writing to a discarding channel instead of the console.
+ */
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+    @Param({"direct", "buffered", "lanes", "ring", "offheap"})
+    public String mode;
+
+    private GoogleCloudLoggingManager manager;
+    private StructuredJsonWriter stdout;
+    private LogEntry entry;
+
+    @Setup
+    public void setUp() {
+        BufferSettings settings = switch (mode) {
+            case "buffered" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 1000,
+                    OverflowPolicy.BLOCK, null, 0, false, 0);
+            case "lanes" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 1000,
+                    OverflowPolicy.BLOCK, null, 0, true, 0);
+            case "ring" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 1000,
+                    OverflowPolicy.BLOCK, null, 65536, false, 0);
+            case "offheap" -> new BufferSettings(8192, 500, LogEntrySizes.MAX_REQUEST_BYTES, 1000,
+                    OverflowPolicy.BLOCK, null, 0, false, 64 << 20);
+            default -> null;
+        };
+        manager = BenchmarkEvents.manager(BenchmarkEvents.noopLogging(), false, settings);
+        stdout = new StructuredJsonWriter(Channels.newChannel(OutputStream.nullOutputStream()));
+        entry = BenchmarkEvents.appender(manager).logEntryFor(BenchmarkEvents.event(8, 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void writeLogEntry() {
+        manager.writeLogEntry(entry);
+    }
+
+    @Benchmark
+    public void stdoutJson() throws IOException {
+        stdout.write(entry);
+    }
+}
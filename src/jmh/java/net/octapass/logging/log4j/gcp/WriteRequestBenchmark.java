@@ -0,0 +1,90 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Logging;
+import com.google.cloud.logging.LoggingOptions;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turning a batch of entries into a serialized {@code WriteLogEntriesRequest}, through {@code Logging.write} or the
+ * direct transport. Each event carries a request-specific label next to the shared context; the bytes per entry are
+ * printed on tear down.
+ */
+@State(Scope.Benchmark)
+public class WriteRequestBenchmark {
+
+    @Param({"client", "direct"})
+    public String transport;
+
+    @Param({"1", "500"})
+    public int batchSize;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private Logging logging;
+    private LogEntryProtoWriter protoWriter;
+    private List<LogEntry> batch;
+
+    @Setup
+    public void setUp() {
+        LoggingOptions options = LoggingOptions.newBuilder()
+                .setProjectId("benchmark")
+                .setCredentials(NoCredentials.getInstance())
+                .setServiceRpcFactory(ignored -> BenchmarkEvents.serializingRpc(bytes))
+                .build();
+        logging = options.getService();
+        protoWriter = new LogEntryProtoWriter("benchmark", BenchmarkEvents.serializingRpc(bytes));
+        GoogleCloudLoggingAppender appender = BenchmarkEvents.appender(BenchmarkEvents.manager(logging, false, null));
+        batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(appender.logEntryFor(event(i)));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounters() {
+        bytes.reset();
+        entries.reset();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printBytesPerEntry() {
+        System.out.printf(" [%,.1f bytes/entry]", bytes.sum() / (double) Math.max(1, entries.sum()));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        logging.close();
+    }
+
+    @Benchmark
+    public void write() {
+        if (transport.equals("direct")) {
+            protoWriter.write(batch);
+        } else {
+            logging.write(batch);
+        }
+        entries.add(batch.size());
+    }
+
+    private static LogEvent event(int requestId) {
+        LogEvent event = BenchmarkEvents.event(8, 0);
+        SortedArrayStringMap contextData = new SortedArrayStringMap(event.getContextData());
+        contextData.putValue("requestId", "request-" + requestId);
+        return new Log4jLogEvent.Builder(event).setContextData(contextData).build();
+    }
+}
@@ -0,0 +1,49 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Tells the write failures worth retrying from those the API answers the same way however often it is asked.
+ */
+final class ApiErrors {
+
+    private static final Set<StatusCode.Code> REJECTED = EnumSet.of(StatusCode.Code.INVALID_ARGUMENT,
+            StatusCode.Code.PERMISSION_DENIED, StatusCode.Code.NOT_FOUND, StatusCode.Code.FAILED_PRECONDITION,
+            StatusCode.Code.OUT_OF_RANGE, StatusCode.Code.UNIMPLEMENTED);
+
+    private ApiErrors() {
+    }
+
+    /**
+     * Returns whether a write failed with a status that retrying the same request cannot change.
+     */
+    static boolean isRejected(Throwable failure) {
+        StatusCode.Code code = code(failure);
+        return code != null && REJECTED.contains(code);
+    }
+
+    /**
+     * Returns whether a write failed because of some of its entries, which the API writes the others of when
+     * partial success is requested.
+     */
+    static boolean isEntryRejected(Throwable failure) {
+        return code(failure) == StatusCode.Code.INVALID_ARGUMENT;
+    }
+
+    /**
+     * Returns the status of the first {@link ApiException} in the cause chain, the client library wrapping it in
+     * exceptions of its own, or {@code null} if there is none.
+     */
+    private static StatusCode.Code code(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiException apiException) {
+                return apiException.getStatusCode().getCode();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.Severity;
+
+/**
+ * Settings of the buffered write mode of {@link GoogleCloudLoggingManager}.
+ *
+ * @param bufferSize      capacity of the bounded queue entries are appended to
+ * @param batchSize       maximum number of entries sent in a single write
+ * @param maxBatchBytes   maximum estimated size of a single write, capped at the API request limit
+ * @param maxLingerMillis maximum time an entry waits in the queue for a batch to fill up
+ * @param overflowPolicy  what to do with a new entry when the queue is full
+ * @param dropSeverity    entries below this severity are dropped by {@link OverflowPolicy#DROP_BELOW_SEVERITY}
+ * @param ringBufferSize  size of the lock-free ring buffer in front of the queue, or {@code 0} to let application
+ *                        threads append to the queue directly; rounded up to a power of two
+ * @param severityLanes   whether the queue has a lane per {@link SeverityLane}, drained by priority
+ * @param offHeapBytes    size of the direct buffer the queue keeps encoded entries in, bounding it by bytes instead
+ *                        of {@code bufferSize}, or {@code 0} to queue the entries themselves
+ */
+record BufferSettings(int bufferSize,
+                      int batchSize,
+                      int maxBatchBytes,
+                      long maxLingerMillis,
+                      OverflowPolicy overflowPolicy,
+                      Severity dropSeverity,
+                      int ringBufferSize,
+                      boolean severityLanes,
+                      int offHeapBytes) {
+
+    BufferSettings {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be positive: " + maxBatchBytes);
+        }
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("maxLingerMillis must not be negative: " + maxLingerMillis);
+        }
+        if (ringBufferSize < 0 || ringBufferSize > 1 << 30) {
+            throw new IllegalArgumentException("ringBufferSize out of range: " + ringBufferSize);
+        }
+        if (offHeapBytes != 0 && offHeapBytes < MIN_OFF_HEAP_BYTES) {
+            throw new IllegalArgumentException("offHeapBytes must be 0 or at least " + MIN_OFF_HEAP_BYTES);
+        }
+        if (offHeapBytes != 0 && severityLanes) {
+            throw new IllegalArgumentException("severityLanes cannot be combined with an off-heap buffer");
+        }
+        batchSize = Math.min(batchSize, bufferSize);
+        maxBatchBytes = Math.min(maxBatchBytes, LogEntrySizes.MAX_REQUEST_BYTES);
+        if (overflowPolicy == null) {
+            overflowPolicy = OverflowPolicy.BLOCK;
+        }
+        if (dropSeverity == null) {
+            dropSeverity = Severity.WARNING;
+        }
+        if (ringBufferSize > 0) {
+            ringBufferSize = Integer.highestOneBit(ringBufferSize - 1) << 1;
+            ringBufferSize = Math.max(ringBufferSize, 1);
+        }
+    }
+
+    /**
+     * Smallest off-heap buffer, room for a few entries of the maximum size.
+     */
+    static final int MIN_OFF_HEAP_BYTES = 4 * LogEntrySizes.MAX_ENTRY_BYTES;
+
+    /**
+     * Largest entry the batcher lets through, larger ones are truncated.
+     */
+    int maxEntryBytes() {
+        return Math.min(maxBatchBytes, LogEntrySizes.MAX_ENTRY_BYTES);
+    }
+
+    boolean ringBuffered() {
+        return ringBufferSize > 0;
+    }
+
+    BufferSettings withOverflowPolicy(OverflowPolicy policy) {
+        return new BufferSettings(bufferSize, batchSize, maxBatchBytes, maxLingerMillis, policy, dropSeverity,
+                ringBufferSize, severityLanes, offHeapBytes);
+    }
+}
@@ -0,0 +1,69 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops writes to the API after {@code failureThreshold} consecutive failures, so that callers fail fast instead of
+ * queueing up behind an API that throttles or does not answer. While open, one write per probe interval is let
+ * through as a probe; the first write that succeeds closes the breaker again.
+ * <p>
+ * A closed breaker costs a volatile read per write and a write to the failure count only after failures.
+ */
+final class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long probeIntervalNanos;
+    private final Logger statusLogger;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong nextProbe = new AtomicLong();
+    private volatile boolean open;
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker, {@code 0} to never open it
+     */
+    CircuitBreaker(int failureThreshold, long probeIntervalMillis, Logger statusLogger) {
+        this.failureThreshold = failureThreshold;
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+        this.statusLogger = statusLogger;
+    }
+
+    /**
+     * Returns whether a write may go to the API: always while closed, and once per probe interval while open.
+     */
+    boolean tryAcquire() {
+        if (!open) {
+            return true;
+        }
+        long probe = nextProbe.get();
+        long now = System.nanoTime();
+        return now - probe >= 0 && nextProbe.compareAndSet(probe, now + probeIntervalNanos);
+    }
+
+    void onSuccess() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+        if (open) {
+            open = false;
+            statusLogger.info("Writes to Google Cloud Logging succeed again, closing the circuit breaker");
+        }
+    }
+
+    void onFailure() {
+        // only the failure that reaches the threshold opens the breaker, later ones find it open
+        if (failureThreshold > 0 && failures.incrementAndGet() == failureThreshold) {
+            nextProbe.set(System.nanoTime() + probeIntervalNanos);
+            open = true;
+            statusLogger.warn("{} consecutive writes to Google Cloud Logging failed, opening the circuit breaker "
+                    + "for {} ms", failureThreshold, TimeUnit.NANOSECONDS.toMillis(probeIntervalNanos));
+        }
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+}
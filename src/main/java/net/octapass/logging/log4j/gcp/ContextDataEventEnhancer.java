@@ -2,24 +2,173 @@ package net.octapass.logging.log4j.gcp;
 
 import com.google.cloud.logging.LogEntry;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.util.TriConsumer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ContextDataEventEnhancer takes values found in the MDC property map and adds them as labels to the
  * {@link LogEntry}. This {@link LoggingEventEnhancer} is turned on by default. If you wish to filter
  * which MDC values get added as labels to your {@link LogEntry}, implement a {@link LoggingEventEnhancer}
- * and add its classpath to your {@code log4j2.xml}. If any {@link LoggingEventEnhancer} is added
- * this class is no longer registered.
+ * and add it to your {@code log4j2.xml} as {@code <Enhancer class="..."/>}. If any {@link LoggingEventEnhancer} is
+ * added this class is no longer registered.
+ * <p>
+ * Which keys become labels can also be configured with a {@code ContextDataLabels} element in the appender:
+ * <pre>{@code
+ * <ContextDataLabels include="requestId, userId, http.*" exclude="http.cookie"
+ *                    rename="requestId=request_id, userId=user_id" maxValueLength="256"/>
+ * }</pre>
+ * Keys ending in {@code *} match by prefix, exclusions win over inclusions and values longer than
+ * {@code maxValueLength} are cut. The decision for each key is made once and remembered, so events are mapped with
+ * a single lookup per key, walking the context data in place.
  */
-final class ContextDataEventEnhancer implements LoggingEventEnhancer {
+@Plugin(name = "ContextDataLabels", category = Node.CATEGORY, printObject = true)
+public final class ContextDataEventEnhancer implements LoggingEventEnhancer {
+
+    private static final String EXCLUDED = new String("excluded"); // compared by identity
+    private static final String WILDCARD = "*";
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    private final Set<String> includedKeys;
+    private final String[] includedPrefixes;
+    private final Set<String> excludedKeys;
+    private final String[] excludedPrefixes;
+    private final Map<String, String> renames;
+    private final int maxValueLength;
+    private final Map<String, String> labelNames = new ConcurrentHashMap<>();
+    private final TriConsumer<String, Object, LogEntry.Builder> addLabel = this::addLabel;
+
+    ContextDataEventEnhancer() {
+        this(List.of(), List.of(), Map.of(), 0);
+    }
+
+    /**
+     * @param include        keys or key prefixes ending in {@code *} to add, all keys if empty
+     * @param exclude        keys or key prefixes ending in {@code *} to leave out
+     * @param renames        label names by key, for keys not to be used as label names as they are
+     * @param maxValueLength length after which values are cut, {@code 0} for no limit
+     */
+    ContextDataEventEnhancer(List<String> include, List<String> exclude, Map<String, String> renames,
+                             int maxValueLength) {
+        if (maxValueLength < 0) {
+            throw new IllegalArgumentException("maxValueLength must not be negative");
+        }
+        this.includedKeys = keys(include);
+        this.includedPrefixes = prefixes(include);
+        this.excludedKeys = keys(exclude);
+        this.excludedPrefixes = prefixes(exclude);
+        this.renames = Map.copyOf(renames);
+        this.maxValueLength = maxValueLength == 0 ? Integer.MAX_VALUE : maxValueLength;
+    }
+
+    @PluginFactory
+    public static ContextDataEventEnhancer createContextDataLabels(
+            @PluginAttribute("include") final String include,
+            @PluginAttribute("exclude") final String exclude,
+            @PluginAttribute("rename") final String rename,
+            @PluginAttribute("maxValueLength") final int maxValueLength) {
+        Map<String, String> renames = new HashMap<>();
+        for (String pair : split(rename)) {
+            int separator = pair.indexOf('=');
+            if (separator <= 0 || separator == pair.length() - 1) {
+                throw new IllegalArgumentException("Invalid rename '" + pair + "', expected key=label");
+            }
+            renames.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+        }
+        return new ContextDataEventEnhancer(split(include), split(exclude), renames, maxValueLength);
+    }
 
     @Override
     public void enhanceLogEntry(LogEntry.Builder builder, LogEvent e) {
-        for (Map.Entry<String, String> entry : e.getContextData().toMap().entrySet()) {
-            if (null != entry.getKey() && null != entry.getValue()) {
-                builder.addLabel(entry.getKey(), entry.getValue());
+        e.getContextData().forEach(addLabel, builder);
+    }
+
+    private void addLabel(String key, Object value, LogEntry.Builder builder) {
+        if (key == null || value == null) {
+            return;
+        }
+        String labelName = labelName(key);
+        if (labelName == EXCLUDED) {
+            return;
+        }
+        String text = String.valueOf(value);
+        if (text.length() > maxValueLength) {
+            int end = maxValueLength;
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            text = text.substring(0, end);
+        }
+        builder.addLabel(labelName, text);
+    }
+
+    private String labelName(String key) {
+        String labelName = labelNames.get(key);
+        if (labelName == null) {
+            labelName = isIncluded(key) ? renames.getOrDefault(key, key) : EXCLUDED;
+            if (labelNames.size() < MAX_CACHED_KEYS) {
+                labelNames.put(key, labelName);
+            }
+        }
+        return labelName;
+    }
+
+    private boolean isIncluded(String key) {
+        if (excludedKeys.contains(key) || startsWithAny(key, excludedPrefixes)) {
+            return false;
+        }
+        return includedKeys.isEmpty() && includedPrefixes.length == 0
+                || includedKeys.contains(key) || startsWithAny(key, includedPrefixes);
+    }
+
+    private static boolean startsWithAny(String key, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> keys(List<String> patterns) {
+        Set<String> keys = new HashSet<>();
+        for (String pattern : patterns) {
+            if (!pattern.endsWith(WILDCARD)) {
+                keys.add(pattern);
+            }
+        }
+        return Set.copyOf(keys);
+    }
+
+    private static String[] prefixes(List<String> patterns) {
+        List<String> prefixes = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (pattern.endsWith(WILDCARD)) {
+                prefixes.add(pattern.substring(0, pattern.length() - WILDCARD.length()));
+            }
+        }
+        return prefixes.toArray(new String[0]);
+    }
+
+    private static List<String> split(String list) {
+        List<String> items = new ArrayList<>();
+        if (list != null) {
+            for (String item : list.split(",")) {
+                if (!item.isBlank()) {
+                    items.add(item.trim());
+                }
             }
         }
+        return items;
     }
 }
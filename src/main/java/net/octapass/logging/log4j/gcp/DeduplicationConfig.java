@@ -0,0 +1,42 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+/**
+ * Collapsing of repeated events:
+ * <pre>{@code
+ * <Deduplicate windowMillis="1000" tableSize="1024"/>
+ * }</pre>
+ * Events with the same logger, level, message template and exception are written once per {@code windowMillis}.
+ * Repeats within the window are counted and reported in a single entry when the window ends, with
+ * {@code repeatCount}, {@code firstSeen} and {@code lastSeen} labels.
+ *
+ * @param windowMillis how long repeats of an event are collapsed after it was written
+ * @param tableSize    number of distinct events tracked at once, rounded up to a power of two
+ */
+@Plugin(name = "Deduplicate", category = Node.CATEGORY, printObject = true)
+public record DeduplicationConfig(long windowMillis, int tableSize) {
+
+    private static final long DEFAULT_WINDOW_MILLIS = 1000;
+    private static final int DEFAULT_TABLE_SIZE = 1024;
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    public DeduplicationConfig {
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("windowMillis must be at least 1");
+        }
+        if (tableSize < 1 || tableSize > MAX_TABLE_SIZE) {
+            throw new IllegalArgumentException("tableSize must be between 1 and " + MAX_TABLE_SIZE);
+        }
+    }
+
+    @PluginFactory
+    public static DeduplicationConfig createDeduplicationConfig(
+            @PluginAttribute(value = "windowMillis", defaultLong = DEFAULT_WINDOW_MILLIS) final long windowMillis,
+            @PluginAttribute(value = "tableSize", defaultInt = DEFAULT_TABLE_SIZE) final int tableSize) {
+        return new DeduplicationConfig(windowMillis, tableSize);
+    }
+}
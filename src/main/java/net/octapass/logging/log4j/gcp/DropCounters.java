@@ -0,0 +1,60 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention-free counters of discarded log entries, one per {@link DropReason} and one per {@link SeverityLane}.
+ */
+final class DropCounters {
+
+    private final LongAdder[] counters = new LongAdder[DropReason.values().length];
+    private final LongAdder[] laneCounters = new LongAdder[SeverityLane.all().length];
+    private final MetricsListener listener;
+
+    /**
+     * @param listener notified of every drop, or {@code null}
+     */
+    DropCounters(MetricsListener listener) {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < laneCounters.length; i++) {
+            laneCounters[i] = new LongAdder();
+        }
+        this.listener = listener;
+    }
+
+    void increment(DropReason reason, LogEntry entry) {
+        counters[reason.ordinal()].increment();
+        laneCounters[SeverityLane.of(entry).ordinal()].increment();
+        if (listener != null) {
+            listener.onDropped(reason);
+        }
+    }
+
+    /**
+     * Counts a drop of an entry whose severity is unknown, which counts towards no lane.
+     */
+    void increment(DropReason reason) {
+        counters[reason.ordinal()].increment();
+        if (listener != null) {
+            listener.onDropped(reason);
+        }
+    }
+
+    long get(DropReason reason) {
+        return counters[reason.ordinal()].sum();
+    }
+
+    Map<String, Long> byLane() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (SeverityLane lane : SeverityLane.all()) {
+            counts.put(lane.name(), laneCounters[lane.ordinal()].sum());
+        }
+        return counts;
+    }
+}
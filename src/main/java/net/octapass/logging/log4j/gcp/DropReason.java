@@ -0,0 +1,30 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * Why {@link GoogleCloudLoggingManager} discarded a log entry instead of sending it.
+ */
+public enum DropReason {
+    /** The buffer was full and the entry itself was discarded. */
+    QUEUE_FULL,
+    /** The entry was evicted from a full buffer to make room for a newer one. */
+    EVICTED,
+    /** The buffer was full and the entry was below the severity threshold. */
+    BELOW_SEVERITY,
+    /** The on-disk spill queue had no space left for the entry. */
+    SPILL_FULL,
+    /**
+     * The entry was spilled to disk but could not be decoded or failed its checksum when read back, its severity is
+     * unknown. A failed checksum is counted once for the rest of its segment, which cannot be read.
+     */
+    SPILL_CORRUPT,
+    /** The entry was spilled to disk and the API rejected it with a status that retrying cannot change. */
+    REJECTED,
+    /** The entry exceeded the per-entry API limit and could not be truncated enough. */
+    OVERSIZED,
+    /** The circuit breaker was open and failover to stdout is off. */
+    CIRCUIT_OPEN,
+    /** The buffer was full and the entry made room for one of a higher severity lane. */
+    SHED,
+    /** The entry was written after the manager stopped and failover to stdout is off. */
+    STOPPED
+}
@@ -0,0 +1,30 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LoggingEnhancer;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+/**
+ * A {@link LoggingEnhancer} or {@link LoggingEventEnhancer} loaded by class name. Mark a {@link LoggingEnhancer}
+ * {@code constant} if the labels it adds never change: it then runs once when the appender starts instead of for
+ * every event.
+ */
+@Plugin(name = "Enhancer", category = Node.CATEGORY, printObject = true)
+public record EnhancerConfig(String className, boolean constant) {
+
+    public EnhancerConfig(@Required @PluginAttribute("class") String className,
+                          @PluginAttribute("constant") boolean constant) {
+        this.className = className;
+        this.constant = constant;
+    }
+
+    @PluginFactory
+    public static EnhancerConfig createEnhancerConfig(
+            @Required @PluginAttribute("class") final String className,
+            @PluginAttribute("constant") final boolean constant) {
+        return new EnhancerConfig(className, constant);
+    }
+}
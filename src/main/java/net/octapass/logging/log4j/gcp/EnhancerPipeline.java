@@ -0,0 +1,92 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.LoggingEnhancer;
+import com.google.cloud.logging.Payload;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The enhancers of an appender, compiled once: constant enhancers are run up front into a template of labels, so
+ * that only the enhancers that depend on the event or the calling thread run per event.
+ */
+final class EnhancerPipeline {
+
+    private static final LogEntry EMPTY_ENTRY = LogEntry.of(Payload.StringPayload.of(""));
+
+    private final Map<String, String> constantLabels;
+    private final LoggingEnhancer[] loggingEnhancers;
+    private final LoggingEventEnhancer[] eventEnhancers;
+
+    private EnhancerPipeline(Map<String, String> constantLabels, List<LoggingEnhancer> loggingEnhancers,
+                             List<LoggingEventEnhancer> eventEnhancers) {
+        this.constantLabels = Map.copyOf(constantLabels);
+        this.loggingEnhancers = loggingEnhancers.toArray(new LoggingEnhancer[0]);
+        this.eventEnhancers = eventEnhancers.toArray(new LoggingEventEnhancer[0]);
+    }
+
+    /**
+     * Runs the constant enhancers and keeps the labels they add. A constant enhancer that turns out to change more
+     * than labels is kept as a per-event enhancer.
+     *
+     * @param constantEnhancers enhancers whose output depends on neither the event nor the calling thread
+     * @param loggingEnhancers  enhancers to run for every event, before the event enhancers
+     * @param eventEnhancers    enhancers to run for every event
+     */
+    static EnhancerPipeline compile(List<LoggingEnhancer> constantEnhancers, List<LoggingEnhancer> loggingEnhancers,
+                                    List<LoggingEventEnhancer> eventEnhancers, Logger statusLogger) {
+        Map<String, String> constantLabels = new HashMap<>();
+        List<LoggingEnhancer> perEvent = new ArrayList<>();
+        for (LoggingEnhancer enhancer : constantEnhancers) {
+            LogEntry.Builder template = EMPTY_ENTRY.toBuilder();
+            enhancer.enhanceLogEntry(template);
+            LogEntry enhanced = template.build();
+            if (enhanced.toBuilder().clearLabels().build().equals(EMPTY_ENTRY)) {
+                constantLabels.putAll(enhanced.getLabels());
+            } else {
+                statusLogger.warn("Enhancer {} changes more than labels, running it for every event",
+                        enhancer.getClass().getName());
+                perEvent.add(enhancer);
+            }
+        }
+        perEvent.addAll(loggingEnhancers);
+        return new EnhancerPipeline(constantLabels, perEvent, eventEnhancers);
+    }
+
+    /**
+     * Sets the constant labels, replacing any labels already set.
+     */
+    void setConstantLabels(LogEntry.Builder builder) {
+        if (!constantLabels.isEmpty()) {
+            builder.setLabels(constantLabels);
+        }
+    }
+
+    /**
+     * Passes the project of the appender, once known, to the enhancers that build resource names from it.
+     */
+    void useProjectId(String projectId) {
+        for (LoggingEventEnhancer enhancer : eventEnhancers) {
+            if (enhancer instanceof TraceLoggingEventEnhancer traceEnhancer) {
+                traceEnhancer.useProjectId(projectId);
+            }
+        }
+    }
+
+    /**
+     * Runs the per-event enhancers.
+     */
+    void enhance(LogEntry.Builder builder, LogEvent event) {
+        for (LoggingEnhancer enhancer : loggingEnhancers) {
+            enhancer.enhanceLogEntry(builder);
+        }
+        for (LoggingEventEnhancer enhancer : eventEnhancers) {
+            enhancer.enhanceLogEntry(builder, event);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collapses repeated events within a window, configured by {@link DeduplicationConfig}.
+ * <p>
+ * Events are identified by a 64-bit fingerprint of logger, level, message template and exception. The table of
+ * tracked events has a fixed size and is indexed by fingerprint, so memory stays flat whatever the number of
+ * distinct events: an event whose slot is taken by another one evicts it, reporting its repeats early.
+ * Counting a repeat is a single atomic increment.
+ */
+final class EventDeduplicator {
+
+    static final String REPEAT_COUNT_KEY = "repeatCount";
+    static final String FIRST_SEEN_KEY = "firstSeen";
+    static final String LAST_SEEN_KEY = "lastSeen";
+
+    private final long windowMillis;
+    private final AtomicReferenceArray<Slot> slots;
+    private final int mask;
+    private final AtomicLong nextSweepMillis;
+
+    EventDeduplicator(DeduplicationConfig config) {
+        this.windowMillis = config.windowMillis();
+        int size = Integer.highestOneBit(Math.max(1, config.tableSize() - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.nextSweepMillis = new AtomicLong(System.currentTimeMillis() + windowMillis);
+    }
+
+    long fingerprint(LogEvent event) {
+        long hash = event.getThrown() != null
+                ? StackTraceRenderer.fingerprint(event.getThrown(), Integer.MAX_VALUE)
+                : StackTraceRenderer.FNV_OFFSET_BASIS;
+        hash = StackTraceRenderer.mix(hash, String.valueOf(event.getLoggerName()).hashCode());
+        hash = StackTraceRenderer.mix(hash, event.getLevel().intLevel());
+        Message message = event.getMessage();
+        String template = message.getFormat();
+        return StackTraceRenderer.mix(hash, (template != null ? template : message.getFormattedMessage()).hashCode());
+    }
+
+    /**
+     * Counts the event as a repeat if an event with the same fingerprint was written less than a window ago.
+     *
+     * @return {@code true} if the event is a repeat and must not be written
+     */
+    boolean isRepeat(long fingerprint, long timeMillis) {
+        Slot slot = slots.get(index(fingerprint));
+        return slot != null && slot.fingerprint == fingerprint && timeMillis - slot.firstSeen < windowMillis
+                && slot.repeat(timeMillis);
+    }
+
+    /**
+     * Starts tracking repeats of an event that was written.
+     *
+     * @return the summary of the event evicted from the slot, or {@code null}
+     */
+    LogEntry track(long fingerprint, LogEntry entry, long timeMillis) {
+        Slot previous = slots.getAndSet(index(fingerprint), new Slot(fingerprint, entry, timeMillis));
+        return previous != null ? previous.close() : null;
+    }
+
+    /**
+     * Returns the summaries of events whose window has ended if a sweep is due, for a single caller only.
+     */
+    List<LogEntry> pollExpired(long nowMillis) {
+        long next = nextSweepMillis.get();
+        if (nowMillis < next || !nextSweepMillis.compareAndSet(next, nowMillis + windowMillis)) {
+            return List.of();
+        }
+        return sweep(nowMillis - windowMillis);
+    }
+
+    /**
+     * Stops tracking all events and returns the summaries of those that were repeated.
+     */
+    List<LogEntry> drain() {
+        return sweep(Long.MAX_VALUE);
+    }
+
+    private List<LogEntry> sweep(long firstSeenBefore) {
+        List<LogEntry> summaries = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.firstSeen <= firstSeenBefore && slots.compareAndSet(i, slot, null)) {
+                LogEntry summary = slot.close();
+                if (summary != null) {
+                    summaries.add(summary);
+                }
+            }
+        }
+        return summaries;
+    }
+
+    private int index(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static final class Slot {
+        private static final long CLOSED = Long.MIN_VALUE / 2;
+
+        private final long fingerprint;
+        private final LogEntry entry;
+        private final long firstSeen;
+        private final AtomicLong repeats = new AtomicLong();
+        private volatile long lastSeen;
+
+        Slot(long fingerprint, LogEntry entry, long firstSeen) {
+            this.fingerprint = fingerprint;
+            this.entry = entry;
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+
+        boolean repeat(long timeMillis) {
+            if (repeats.getAndIncrement() < 0) {
+                return false; // evicted in the meantime, write the event instead
+            }
+            if (timeMillis > lastSeen) {
+                lastSeen = timeMillis; // may lose a race to an earlier time, which is close enough
+            }
+            return true;
+        }
+
+        /**
+         * Stops counting repeats and returns their summary, or {@code null} if there were none.
+         */
+        LogEntry close() {
+            long count = repeats.getAndAdd(CLOSED);
+            if (count <= 0) {
+                return null;
+            }
+            Instant last = Instant.ofEpochMilli(lastSeen);
+            return entry.toBuilder()
+                    .setTimestamp(last)
+                    .addLabel(REPEAT_COUNT_KEY, String.valueOf(count))
+                    .addLabel(FIRST_SEEN_KEY, Instant.ofEpochMilli(firstSeen).toString())
+                    .addLabel(LAST_SEEN_KEY, last.toString())
+                    .build();
+        }
+    }
+}
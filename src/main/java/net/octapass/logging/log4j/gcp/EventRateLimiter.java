@@ -0,0 +1,140 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.Severity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free sampling and rate limiting of events by logger and severity, configured by {@link RateLimitConfig}.
+ * Events of {@link Severity#ERROR} and above always pass.
+ * <p>
+ * Each logger and severity has a token bucket in the form of a theoretical arrival time (GCRA): an event passes if
+ * the bucket would not overflow, which takes a single CAS. Buckets are found by logger name in a
+ * {@link ConcurrentHashMap}, then by severity in an array, so checking an event allocates nothing once the buckets
+ * exist.
+ */
+final class EventRateLimiter {
+
+    private static final int MAX_LOGGERS = 4096;
+    private static final String OTHER_LOGGERS = "*"; // shares buckets once MAX_LOGGERS is reached
+    private static final int SEVERITIES = Severity.values().length;
+
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final double[] sampleRates = new double[SEVERITIES];
+    private final long summaryIntervalMillis;
+    private final Map<String, AtomicReferenceArray<Bucket>> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSummaryMillis;
+
+    EventRateLimiter(RateLimitConfig config) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / config.eventsPerSecond()));
+        this.capacityNanos = intervalNanos * config.burst();
+        Arrays.fill(sampleRates, 1);
+        for (Map.Entry<Severity, Double> sampleRate : config.sampleRates().entrySet()) {
+            sampleRates[sampleRate.getKey().ordinal()] = sampleRate.getValue();
+        }
+        this.summaryIntervalMillis = TimeUnit.SECONDS.toMillis(config.summaryIntervalSeconds());
+        this.nextSummaryMillis = new AtomicLong(System.currentTimeMillis() + summaryIntervalMillis);
+    }
+
+    /**
+     * Returns whether an event of the given logger and severity may be logged, counting it as suppressed if not.
+     */
+    boolean tryAcquire(String loggerName, Severity severity) {
+        if (severity.compareTo(Severity.ERROR) >= 0) {
+            return true;
+        }
+        Bucket bucket = bucket(loggerName == null ? "" : loggerName, severity);
+        double sampleRate = sampleRates[severity.ordinal()];
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate || !bucket.tryAcquire()) {
+            bucket.suppressed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the events suppressed since the last summary if a summary is due, for a single caller only, or an
+     * empty list.
+     */
+    List<Suppressed> pollSummary(long nowMillis) {
+        long next = nextSummaryMillis.get();
+        if (nowMillis < next || !nextSummaryMillis.compareAndSet(next, nowMillis + summaryIntervalMillis)) {
+            return List.of();
+        }
+        return drainSuppressed();
+    }
+
+    /**
+     * Returns the events suppressed since the last summary.
+     */
+    List<Suppressed> drainSuppressed() {
+        List<Suppressed> summary = new ArrayList<>();
+        for (Map.Entry<String, AtomicReferenceArray<Bucket>> entry : buckets.entrySet()) {
+            AtomicReferenceArray<Bucket> loggerBuckets = entry.getValue();
+            for (int i = 0; i < SEVERITIES; i++) {
+                Bucket bucket = loggerBuckets.get(i);
+                long count = bucket == null ? 0 : bucket.suppressed.sumThenReset();
+                if (count > 0) {
+                    summary.add(new Suppressed(entry.getKey(), Severity.values()[i], count));
+                }
+            }
+        }
+        return summary;
+    }
+
+    private Bucket bucket(String loggerName, Severity severity) {
+        AtomicReferenceArray<Bucket> loggerBuckets = buckets.get(loggerName);
+        if (loggerBuckets == null) {
+            String key = buckets.size() < MAX_LOGGERS ? loggerName : OTHER_LOGGERS;
+            loggerBuckets = buckets.computeIfAbsent(key, k -> new AtomicReferenceArray<>(SEVERITIES));
+        }
+        Bucket bucket = loggerBuckets.get(severity.ordinal());
+        if (bucket == null) {
+            loggerBuckets.compareAndSet(severity.ordinal(), null, new Bucket(intervalNanos, capacityNanos));
+            bucket = loggerBuckets.get(severity.ordinal());
+        }
+        return bucket;
+    }
+
+    /**
+     * Events of a logger and severity suppressed since the previous summary.
+     */
+    record Suppressed(String loggerName, Severity severity, long count) {
+    }
+
+    private static final class Bucket {
+        private final long intervalNanos;
+        private final long capacityNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+        private final LongAdder suppressed = new LongAdder();
+
+        Bucket(long intervalNanos, long capacityNanos) {
+            this.intervalNanos = intervalNanos;
+            this.capacityNanos = capacityNanos;
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long arrival = theoreticalArrival.get();
+                long next = Math.max(arrival - now, 0) + intervalNanos;
+                if (next > capacityNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(arrival, now + next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flushes entries written without a buffer from a background thread, lingering for a time that follows the load:
+ * <ul>
+ *     <li>when fewer than one entry is expected to arrive during a flush, the flush starts right away;</li>
+ *     <li>otherwise it waits long enough to gather a full batch at the observed arrival rate, at least one flush
+ *     latency and at most {@code maxLatencyMillis};</li>
+ *     <li>entries that must not wait, such as errors, have the flush start right away, without holding up the
+ *     thread that logged them.</li>
+ * </ul>
+ * Arrival rate and flush latency are smoothed over past flushes; the latency follows drops at once, so that a slow
+ * first write, while the channel connects, does not hold later ones back. Only one flush is pending at a time, so
+ * entries arriving while a flush runs are coalesced into the next one. Recording an arrival costs an increment and a
+ * read.
+ */
+final class FlushScheduler {
+
+    private static final int TARGET_BATCH_SIZE = 500;
+    private static final double SMOOTHING = 0.3;
+
+    private final long maxLatencyNanos;
+    private final Runnable flush;
+    private final Logger statusLogger;
+    private final Thread flushThread;
+    private final LongAdder arrivals = new LongAdder();
+    private final AtomicBoolean armed = new AtomicBoolean();
+    private volatile long deadline;
+    private volatile double arrivalsPerNano;
+    private volatile long flushLatencyNanos;
+    private volatile boolean running = true;
+
+    /**
+     * @param flush sends the pending entries and waits until they are acknowledged
+     */
+    FlushScheduler(String name, long maxLatencyMillis, Runnable flush, Logger statusLogger) {
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.flush = flush;
+        this.statusLogger = statusLogger;
+        this.flushThread = new Log4jThread(this::run, "GoogleCloudLoggingManager-FlushThread-" + name);
+        this.flushThread.setDaemon(true); // avoid blocking JVM shutdown
+        this.flushThread.start();
+    }
+
+    /**
+     * Records a new pending entry and schedules a flush unless one is pending already.
+     */
+    void onEntry() {
+        arrivals.increment();
+        if (!armed.get() && armed.compareAndSet(false, true)) {
+            deadline = System.nanoTime() + lingerNanos();
+            LockSupport.unpark(flushThread);
+        }
+    }
+
+    /**
+     * Records a new pending entry that must not wait, and starts a flush right away, pulling in a pending one.
+     */
+    void onUrgentEntry() {
+        arrivals.increment();
+        deadline = System.nanoTime();
+        armed.set(true);
+        LockSupport.unpark(flushThread);
+    }
+
+    private long lingerNanos() {
+        double rate = arrivalsPerNano;
+        long latency = flushLatencyNanos;
+        if (rate * latency < 1) {
+            return 0;
+        }
+        long fill = (long) (TARGET_BATCH_SIZE / rate);
+        return Math.min(maxLatencyNanos, Math.max(latency, fill));
+    }
+
+    /**
+     * Stops the flush thread; flushing what is left is up to the caller.
+     */
+    void stop(long timeout, TimeUnit timeUnit) {
+        running = false;
+        LockSupport.unpark(flushThread);
+        try {
+            flushThread.join(timeUnit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long windowStart = System.nanoTime();
+        while (running) {
+            if (!armed.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                continue;
+            }
+            armed.set(false); // entries arriving from here on schedule the next flush
+            long start = System.nanoTime();
+            try {
+                flush.run();
+            } catch (RuntimeException e) {
+                statusLogger.error("Failed to flush log entries to Google Cloud Logging", e);
+            }
+            long end = System.nanoTime();
+            flushLatencyNanos = smoothLatency(flushLatencyNanos, end - start);
+            double rate = arrivals.sumThenReset() / (double) Math.max(1, end - windowStart);
+            arrivalsPerNano = arrivalsPerNano == 0 ? rate : arrivalsPerNano + SMOOTHING * (rate - arrivalsPerNano);
+            windowStart = end;
+        }
+    }
+
+    private static long smoothLatency(long average, long sample) {
+        return average == 0 || sample < average ? sample : average + (long) (SMOOTHING * (sample - average));
+    }
+}
@@ -2,7 +2,8 @@ package net.octapass.logging.log4j.gcp;
 
 import com.google.cloud.MonitoredResource;
 import com.google.cloud.logging.*;
-import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
 import io.grpc.LoadBalancerRegistry;
 import io.grpc.internal.PickFirstLoadBalancerProvider;
 import org.apache.logging.log4j.Level;
@@ -18,17 +19,25 @@ import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginNode;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
-import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
-import org.apache.logging.log4j.core.impl.ThrowableProxy;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.Constants;
 import org.apache.logging.log4j.core.util.Loader;
+import org.apache.logging.log4j.core.util.Log4jThread;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.StringBuilders;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Google Cloud Logging Appender for Apache Log4J2.
@@ -51,16 +60,30 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
     private static final String LEVEL_NAME_KEY = "levelName";
     private static final String LEVEL_VALUE_KEY = "levelValue";
     private static final String LOGGER_NAME_KEY = "loggerName";
-    private static final List<LoggingEventEnhancer> DEFAULT_LOGGING_EVENT_ENHANCERS =
-            ImmutableList.of(new ContextDataEventEnhancer());
-
-    private final GoogleCloudLoggingManager manager;
+    private static final String SUPPRESSED_COUNT_KEY = "suppressedCount";
+    private static final String SUPPRESSED_SEVERITY_KEY = "suppressedSeverity";
+    private static final String PROJECT_ID_LABEL = "project_id";
+    private static final String MESSAGE_KEY = "message";
+    private static final String TYPE_KEY = "@type";
+    private static final Value TYPE_VALUE = Value.newBuilder().setStringValue(TYPE).build();
+    private static final Map<Level, String> LEVEL_VALUES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<StringBuilder> PAYLOAD_BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(Constants.INITIAL_REUSABLE_MESSAGE_SIZE));
+    private static final int DEFAULT_MAX_PAYLOAD_BYTES = 200 * 1024;
+    private static final int DEFAULT_STACK_TRACE_CACHE_SIZE = 256;
+
+    private volatile GoogleCloudLoggingManager manager;
     private final String gcpLogName;
-    private final MonitoredResource monitoredResource;
-    private final List<LoggingEnhancer> loggingEnhancers;
-    private final List<LoggingEventEnhancer> loggingEventEnhancers;
-    private final Set<String> enhancerClassNames = new HashSet<>();
-    private final Set<String> loggingEventEnhancerClassNames = new HashSet<>();
+    private final LogRouter router;
+    private volatile MonitoredResource monitoredResource;
+    private final StartupBuffer startup;
+    private final EnhancerPipeline enhancers;
+    private final EventRateLimiter rateLimiter;
+    private final EventDeduplicator deduplicator;
+    private final LayoutEncoder layoutEncoder;
+    private final PayloadType payloadType;
+    private final StackTraceRenderer stackTraceRenderer;
+    private final int maxPayloadBytes;
 
 
     protected GoogleCloudLoggingAppender(GoogleCloudLoggingManager manager,
@@ -71,17 +94,52 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
                                          boolean ignoreExceptions,
                                          Property[] properties,
                                          MonitoredResource monitoredResource) {
-        super(name, filter, layout, ignoreExceptions, properties);
+        this(manager, name, gcpLogName, filter, layout, ignoreExceptions, properties, monitoredResource,
+                new StackTraceRenderer(0, 0, DEFAULT_MAX_PAYLOAD_BYTES, DEFAULT_STACK_TRACE_CACHE_SIZE),
+                DEFAULT_MAX_PAYLOAD_BYTES, defaultEnhancers(), null, null, PayloadType.JSON, null, null);
+    }
+
+    /**
+     * @param manager           the manager, or {@code null} until {@link #startWriting}
+     * @param layout            renders the payload, or {@code null} for the message and stack trace
+     * @param monitoredResource the resource, or {@code null} along with the manager
+     * @param startup           holds entries until the manager is started, if there is none yet
+     * @param router            picks the log of each event, or {@code null} to write all of them to {@code gcpLogName}
+     */
+    GoogleCloudLoggingAppender(GoogleCloudLoggingManager manager,
+                               String name,
+                               String gcpLogName,
+                               Filter filter,
+                               Layout<? extends Serializable> layout,
+                               boolean ignoreExceptions,
+                               Property[] properties,
+                               MonitoredResource monitoredResource,
+                               StackTraceRenderer stackTraceRenderer,
+                               int maxPayloadBytes,
+                               EnhancerPipeline enhancers,
+                               EventRateLimiter rateLimiter,
+                               EventDeduplicator deduplicator,
+                               PayloadType payloadType,
+                               StartupBuffer startup,
+                               LogRouter router) {
+        // reports the default layout without a configured one, as before layouts rendered the payload
+        super(name, filter, layout != null ? layout : PatternLayout.createDefaultLayout(), ignoreExceptions,
+                properties);
         this.manager = manager;
+        this.startup = startup;
+        this.stackTraceRenderer = stackTraceRenderer;
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.enhancers = enhancers;
+        this.rateLimiter = rateLimiter;
+        this.deduplicator = deduplicator;
+        this.layoutEncoder = layout != null ? new LayoutEncoder(layout, LogEntrySizes.TRUNCATION_MARKER) : null;
+        this.payloadType = payloadType;
         this.monitoredResource = monitoredResource;
         this.gcpLogName = gcpLogName;
-
-        loggingEnhancers = new ArrayList<>();
-        List<LoggingEnhancer> resourceEnhancers = MonitoredResourceUtil.getResourceEnhancers();
-        loggingEnhancers.addAll(resourceEnhancers);
-        loggingEnhancers.addAll(getLoggingEnhancers());
-        loggingEventEnhancers = new ArrayList<>();
-        loggingEventEnhancers.addAll(getLoggingEventEnhancers());
+        this.router = router;
+        if (monitoredResource != null) {
+            enhancers.useProjectId(monitoredResource.getLabels().get(PROJECT_ID_LABEL));
+        }
     }
 
     /**
@@ -89,43 +147,124 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
      */
     @Override
     public void append(LogEvent event) {
-        manager.writeLogEntry(logEntryFor(event));
-        if (event.isEndOfBatch()) {
-            manager.flush();
+        if (isWithinRateLimit(event)) {
+            if (deduplicator == null) {
+                write(logEntryFor(event));
+            } else {
+                writeDeduplicated(event);
+            }
         }
     }
 
-    private List<LoggingEnhancer> getLoggingEnhancers() {
-        return getEnhancers(enhancerClassNames, LoggingEnhancer.class);
+    private boolean isWithinRateLimit(LogEvent event) {
+        if (rateLimiter == null) {
+            return true;
+        }
+        writeSuppressedSummary(rateLimiter.pollSummary(event.getTimeMillis()));
+        return rateLimiter.tryAcquire(event.getLoggerName(), severityFor(event.getLevel()));
     }
 
-    private List<LoggingEventEnhancer> getLoggingEventEnhancers() {
-        if (loggingEventEnhancerClassNames.isEmpty()) {
-            return DEFAULT_LOGGING_EVENT_ENHANCERS;
+    private void writeDeduplicated(LogEvent event) {
+        long timeMillis = event.getTimeMillis();
+        writeEntries(deduplicator.pollExpired(timeMillis));
+        long fingerprint = deduplicator.fingerprint(event);
+        if (deduplicator.isRepeat(fingerprint, timeMillis)) {
+            return;
+        }
+        LogEntry entry = logEntryFor(event);
+        LogEntry evicted = deduplicator.track(fingerprint, entry, timeMillis);
+        if (evicted != null) {
+            write(evicted);
+        }
+        write(entry);
+    }
+
+    private void writeEntries(List<LogEntry> entries) {
+        for (LogEntry entry : entries) {
+            write(entry);
+        }
+    }
+
+    /**
+     * Writes an entry to the manager, or holds it until there is one. An entry without a resource was created
+     * before the resource was detected.
+     */
+    private void write(LogEntry entry) {
+        GoogleCloudLoggingManager current = manager;
+        if (startup != null && (current == null || entry.getResource() == null)) {
+            current = startup.hold(entry);
+            if (current == null) {
+                return;
+            }
+            entry = entry.toBuilder().setResource(monitoredResource).build();
+        }
+        current.writeLogEntry(entry);
+    }
+
+    /**
+     * Starts writing to the manager once the resource is detected, with the entries held until then. A manager
+     * that comes too late, after the appender stopped, is released again.
+     */
+    void startWriting(GoogleCloudLoggingManager manager, MonitoredResource monitoredResource) {
+        this.monitoredResource = monitoredResource;
+        enhancers.useProjectId(monitoredResource.getLabels().get(PROJECT_ID_LABEL));
+        if (startup.start(manager, monitoredResource)) {
+            this.manager = manager;
         } else {
-            return getEnhancers(loggingEventEnhancerClassNames, LoggingEventEnhancer.class);
+            manager.stop(0, TimeUnit.MILLISECONDS);
         }
     }
 
-    private <T> List<T> getEnhancers(Set<String> classNames, Class<T> classOfT) {
-        List<T> enhancers = new ArrayList<>();
-        if (classNames != null) {
-            for (String className : classNames) {
-                if (className != null) {
-                    try {
-                        T enhancer =
-                                Loader.loadClass(className.trim())
-                                        .asSubclass(classOfT)
-                                        .getDeclaredConstructor()
-                                        .newInstance();
-                        enhancers.add(enhancer);
-                    } catch (Exception ex) {
-                        // invalid className: ignore
-                    }
-                }
+    /**
+     * Writes an entry for each logger and severity the rate limiter suppressed events of. The entries are built
+     * without an event, so that they carry nothing of the context of the thread that happens to write them.
+     */
+    private void writeSuppressedSummary(List<EventRateLimiter.Suppressed> summary) {
+        for (EventRateLimiter.Suppressed suppressed : summary) {
+            String text = "Suppressed " + suppressed.count() + " " + suppressed.severity() + " events from logger "
+                    + suppressed.loggerName();
+            Payload<?> payload = payloadType == PayloadType.TEXT ? Payload.StringPayload.of(text)
+                    : Payload.JsonPayload.of(Struct.newBuilder()
+                            .putFields(MESSAGE_KEY, Value.newBuilder().setStringValue(text).build())
+                            .build());
+            LogRouter.Target route = router != null ? router.route(suppressed.loggerName()) : null;
+            write(LogEntry.newBuilder(payload)
+                    .setLogName(route != null ? route.logName() : gcpLogName)
+                    .setTimestamp(Instant.now())
+                    .setSeverity(Severity.WARNING)
+                    .setResource(monitoredResource)
+                    .addLabel(SUPPRESSED_COUNT_KEY, String.valueOf(suppressed.count()))
+                    .addLabel(SUPPRESSED_SEVERITY_KEY, suppressed.severity().name())
+                    .build());
+        }
+    }
+
+    /**
+     * Sorts the enhancers of the detected resource: the trace enhancer reads per-thread state, the others only add
+     * labels read from the environment. Only App Engine has any, and detecting the resource type takes a request
+     * to the metadata server, so it is skipped without the App Engine environment.
+     */
+    private static void addResourceEnhancers(List<LoggingEnhancer> constantEnhancers,
+                                             List<LoggingEnhancer> loggingEnhancers) {
+        if (System.getenv("GAE_INSTANCE") == null || System.getenv("GAE_SERVICE") == null
+                || System.getenv("GAE_VERSION") == null) {
+            return;
+        }
+        for (LoggingEnhancer enhancer : MonitoredResourceUtil.getResourceEnhancers()) {
+            if (enhancer instanceof TraceLoggingEnhancer) {
+                loggingEnhancers.add(enhancer);
+            } else {
+                constantEnhancers.add(enhancer);
             }
         }
-        return enhancers;
+    }
+
+    private static EnhancerPipeline defaultEnhancers() {
+        List<LoggingEnhancer> constantEnhancers = new ArrayList<>();
+        List<LoggingEnhancer> loggingEnhancers = new ArrayList<>();
+        addResourceEnhancers(constantEnhancers, loggingEnhancers);
+        return EnhancerPipeline.compile(constantEnhancers, loggingEnhancers, List.of(new ContextDataEventEnhancer()),
+                LOGGER);
     }
 
     /**
@@ -143,7 +282,19 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
     public boolean stop(final long timeout, final TimeUnit timeUnit) {
         setStopping();
         boolean stopped = super.stop(timeout, timeUnit, false);
-        stopped &= manager.stop(timeout, timeUnit);
+        if (startup != null) {
+            stopped &= startup.stop(timeout, timeUnit);
+        }
+        if (rateLimiter != null) {
+            writeSuppressedSummary(rateLimiter.drainSuppressed());
+        }
+        if (deduplicator != null) {
+            writeEntries(deduplicator.drain());
+        }
+        GoogleCloudLoggingManager current = manager;
+        if (current != null) {
+            stopped &= current.stop(timeout, timeUnit);
+        }
         setStopped();
         return stopped;
     }
@@ -191,76 +342,119 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
     }
 
 
-    private LogEntry logEntryFor(LogEvent event) {
-        StringBuilder payload = new StringBuilder().append(event.getMessage().getFormattedMessage()).append('\n');
-        writeStack(event.getThrownProxy(), "", payload);
-
+    LogEntry logEntryFor(LogEvent event) {
         Level level = event.getLevel();
         Severity severity = severityFor(level);
-
-        Map<String, Object> jsonContent = new HashMap<>();
-        jsonContent.put("message", payload.toString().trim());
-        if (severity == Severity.ERROR) {
-            jsonContent.put("@type", TYPE);
-        }
+        LogRouter.Target route = router != null ? router.route(event) : null;
 
         LogEntry.Builder builder =
-                LogEntry.newBuilder(Payload.JsonPayload.of(jsonContent))
-                        .setLogName(gcpLogName)
+                LogEntry.newBuilder(payloadFor(event, severity))
+                        .setLogName(route != null ? route.logName() : gcpLogName)
                         .setTimestamp(getTimestamp(event))
                         .setSeverity(severity)
                         .setResource(monitoredResource);
 
 
+        enhancers.setConstantLabels(builder);
+        if (route != null) {
+            route.addLabels(builder);
+        }
         builder
-                .addLabel(LEVEL_NAME_KEY, level.toString())
-                .addLabel(LEVEL_VALUE_KEY, String.valueOf(level.intLevel()))
+                .addLabel(LEVEL_NAME_KEY, level.name())
+                .addLabel(LEVEL_VALUE_KEY, LEVEL_VALUES.computeIfAbsent(level, l -> String.valueOf(l.intLevel())))
                 .addLabel(LOGGER_NAME_KEY, event.getLoggerName());
 
         if (event.isIncludeLocation()) {
             builder.setSourceLocation(getSourceLocation(event));
         }
 
-        if (loggingEnhancers != null) {
-            for (LoggingEnhancer enhancer : loggingEnhancers) {
-                enhancer.enhanceLogEntry(builder);
+        enhancers.enhance(builder, event);
+
+        return builder.build();
+    }
+
+    /**
+     * Renders the event with the layout if there is one, otherwise as message and stack trace, and wraps it as
+     * configured by the payload type.
+     */
+    private Payload<?> payloadFor(LogEvent event, Severity severity) {
+        StringBuilder payload = payloadBuffer();
+        String text;
+        if (layoutEncoder != null) {
+            text = layoutEncoder.encode(event, payload, maxPayloadBytes);
+        } else {
+            Message message = event.getMessage();
+            if (message instanceof StringBuilderFormattable formattable) {
+                formattable.formatTo(payload);
+            } else {
+                payload.append(message.getFormattedMessage());
             }
+            payload.append('\n');
+            stackTraceRenderer.render(event, payload);
+            truncate(payload, maxPayloadBytes);
+            text = trimmed(payload);
+        }
+        if (payloadType == PayloadType.TEXT) {
+            return Payload.StringPayload.of(text);
         }
 
-        if (loggingEventEnhancers != null) {
-            for (LoggingEventEnhancer enhancer : loggingEventEnhancers) {
-                enhancer.enhanceLogEntry(builder, event);
-            }
+        Struct.Builder jsonContent = Struct.newBuilder();
+        if (layoutEncoder == null || !layoutEncoder.isJson() || !JsonStructParser.merge(text, jsonContent)) {
+            jsonContent.putFields(MESSAGE_KEY, Value.newBuilder().setStringValue(text).build());
         }
+        if (severity == Severity.ERROR && !jsonContent.containsFields(TYPE_KEY)) {
+            jsonContent.putFields(TYPE_KEY, TYPE_VALUE);
+        }
+        return Payload.JsonPayload.of(jsonContent.build());
+    }
 
-        return builder.build();
+    private static StringBuilder payloadBuffer() {
+        if (!Constants.ENABLE_THREADLOCALS) {
+            return new StringBuilder(Constants.INITIAL_REUSABLE_MESSAGE_SIZE);
+        }
+        StringBuilder payload = PAYLOAD_BUFFER.get();
+        StringBuilders.trimToMaxSize(payload, Constants.MAX_REUSABLE_MESSAGE_SIZE);
+        payload.setLength(0);
+        return payload;
     }
 
-    static void writeStack(ThrowableProxy throwProxy, String prefix, StringBuilder payload) {
-        if (throwProxy == null) {
-            return;
+    /**
+     * Same as {@code payload.toString().trim()}, without the intermediate copy.
+     */
+    static String trimmed(StringBuilder payload) {
+        int start = 0;
+        int end = payload.length();
+        while (start < end && payload.charAt(start) <= ' ') {
+            start++;
         }
-        payload
-                .append(prefix)
-                .append(throwProxy.getName())
-                .append(": ")
-                .append(throwProxy.getMessage())
-                .append('\n');
-        ExtendedStackTraceElement[] trace = throwProxy.getExtendedStackTrace();
-        if (trace == null) {
-            trace = new ExtendedStackTraceElement[0];
+        while (end > start && payload.charAt(end - 1) <= ' ') {
+            end--;
         }
+        return payload.substring(start, end);
+    }
 
-        int commonFrames = throwProxy.getCommonElementCount();
-        int printFrames = trace.length - commonFrames;
-        for (int i = 0; i < printFrames; i++) {
-            payload.append("    ").append(trace[i]).append('\n');
+    /**
+     * Cuts the payload so that its UTF-8 encoding, including the truncation marker, fits in {@code maxBytes}.
+     */
+    static void truncate(StringBuilder payload, int maxBytes) {
+        if (maxBytes == 0 || payload.length() <= maxBytes / 3) {
+            return; // fits even if every char takes three bytes
         }
-        if (commonFrames != 0) {
-            payload.append("    ... ").append(commonFrames).append(" common frames elided\n");
+        int budget = maxBytes - LogEntrySizes.TRUNCATION_MARKER.length();
+        int bytes = 0;
+        int cut = -1;
+        for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            if (cut < 0 && bytes > budget) {
+                cut = i > 0 && Character.isHighSurrogate(payload.charAt(i - 1)) ? i - 1 : i;
+            }
+            if (bytes > maxBytes) {
+                payload.setLength(cut);
+                payload.append(LogEntrySizes.TRUNCATION_MARKER);
+                return;
+            }
         }
-
-        writeStack(throwProxy.getCauseProxy(), "caused by: ", payload);
     }
 
     @PluginBuilderFactory
@@ -270,9 +464,15 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
 
     public static class Builder<B extends AbstractAppender.Builder<B>> extends AbstractAppender.Builder<B>
             implements org.apache.logging.log4j.core.util.Builder<GoogleCloudLoggingAppender> {
-        private static final int DEFAULT_BUFFER_SIZE = 50;
+        private static final int DEFAULT_BUFFER_SIZE = 8192;
+        private static final int DEFAULT_BATCH_SIZE = 500;
+        private static final long DEFAULT_MAX_LINGER_MILLIS = 1000;
+        private static final long DEFAULT_MAX_SPILL_BYTES = 256L * 1024 * 1024;
+        private static final int DEFAULT_SPILL_SEGMENT_BYTES = 16 * 1024 * 1024;
+        private static final int MIN_PAYLOAD_BYTES = 1024;
+        private static final String GLOBAL_RESOURCE_TYPE = "global";
         @PluginElement("Layout")
-        private Layout<? extends Serializable> layout = PatternLayout.createDefaultLayout();
+        private Layout<? extends Serializable> layout;
 
         @PluginElement("Filter")
         private Filter filter;
@@ -280,6 +480,24 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
         @PluginElement("Resource")
         private GCPResourceConfig resource;
 
+        @PluginElement("Enhancers")
+        private EnhancerConfig[] enhancers;
+
+        @PluginElement("EventEnhancers")
+        private LoggingEventEnhancer[] eventEnhancers;
+
+        @PluginElement("RateLimit")
+        private RateLimitConfig rateLimit;
+
+        @PluginElement("Deduplicate")
+        private DeduplicationConfig deduplicate;
+
+        @PluginElement("LogRoutes")
+        private LogRoute[] routes;
+
+        @PluginNode
+        private Node node;
+
         @PluginBuilderAttribute
         private boolean ignoreExceptions = true;
 
@@ -305,6 +523,84 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
         @PluginBuilderAttribute
         private int bufferSize = DEFAULT_BUFFER_SIZE;
 
+        @PluginBuilderAttribute
+        private int batchSize = DEFAULT_BATCH_SIZE;
+
+        @PluginBuilderAttribute
+        private int maxBatchBytes = LogEntrySizes.MAX_REQUEST_BYTES;
+
+        @PluginBuilderAttribute
+        private long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+
+        @PluginBuilderAttribute
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+        @PluginBuilderAttribute
+        private Severity dropSeverity = Severity.WARNING;
+
+        @PluginBuilderAttribute
+        private int ringBufferSize = 0;
+
+        @PluginBuilderAttribute
+        private boolean severityLanes = false;
+
+        @PluginBuilderAttribute
+        private int offHeapBufferBytes = 0;
+
+        @PluginBuilderAttribute
+        private String spillDirectory;
+
+        @PluginBuilderAttribute
+        private long maxSpillBytes = DEFAULT_MAX_SPILL_BYTES;
+
+        @PluginBuilderAttribute
+        private int spillSegmentBytes = DEFAULT_SPILL_SEGMENT_BYTES;
+
+        @PluginBuilderAttribute
+        private int maxStackFrames = 0;
+
+        @PluginBuilderAttribute
+        private int maxCauseDepth = 0;
+
+        @PluginBuilderAttribute
+        private int maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+
+        @PluginBuilderAttribute
+        private int stackTraceCacheSize = DEFAULT_STACK_TRACE_CACHE_SIZE;
+
+        @PluginBuilderAttribute
+        private String metricsListener;
+
+        @PluginBuilderAttribute
+        private PayloadType payloadType = PayloadType.JSON;
+
+        @PluginBuilderAttribute
+        private Transport transport = Transport.CLIENT;
+
+        @PluginBuilderAttribute
+        private int maxInFlightWrites = 1;
+
+        @PluginBuilderAttribute
+        private boolean orderedWrites = false;
+
+        @PluginBuilderAttribute
+        private long maxFlushLatencyMillis = DEFAULT_MAX_LINGER_MILLIS;
+
+        @PluginBuilderAttribute
+        private String resourceCacheFile;
+
+        @PluginBuilderAttribute
+        private int maxRetries = ResilienceSettings.DEFAULT.maxRetries();
+
+        @PluginBuilderAttribute
+        private int circuitBreakerThreshold = ResilienceSettings.DEFAULT.failureThreshold();
+
+        @PluginBuilderAttribute
+        private long circuitBreakerProbeMillis = ResilienceSettings.DEFAULT.probeIntervalMillis();
+
+        @PluginBuilderAttribute
+        private boolean failoverToStdout = ResilienceSettings.DEFAULT.failoverToStdout();
+
         /**
          * {@inheritDoc}
          */
@@ -312,51 +608,157 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
         public GoogleCloudLoggingAppender build() {
             try {
                 LoggerContext context = getConfiguration().getLoggerContext();
-                boolean isBuffered = (context instanceof AsyncLoggerContext) && (buffered == null || buffered);
-
-                String localProjectId = projectId;
-
-                String resourceType = null;
-                if (resource != null) {
-                    resourceType = resource.resourceType();
+                boolean isBuffered = buffered != null ? buffered : context instanceof AsyncLoggerContext;
+                BufferSettings bufferSettings = isBuffered
+                        ? new BufferSettings(bufferSize, batchSize, maxBatchBytes, maxLingerMillis, overflowPolicy,
+                        dropSeverity, ringBufferSize, severityLanes, offHeapBufferBytes) : null;
+                SpillSettings spillSettings = spillDirectory == null || spillDirectory.isBlank() ? null
+                        : new SpillSettings(Path.of(spillDirectory), maxSpillBytes, spillSegmentBytes);
+                if (maxPayloadBytes != 0 && maxPayloadBytes < MIN_PAYLOAD_BYTES) {
+                    throw new IllegalArgumentException("maxPayloadBytes must be 0 or at least " + MIN_PAYLOAD_BYTES);
+                }
+                StackTraceRenderer stackTraceRenderer = new StackTraceRenderer(maxStackFrames, maxCauseDepth,
+                        maxPayloadBytes, stackTraceCacheSize);
+                MetricsListener listener = metricsListener == null || metricsListener.isBlank() ? null
+                        : Loader.newCheckedInstanceOf(metricsListener, MetricsListener.class);
+
+                String resourceType = resource != null ? resource.resourceType() : null;
+                Path cacheFile = resourceCacheFile == null || resourceCacheFile.isBlank() ? null
+                        : Path.of(resourceCacheFile);
+                CompletableFuture<MonitoredResource> detection = ResourceDetector.detect(projectId, resourceType,
+                        cacheFile, getStatusLogger());
+
+                TransportSettings transportSettings = new TransportSettings(transport, maxInFlightWrites,
+                        orderedWrites, maxFlushLatencyMillis);
+                ResilienceSettings resilienceSettings = new ResilienceSettings(maxRetries, circuitBreakerThreshold,
+                        circuitBreakerProbeMillis, failoverToStdout);
+                Function<MonitoredResource, GoogleCloudLoggingManager> managerFor = detected ->
+                        GoogleCloudLoggingManager.getManager(context, projectIdFor(detected), credentialsFile,
+                                getStatusLogger(), redirectToStdout, bufferSettings, spillSettings, listener,
+                                transportSettings, resilienceSettings);
+                EnhancerPipeline enhancerPipeline = compileEnhancers();
+                EventRateLimiter rateLimiter = rateLimit != null ? new EventRateLimiter(rateLimit) : null;
+                EventDeduplicator deduplicator = deduplicate != null ? new EventDeduplicator(deduplicate) : null;
+                checkRoutes();
+                LogRouter router = LogRouter.compile(gcpLogName, routes);
+
+                Function<MonitoredResource, String> managerNameFor = detected ->
+                        GoogleCloudLoggingManager.managerName(projectIdFor(detected), credentialsFile,
+                                redirectToStdout, bufferSettings, spillSettings, listener, transportSettings,
+                                resilienceSettings);
+                if (detection.isDone() && !detection.isCompletedExceptionally()
+                        && GoogleCloudLoggingManager.hasManager(managerNameFor.apply(detection.join()))) {
+                    // a reconfiguration: the resource is known and the manager shares its client, nothing to wait for
+                    MonitoredResource detected = detection.join();
+                    return new GoogleCloudLoggingAppender(managerFor.apply(detected), getName(), gcpLogName, filter,
+                            layout, ignoreExceptions, null, resourceFor(detected), stackTraceRenderer,
+                            maxPayloadBytes, enhancerPipeline, rateLimiter, deduplicator, payloadType, null, router);
                 }
-                Map<String, String> resourceLabels = new HashMap<>();
-
-                try {
-                    MonitoredResource monResource = MonitoredResourceUtil.getResource(localProjectId, resourceType);
 
-                    if (localProjectId == null || localProjectId.isBlank()) {
-                        localProjectId = monResource.getLabels().get("project_id");
+                // detecting the resource and creating the client both wait on the network; until they are done,
+                // entries are held and written once the resource is known
+                GoogleCloudLoggingAppender appender = new GoogleCloudLoggingAppender(null, getName(), gcpLogName,
+                        filter, layout, ignoreExceptions, null, null, stackTraceRenderer, maxPayloadBytes,
+                        enhancerPipeline, rateLimiter, deduplicator, payloadType,
+                        new StartupBuffer(bufferSize, getStatusLogger()), router);
+                detection.whenCompleteAsync((detected, failure) -> {
+                    if (failure != null) {
+                        getStatusLogger().info("Could not determine project ID automatically", failure);
                     }
-
-                    if (resourceType == null || resourceType.isBlank()) {
-                        resourceType = monResource.getType();
+                    try {
+                        GoogleCloudLoggingManager manager = managerFor.apply(detected);
+                        if (manager != null) {
+                            appender.startWriting(manager, resourceFor(detected));
+                        }
+                    } catch (RuntimeException e) {
+                        getStatusLogger().error("Error starting GoogleCloudLoggingAppender [{}]", getName(), e);
                     }
+                }, task -> {
+                    Thread thread = new Log4jThread(task, "GoogleCloudLoggingAppender-Start-" + getName());
+                    thread.setDaemon(true); // avoid blocking JVM shutdown
+                    thread.start();
+                });
+                return appender;
+            } catch (final Throwable e) {
+                getStatusLogger().error("Error creating GoogleCloudLoggingAppender [{}]", getName(), e);
+                return null;
+            }
+        }
 
-                    resourceLabels.putAll(monResource.getLabels());
-                } catch (NullPointerException e) {
-                    getStatusLogger().info("Could not determine project ID automatically");
-                }
+        private String projectIdFor(MonitoredResource detected) {
+            if (projectId != null && !projectId.isBlank() || detected == null) {
+                return projectId;
+            }
+            return detected.getLabels().get(PROJECT_ID_LABEL);
+        }
 
-                if (resource != null) {
-                    for (int i = 0; i < resource.labels().length; i++) {
-                        ResourceLabel label = resource.labels()[i];
-                        resourceLabels.put(label.name(), label.value());
-                    }
+        /**
+         * Returns the detected resource, or a global one if detection failed, with the configured type and labels.
+         */
+        private MonitoredResource resourceFor(MonitoredResource detected) {
+            String resourceType = resource != null ? resource.resourceType() : null;
+            Map<String, String> resourceLabels = new HashMap<>();
+            if (detected != null) {
+                if (resourceType == null || resourceType.isBlank()) {
+                    resourceType = detected.getType();
                 }
+                resourceLabels.putAll(detected.getLabels());
+            } else if (projectId != null && !projectId.isBlank()) {
+                resourceLabels.put(PROJECT_ID_LABEL, projectId);
+            }
+            if (resource != null) {
+                for (ResourceLabel label : resource.labels()) {
+                    resourceLabels.put(label.name(), label.value());
+                }
+            }
+            return MonitoredResource.newBuilder(resourceType == null || resourceType.isBlank()
+                    ? GLOBAL_RESOURCE_TYPE : resourceType).setLabels(resourceLabels).build();
+        }
 
-                MonitoredResource.Builder resourceBuilder = MonitoredResource.newBuilder(resourceType);
-                resourceBuilder.setLabels(resourceLabels);
-
-                GoogleCloudLoggingManager manager = GoogleCloudLoggingManager.getManager(context, localProjectId,
-                        credentialsFile, getStatusLogger(), redirectToStdout);
+        /**
+         * Fails on a route element that no parameter took, such as a {@code Routes} element of the routing appender,
+         * so that the events meant for a route do not end up in the default log unnoticed.
+         */
+        private void checkRoutes() {
+            for (Node child : node.getChildren()) { // the elements left after injection
+                String name = child.getName().toLowerCase(Locale.ROOT);
+                if (name.endsWith("route") || name.endsWith("routes")) {
+                    throw new IllegalArgumentException("Unexpected element " + child.getName()
+                            + ", LogRoute elements go directly in the appender");
+                }
+            }
+        }
 
-                return new GoogleCloudLoggingAppender(manager, getName(), gcpLogName, filter, layout, ignoreExceptions,
-                        null, resourceBuilder.build());
-            } catch (final Throwable e) {
-                getStatusLogger().error("Error creating GoogleCloudLoggingAppender [{}]", getName(), e);
-                return null;
+        /**
+         * Loads the {@code Enhancer} elements and compiles them with the resource enhancers and the event enhancer
+         * elements. Without any event enhancer, context data is mapped to labels as is.
+         */
+        private EnhancerPipeline compileEnhancers() throws ReflectiveOperationException {
+            List<LoggingEnhancer> constantEnhancers = new ArrayList<>();
+            List<LoggingEnhancer> loggingEnhancers = new ArrayList<>();
+            addResourceEnhancers(constantEnhancers, loggingEnhancers);
+            List<LoggingEventEnhancer> loggingEventEnhancers = new ArrayList<>();
+            if (enhancers != null) {
+                for (EnhancerConfig config : enhancers) {
+                    Object enhancer = Loader.newCheckedInstanceOf(config.className().trim(), Object.class);
+                    if (enhancer instanceof LoggingEnhancer loggingEnhancer) {
+                        (config.constant() ? constantEnhancers : loggingEnhancers).add(loggingEnhancer);
+                    } else if (enhancer instanceof LoggingEventEnhancer eventEnhancer && !config.constant()) {
+                        loggingEventEnhancers.add(eventEnhancer);
+                    } else {
+                        throw new IllegalArgumentException(config.className() + " is not a LoggingEnhancer"
+                                + (config.constant() ? "" : " or LoggingEventEnhancer"));
+                    }
+                }
+            }
+            if (eventEnhancers != null) {
+                loggingEventEnhancers.addAll(Arrays.asList(eventEnhancers));
+            }
+            if (loggingEventEnhancers.isEmpty()) {
+                loggingEventEnhancers.add(new ContextDataEventEnhancer());
             }
+            return EnhancerPipeline.compile(constantEnhancers, loggingEnhancers, loggingEventEnhancers,
+                    getStatusLogger());
         }
     }
 }
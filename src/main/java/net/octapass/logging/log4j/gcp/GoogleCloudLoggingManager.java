@@ -1,9 +1,21 @@
 package net.octapass.logging.log4j.gcp;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.retrying.RetrySettings;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.ServiceOptions;
 import com.google.cloud.logging.LogEntry;
 import com.google.cloud.logging.Logging;
 import com.google.cloud.logging.LoggingOptions;
+import com.google.cloud.logging.Severity;
+import com.google.cloud.logging.spi.v2.LoggingRpc;
+import com.google.cloud.logging.v2.LoggingSettings;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.logging.v2.WriteLogEntriesRequest;
+import com.google.logging.v2.WriteLogEntriesResponse;
 import io.grpc.LoadBalancerRegistry;
 import io.grpc.internal.PickFirstLoadBalancerProvider;
 import org.apache.logging.log4j.Logger;
@@ -11,17 +23,44 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.appender.AbstractManager;
 import org.apache.logging.log4j.core.appender.ManagerFactory;
 import org.apache.logging.log4j.core.util.Log4jThread;
+import org.apache.logging.log4j.util.PropertiesUtil;
+import org.threeten.bp.Duration;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 
 public final class GoogleCloudLoggingManager extends AbstractManager {
 
     private static final GoogleCloudLoggingManager2Factory FACTORY = new GoogleCloudLoggingManager2Factory();
     private static final long DEFAULT_TIMEOUT = 7000;
+    private static final long WRITERS_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final String JMX_DOMAIN = "net.octapass.logging.log4j.gcp";
+    private static final String DISABLE_JMX_PROPERTY = "log4j2.disableJmx";
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5_000;
+    private static final long RPC_TIMEOUT_MILLIS = 10_000;
+    private static final long TOTAL_RETRY_TIMEOUT_MILLIS = 30_000;
 
     static {
         LoadBalancerRegistry.getDefaultRegistry().register(new PickFirstLoadBalancerProvider());
@@ -31,40 +70,263 @@ public final class GoogleCloudLoggingManager extends AbstractManager {
     private final Logging logging;
     private final Logger statusLogger;
     private final boolean redirectToStdout;
-    private final ArrayBlockingQueue<LogEntry> buffer = null;
+    private final LogEntryBatcher buffer;
+    private final LogEntryRingBuffer ringBuffer;
+    private final SpillQueue spillQueue;
+    private final SpillSender spillSender;
+    private final DropCounters drops;
+    private final StructuredJsonWriter stdout;
+    private final ManagerMetrics metrics;
+    private final ObjectName metricsName;
+    private final LogEntryProtoWriter protoWriter;
+    private final InFlightWrites inFlightWrites;
+    private final Set<ApiFuture<WriteLogEntriesResponse>> pendingWrites = ConcurrentHashMap.newKeySet();
+    private final List<LogEntry> unsent = new ArrayList<>(); // guarded by itself, like unsentBytes
+    private long unsentBytes;
+    private final FlushScheduler flushScheduler;
+    private final CircuitBreaker breaker;
+    private final boolean failover;
+    private final LongAdder writersEntered = new LongAdder();
+    private final LongAdder writersExited = new LongAdder();
+    private volatile boolean stopped;
+    private PipelineSettings settings; // set by the factory, compared when an appender asks for the manager
 
-    private GoogleCloudLoggingManager(LoggerContext loggerContext,
+    GoogleCloudLoggingManager(LoggerContext loggerContext,
                                       String name,
                                       String projectId,
                                       Logging logging,
                                       Logger statusLogger,
-                                      boolean redirectToStdout) {
+                                      boolean redirectToStdout,
+                                      BufferSettings bufferSettings,
+                                      SpillSettings spillSettings,
+                                      MetricsListener metricsListener,
+                                      TransportSettings transportSettings,
+                                      ResilienceSettings resilienceSettings) {
         super(loggerContext, name);
         this.projectId = projectId;
         this.logging = logging;
+        if (transportSettings == null) {
+            transportSettings = TransportSettings.DEFAULT;
+        }
+        if (resilienceSettings == null) {
+            resilienceSettings = ResilienceSettings.DEFAULT;
+        }
+        this.protoWriter = transportSettings.transport() == Transport.DIRECT && logging != null && !redirectToStdout
+                ? new LogEntryProtoWriter(projectId, (LoggingRpc) logging.getOptions().getRpc()) : null;
+        if (transportSettings.maxInFlightWrites() > 1 && !transportSettings.concurrent()) {
+            statusLogger.warn("maxInFlightWrites needs transport DIRECT, writing one batch at a time");
+        }
+        this.inFlightWrites = protoWriter != null && transportSettings.concurrent()
+                ? new InFlightWrites(transportSettings.maxInFlightWrites(), transportSettings.orderedWrites()) : null;
         this.statusLogger = statusLogger;
         this.redirectToStdout = redirectToStdout;
+        this.drops = new DropCounters(metricsListener);
+        this.spillQueue = openSpillQueue(spillSettings, statusLogger);
+        this.breaker = new CircuitBreaker(resilienceSettings.failureThreshold(),
+                resilienceSettings.probeIntervalMillis(), statusLogger);
+        // spilled entries stay on disk until the API takes them, they need no failover
+        this.failover = resilienceSettings.failoverToStdout() && !redirectToStdout && spillQueue == null;
+        this.stdout = redirectToStdout || failover ? StructuredJsonWriter.stdout() : null;
+        if (spillQueue != null) {
+            int batchSize = DEFAULT_BATCH_SIZE;
+            int maxBatchBytes = LogEntrySizes.MAX_REQUEST_BYTES;
+            if (bufferSettings != null) {
+                batchSize = bufferSettings.batchSize();
+                maxBatchBytes = bufferSettings.maxBatchBytes();
+            }
+            this.spillSender = new SpillSender(name, spillQueue, batchSize, maxBatchBytes, this::writeBatch, drops,
+                    statusLogger);
+        } else {
+            this.spillSender = null;
+        }
+        Consumer<List<LogEntry>> sink = spillQueue != null ? this::spill
+                : inFlightWrites != null ? this::writeBatchAsync : this::writeBatch;
+        if (bufferSettings == null) {
+            this.buffer = null;
+            this.ringBuffer = null;
+        } else if (bufferSettings.ringBuffered()) {
+            // the ring buffer applies the drop policies itself, only eviction happens further down
+            OverflowPolicy queuePolicy = bufferSettings.overflowPolicy() == OverflowPolicy.DROP_OLDEST
+                    ? OverflowPolicy.DROP_OLDEST : OverflowPolicy.BLOCK;
+            this.buffer = new LogEntryBatcher(name, bufferSettings.withOverflowPolicy(queuePolicy), drops,
+                    sink, statusLogger);
+            this.ringBuffer = new LogEntryRingBuffer(name, bufferSettings, buffer, drops, statusLogger);
+        } else {
+            this.buffer = new LogEntryBatcher(name, bufferSettings, drops, sink, statusLogger);
+            this.ringBuffer = null;
+        }
+        boolean unbuffered = bufferSettings == null && spillQueue == null;
+        if (unbuffered && protoWriter != null) {
+            this.flushScheduler = new FlushScheduler(name, transportSettings.maxFlushLatencyMillis(),
+                    this::flushLogging, statusLogger);
+        } else if (unbuffered && logging != null && !redirectToStdout) {
+            // the client sends entries by itself, flushes are only scheduled for the ones that must not wait
+            this.flushScheduler = new FlushScheduler(name, transportSettings.maxFlushLatencyMillis(),
+                    this::flushClient, statusLogger);
+        } else {
+            this.flushScheduler = null;
+        }
+        this.metrics = new ManagerMetrics(drops, this::bufferDepth, () -> buffer != null ? buffer.offHeapBytes() : 0,
+                pendingWrites::size, breaker::isOpen,
+                buffer != null ? buffer.lanes() : null, metricsListener);
+        this.metricsName = registerMetrics(name, metrics, statusLogger);
     }
 
+    private long bufferDepth() {
+        long depth = buffer != null ? buffer.size() : 0;
+        return ringBuffer != null ? depth + ringBuffer.size() : depth;
+    }
+
+    private static ObjectName registerMetrics(String name, ManagerMetrics metrics, Logger statusLogger) {
+        if (PropertiesUtil.getProperties().getBooleanProperty(DISABLE_JMX_PROPERTY)) {
+            return null;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=GoogleCloudLoggingManager,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(metrics, GoogleCloudLoggingManagerMXBean.class, true), objectName);
+            return objectName;
+        } catch (JMException e) {
+            statusLogger.warn("Cannot register metrics MBean for {}", name, e);
+            return null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                statusLogger.warn("Cannot unregister metrics MBean {}", metricsName, e);
+            }
+        }
+    }
+
+    private static SpillQueue openSpillQueue(SpillSettings spillSettings, Logger statusLogger) {
+        if (spillSettings == null) {
+            return null;
+        }
+        try {
+            return SpillQueue.open(spillSettings);
+        } catch (IOException e) {
+            statusLogger.error("Cannot open spill directory {}, writing without it", spillSettings.directory(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the manager for the given project, credentials and settings.
+     *
+     * @param bufferSettings settings of the background batching pipeline, or {@code null} to write every entry
+     *                       from the calling thread
+     * @param spillSettings  settings of the on-disk queue entries pass through before they are sent, or
+     *                       {@code null} to send them from memory
+     * @param metricsListener notified of writes, flushes and drops, or {@code null}; only used when the manager
+     *                       is created, appenders share it if their listeners are of the same class
+     * @param transportSettings how entries are sent to Cloud Logging, or {@code null} for the client library's own
+     *                       write path
+     * @param resilienceSettings retries, circuit breaker and failover of failing writes, or {@code null} for the
+     *                       defaults
+     */
     public static GoogleCloudLoggingManager getManager(final LoggerContext loggerContext,
                                                        final String projectId,
                                                        final String credentialsFileName,
                                                        final Logger statusLogger,
-                                                       final boolean redirectToStdout) {
+                                                       final boolean redirectToStdout,
+                                                       final BufferSettings bufferSettings,
+                                                       final SpillSettings spillSettings,
+                                                       final MetricsListener metricsListener,
+                                                       final TransportSettings transportSettings,
+                                                       final ResilienceSettings resilienceSettings) {
+        FactoryData data = new FactoryData(loggerContext, projectId, credentialsFileName, statusLogger,
+                redirectToStdout, bufferSettings, spillSettings, metricsListener, transportSettings,
+                resilienceSettings);
+        return getManager(managerName(projectId, credentialsFileName, data.settings()), FACTORY, data);
+    }
 
+    /**
+     * Returns the name of the manager for the given project, credentials and settings, which is shared by their
+     * appenders. The settings are only read when the manager is created, so an appender with other settings, or a
+     * reloaded configuration that changes them, gets a manager of its own.
+     */
+    static String managerName(String projectId, String credentialsFileName, boolean redirectToStdout,
+                              BufferSettings bufferSettings, SpillSettings spillSettings,
+                              MetricsListener metricsListener, TransportSettings transportSettings,
+                              ResilienceSettings resilienceSettings) {
+        return managerName(projectId, credentialsFileName, new PipelineSettings(redirectToStdout, bufferSettings,
+                spillSettings, metricsListener != null ? metricsListener.getClass().getName() : null,
+                transportSettings, resilienceSettings));
+    }
 
-        String managerName = projectId + "@" + credentialsFileName;
-        return getManager(managerName, FACTORY, new FactoryData(loggerContext, projectId, credentialsFileName,
-                statusLogger, redirectToStdout));
+    private static String managerName(String projectId, String credentialsFileName, PipelineSettings settings) {
+        return projectId + "@" + credentialsFileName + "#" + Integer.toHexString(settings.hashCode());
+    }
+
+    /**
+     * Warns if an appender that shares this manager asks for other settings, which only happens if the hashes of
+     * their settings collide; the manager keeps the settings it was created with.
+     */
+    @Override
+    public void updateData(Object data) {
+        if (data instanceof FactoryData factoryData && settings != null && !settings.equals(factoryData.settings())) {
+            statusLogger.warn("Manager {} is shared with an appender of other settings, keeping its own", getName());
+        }
     }
 
     public boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
-        if (timeout > 0) {
-            closeProducer(timeout, timeUnit);
-        } else {
-            closeProducer(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        long timeoutMillis = timeout > 0 ? timeUnit.toMillis(timeout) : DEFAULT_TIMEOUT;
+        stopped = true;
+        boolean drained = awaitWriters(timeoutMillis);
+        if (ringBuffer != null) {
+            drained &= ringBuffer.stop(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (buffer != null) {
+            drained &= buffer.stop(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (spillSender != null) {
+            // whatever is not sent in time stays on disk and is replayed on the next start
+            spillSender.stop(timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                spillQueue.close();
+            } catch (IOException e) {
+                statusLogger.warn("Cannot close spill queue", e);
+            }
+        }
+        if (flushScheduler != null) {
+            flushScheduler.stop(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (protoWriter != null || buffer == null && spillQueue == null && logging != null && !redirectToStdout) {
+            try {
+                flushLogging();
+            } catch (RuntimeException e) {
+                drained = false;
+                statusLogger.warn("Cannot complete pending writes", e);
+            }
+        }
+        closeProducer(timeoutMillis, TimeUnit.MILLISECONDS);
+        unregisterMetrics();
+        return drained;
+    }
+
+    /**
+     * Waits for the writes that started before the manager was stopped, so that their entries are drained along
+     * with the others. A writer counts itself in before it checks {@link #stopped} and out when done; once both
+     * counts match after the flag is set, every later writer sees it.
+     */
+    private boolean awaitWriters(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long exited = writersExited.sum(); // read before the entries, so that a count can only be too low
+            if (writersEntered.sum() == exited) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                statusLogger.warn("Stopping with writes still in progress");
+                return false;
+            }
+            LockSupport.parkNanos(WRITERS_POLL_NANOS);
         }
-        return true;
     }
 
     private void closeProducer(final long timeout, final TimeUnit timeUnit) {
@@ -87,46 +349,427 @@ public final class GoogleCloudLoggingManager extends AbstractManager {
         }
     }
 
+    /**
+     * Writes an entry. An entry written after the manager was stopped, when nothing would send it any more, still
+     * goes to stdout if redirected or failing over there, and is dropped as {@link DropReason#STOPPED} otherwise.
+     */
     public void writeLogEntry(LogEntry logEntry) {
-        if (buffer != null) {
-            while (!buffer.add(logEntry)) {
-                tryFlush(logging, buffer, redirectToStdout);
+        metrics.recordAccepted();
+        writersEntered.increment();
+        try {
+            if (!stopped) {
+                write(logEntry);
+            } else if (redirectToStdout) {
+                writeStdout(Collections.singletonList(logEntry));
+            } else if (failover) {
+                failover(Collections.singletonList(logEntry));
+            } else {
+                drops.increment(DropReason.STOPPED, logEntry);
+            }
+        } finally {
+            writersExited.increment();
+        }
+    }
+
+    private void write(LogEntry logEntry) {
+        if (ringBuffer != null) {
+            ringBuffer.publish(logEntry);
+        } else if (buffer != null) {
+            buffer.add(logEntry);
+        } else if (spillQueue != null) {
+            spill(List.of(logEntry));
+        } else if (protoWriter != null) {
+            addUnsent(logEntry);
+            if (isUrgent(logEntry)) {
+                flushScheduler.onUrgentEntry();
+            } else {
+                flushScheduler.onEntry();
             }
+        } else if (redirectToStdout || breaker.tryAcquire()) {
+            writeUnbuffered(logEntry);
         } else {
+            divert(Collections.singletonList(logEntry));
+        }
+    }
+
+    /**
+     * Writes an entry through the client from the calling thread. The client sends it in the background, so only
+     * a flush tells whether the API took it: entries that must not wait have one started on the flush thread, and
+     * so do probes of an open circuit breaker.
+     */
+    private void writeUnbuffered(LogEntry logEntry) {
+        List<LogEntry> batch = Collections.singletonList(logEntry);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
             if (redirectToStdout) {
-                System.out.println(logEntry.toStructuredJsonString());
+                stdout.write(logEntry);
             } else {
-                logging.write(Collections.singleton(logEntry));
+                logging.write(batch);
             }
+            success = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.recordWrite(batch, System.nanoTime() - start, success);
+        }
+        if (!redirectToStdout && (isUrgent(logEntry) || breaker.isOpen())) {
+            flushScheduler.onUrgentEntry();
         }
     }
 
-    public void flush() {
-        this.logging.flush();
+    /**
+     * Flushes the client, telling the circuit breaker how it went.
+     */
+    private void flushClient() {
+        try {
+            flushLogging();
+        } catch (RuntimeException e) {
+            onWriteFailure(e);
+            throw e;
+        }
+        breaker.onSuccess();
+    }
+
+    /**
+     * Counts a failed write towards opening the circuit breaker, unless the API rejected it: a rejection takes an
+     * API that answers, and the breaker would only hold up the writes that it accepts.
+     */
+    private void onWriteFailure(Throwable failure) {
+        if (ApiErrors.isRejected(failure)) {
+            breaker.onSuccess();
+        } else {
+            breaker.onFailure();
+        }
+    }
+
+    /**
+     * Returns whether an entry written without a buffer is flushed as soon as it is written.
+     */
+    private static boolean isUrgent(LogEntry entry) {
+        return entry.getSeverity() != null && entry.getSeverity().compareTo(Severity.ERROR) >= 0;
+    }
+
+    /**
+     * Adds an entry to the next direct write, sending the entries collected so far first if they make a full batch.
+     */
+    private void addUnsent(LogEntry entry) {
+        int bytes = LogEntrySizes.estimate(entry);
+        List<LogEntry> full = null;
+        synchronized (unsent) {
+            if (!unsent.isEmpty()
+                    && (unsent.size() >= DEFAULT_BATCH_SIZE || unsentBytes + bytes > LogEntrySizes.MAX_REQUEST_BYTES)) {
+                full = takeUnsent();
+            }
+            unsent.add(entry);
+            unsentBytes += bytes;
+        }
+        if (full != null) {
+            writeAsync(full);
+        }
+    }
+
+    private void sendUnsent() {
+        List<LogEntry> batch;
+        synchronized (unsent) {
+            if (unsent.isEmpty()) {
+                return;
+            }
+            batch = takeUnsent();
+        }
+        writeAsync(batch);
     }
 
-    private static void tryFlush(Logging logging, ArrayBlockingQueue<LogEntry> buffer, boolean redirectToStdout) {
+    private List<LogEntry> takeUnsent() {
+        List<LogEntry> batch = List.copyOf(unsent);
+        unsent.clear();
+        unsentBytes = 0;
+        return batch;
+    }
+
+    /**
+     * Flushes pending writes. In buffered mode the drain thread decides when batches go out, so this is a no-op.
+     */
+    public void flush() {
         if (buffer == null) {
+            if (protoWriter == null && !redirectToStdout) {
+                flushClient();
+            } else {
+                flushLogging();
+            }
+        }
+    }
+
+    private void flushLogging() {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            if (protoWriter != null) {
+                sendUnsent();
+                await(ApiFutures.successfulAsList(List.copyOf(pendingWrites)));
+            } else {
+                logging.flush();
+            }
+            success = true;
+        } finally {
+            metrics.recordFlush(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Starts writing a batch over the direct transport; {@link #flush()} waits for it.
+     */
+    private void writeAsync(List<LogEntry> batch) {
+        if (breaker.tryAcquire()) {
+            track(batch, System.nanoTime(), protoWriter.write(batch));
+        } else {
+            divert(batch);
+        }
+    }
+
+    /**
+     * Hands a batch from the drain thread to the in-flight writes, one request per log name, and returns without
+     * waiting for the RPCs. Each request then names its log, and the labels its entries share, only once. The batch
+     * list is reused by the caller, so it is copied.
+     */
+    private void writeBatchAsync(List<LogEntry> batch) {
+        if (isSingleLog(batch)) {
+            String logName = batch.get(0).getLogName();
+            submit(logName != null ? logName : "", List.copyOf(batch));
             return;
         }
+        Map<String, List<LogEntry>> batchesByLog = new LinkedHashMap<>();
+        for (LogEntry entry : batch) {
+            String logName = entry.getLogName() != null ? entry.getLogName() : "";
+            batchesByLog.computeIfAbsent(logName, ignored -> new ArrayList<>()).add(entry);
+        }
+        batchesByLog.forEach(this::submit);
+    }
+
+    private static boolean isSingleLog(List<LogEntry> batch) {
+        String logName = batch.get(0).getLogName();
+        for (int i = 1; i < batch.size(); i++) {
+            if (!Objects.equals(logName, batch.get(i).getLogName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void submit(String logName, List<LogEntry> batch) {
+        if (!breaker.tryAcquire()) {
+            divert(batch);
+            return;
+        }
+        long start = System.nanoTime();
+        // converted here, so that a write waiting for the previous one of its log starts without delay
+        WriteLogEntriesRequest request = protoWriter.toRequest(batch);
+        try {
+            track(batch, start, inFlightWrites.submit(logName, () -> protoWriter.write(request)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a write slot", e);
+        }
+    }
+
+    private void track(List<LogEntry> batch, long start, ApiFuture<WriteLogEntriesResponse> write) {
+        pendingWrites.add(write);
+        ApiFutures.addCallback(write, new ApiFutureCallback<>() {
+            @Override
+            public void onFailure(Throwable t) {
+                pendingWrites.remove(write);
+                metrics.recordWrite(batch, System.nanoTime() - start, false);
+                onWriteFailure(t);
+                if (failover) {
+                    statusLogger.error("Failed to write {} log entries to Google Cloud Logging, writing them to "
+                            + "stdout", batch.size(), t);
+                    failover(batch);
+                } else {
+                    statusLogger.error("Failed to write {} log entries to Google Cloud Logging", batch.size(), t);
+                }
+            }
+
+            @Override
+            public void onSuccess(WriteLogEntriesResponse response) {
+                pendingWrites.remove(write);
+                metrics.recordWrite(batch, System.nanoTime() - start, true);
+                breaker.onSuccess();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static void await(ApiFuture<?> future) {
+        try {
+            future.get(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Write not acknowledged within " + DEFAULT_TIMEOUT + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a write", e);
+        }
+    }
+
+    /**
+     * Returns the number of entries discarded by the overflow policy for the given reason.
+     */
+    public long getDroppedCount(DropReason reason) {
+        return drops.get(reason);
+    }
+
+    /**
+     * Returns the metrics of this manager, the same ones its MBean exposes.
+     */
+    public GoogleCloudLoggingManagerMXBean getMetrics() {
+        return metrics;
+    }
+
+    private void spill(List<LogEntry> batch) {
+        for (LogEntry entry : batch) {
+            try {
+                // a spilled entry is retried until accepted, so it must not exceed the API limit
+                LogEntry truncated = LogEntrySizes.truncate(entry, LogEntrySizes.MAX_ENTRY_BYTES);
+                if (truncated == null) {
+                    drops.increment(DropReason.OVERSIZED, entry);
+                } else if (!spillQueue.append(truncated)) {
+                    drops.increment(DropReason.SPILL_FULL, entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                drops.increment(DropReason.SPILL_FULL, entry);
+                statusLogger.error("Cannot write log entry to spill queue", e);
+            }
+        }
+    }
 
+    /**
+     * Sends a batch and waits until it is acknowledged, so the recorded write latency covers the whole RPC. A batch
+     * that fails, or that the circuit breaker keeps from the API, fails over to stdout if enabled; without failover,
+     * a failed batch throws, so that a spilled one stays on disk.
+     */
+    private void writeBatch(List<LogEntry> batch) {
         if (redirectToStdout) {
-            for (LogEntry entry : buffer) {
-                System.out.println(entry.toStructuredJsonString());
+            writeStdout(batch);
+            return;
+        }
+        if (!breaker.tryAcquire()) {
+            if (spillQueue != null) {
+                throw new IllegalStateException("Circuit breaker open, not writing to Google Cloud Logging");
+            }
+            divert(batch);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            if (protoWriter != null) {
+                await(protoWriter.write(batch));
+            } else {
+                logging.write(batch);
+                flushLogging();
+            }
+            success = true;
+        } catch (RuntimeException e) {
+            onWriteFailure(e);
+            if (!failover) {
+                throw e;
             }
-            buffer.clear();
+            statusLogger.error("Failed to write {} log entries to Google Cloud Logging, writing them to stdout",
+                    batch.size(), e);
+            failover(batch);
+            return;
+        } finally {
+            metrics.recordWrite(batch, System.nanoTime() - start, success);
+        }
+        breaker.onSuccess();
+    }
+
+    private void writeStdout(List<LogEntry> batch) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            stdout.write(batch);
+            success = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.recordWrite(batch, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Handles a batch the circuit breaker kept from the API: it fails over to stdout, or is dropped.
+     */
+    private void divert(List<LogEntry> batch) {
+        if (failover) {
+            failover(batch);
         } else {
-            logging.write(buffer);
-            buffer.clear();
-            logging.flush();
+            for (LogEntry entry : batch) {
+                drops.increment(DropReason.CIRCUIT_OPEN, entry);
+            }
         }
     }
 
+    private void failover(List<LogEntry> batch) {
+        try {
+            stdout.write(batch);
+            metrics.recordFailover(batch.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the default {@code WriteLogEntries} batching settings of the client library, disabled.
+     */
+    static BatchingSettings unbatched() {
+        return LoggingSettings.newBuilder().writeLogEntriesSettings().getBatchingSettings().toBuilder()
+                .setIsEnabled(false)
+                .build();
+    }
+
+    /**
+     * Returns the retry settings of the client: at most {@code maxRetries} retries of a write that failed with a
+     * retryable status, after an exponential backoff with full jitter, within a bounded time.
+     */
+    static RetrySettings retrySettings(int maxRetries) {
+        return ServiceOptions.getDefaultRetrySettings().toBuilder()
+                .setMaxAttempts(maxRetries + 1)
+                .setInitialRetryDelay(Duration.ofMillis(INITIAL_RETRY_DELAY_MILLIS))
+                .setMaxRetryDelay(Duration.ofMillis(MAX_RETRY_DELAY_MILLIS))
+                .setInitialRpcTimeout(Duration.ofMillis(RPC_TIMEOUT_MILLIS))
+                .setMaxRpcTimeout(Duration.ofMillis(RPC_TIMEOUT_MILLIS))
+                .setTotalTimeout(Duration.ofMillis(TOTAL_RETRY_TIMEOUT_MILLIS))
+                .build();
+    }
+
     private record FactoryData(LoggerContext loggerContext,
                                String projectId,
                                String credentialsFile,
                                Logger statusLogger,
-                               boolean redirectToStdout) {
+                               boolean redirectToStdout,
+                               BufferSettings bufferSettings,
+                               SpillSettings spillSettings,
+                               MetricsListener metricsListener,
+                               TransportSettings transportSettings,
+                               ResilienceSettings resilienceSettings) {
+
+        PipelineSettings settings() {
+            return new PipelineSettings(redirectToStdout, bufferSettings, spillSettings,
+                    metricsListener != null ? metricsListener.getClass().getName() : null, transportSettings,
+                    resilienceSettings);
+        }
+    }
+
+    /**
+     * The settings that shape the write pipeline of a manager, and tell managers apart along with the project.
+     */
+    private record PipelineSettings(boolean redirectToStdout,
+                                    BufferSettings bufferSettings,
+                                    SpillSettings spillSettings,
+                                    String metricsListenerClass,
+                                    TransportSettings transportSettings,
+                                    ResilienceSettings resilienceSettings) {
     }
 
     private static class GoogleCloudLoggingManager2Factory implements
@@ -137,16 +780,29 @@ public final class GoogleCloudLoggingManager extends AbstractManager {
             String credFile = data.credentialsFile;
 
             try {
-                LoggingOptions loggingOptions;
-                if (credFile == null) {
-                    loggingOptions = LoggingOptions.getDefaultInstance();
-                } else {
-                    loggingOptions = LoggingOptions.newBuilder().setAutoPopulateMetadata(true).setCredentials(
-                            GoogleCredentials.fromStream(new FileInputStream(credFile))).build();
+                LoggingOptions.Builder loggingOptions = LoggingOptions.newBuilder();
+                if (data.projectId != null && !data.projectId.isBlank()) {
+                    // known already, the client library would look it up in the environment and metadata server
+                    loggingOptions.setProjectId(data.projectId);
+                }
+                ResilienceSettings resilienceSettings = data.resilienceSettings != null ? data.resilienceSettings
+                        : ResilienceSettings.DEFAULT;
+                loggingOptions.setRetrySettings(retrySettings(resilienceSettings.maxRetries()));
+                if (credFile != null) {
+                    loggingOptions.setAutoPopulateMetadata(true).setCredentials(
+                            GoogleCredentials.fromStream(new FileInputStream(credFile)));
+                }
+                if (data.transportSettings != null && data.transportSettings.transport() == Transport.DIRECT) {
+                    // batches are already formed here; gax batching would hold them back and merge concurrent ones
+                    loggingOptions.setBatchingSettings(unbatched());
                 }
 
-                return new GoogleCloudLoggingManager(data.loggerContext, name, data.projectId,
-                        loggingOptions.getService(), data.statusLogger, data.redirectToStdout);
+                GoogleCloudLoggingManager manager = new GoogleCloudLoggingManager(data.loggerContext, name,
+                        data.projectId, loggingOptions.build().getService(), data.statusLogger,
+                        data.redirectToStdout, data.bufferSettings, data.spillSettings, data.metricsListener,
+                        data.transportSettings, resilienceSettings);
+                manager.settings = data.settings();
+                return manager;
             } catch (Exception e) {
                 data.statusLogger.error(e);
             }
@@ -0,0 +1,87 @@
+package net.octapass.logging.log4j.gcp;
+
+import java.util.Map;
+
+/**
+ * Metrics of a {@link GoogleCloudLoggingManager}, registered with the platform MBean server as
+ * {@code net.octapass.logging.log4j.gcp:type=GoogleCloudLoggingManager,name=<manager name>} unless JMX is disabled
+ * with {@code log4j2.disableJmx}.
+ * <p>
+ * Counts are totals since the manager started. Percentiles are accurate to within 12.5%.
+ */
+public interface GoogleCloudLoggingManagerMXBean {
+
+    /** Entries handed to the manager. */
+    long getAcceptedCount();
+
+    /** Entries accepted by the API, or written to stdout. */
+    long getWrittenCount();
+
+    /** Entries in batches that failed to send. */
+    long getFailedCount();
+
+    /** Entries discarded, for any reason. */
+    long getDroppedCount();
+
+    /** Entries discarded, by {@link DropReason}. */
+    Map<String, Long> getDroppedCounts();
+
+    /** Entries waiting in memory to be sent. */
+    long getBufferDepth();
+
+    /** Bytes taken by the entries waiting in the off-heap buffer, {@code 0} without one. */
+    long getOffHeapBufferBytes();
+
+    /** Entries waiting in each severity lane of the buffer, empty without lanes. */
+    Map<String, Long> getLaneDepths();
+
+    /** Median time entries of each severity lane waited in the buffer, empty without lanes. */
+    Map<String, Long> getLaneWaitP50Micros();
+
+    /** 99th percentile of the time entries of each severity lane waited in the buffer, empty without lanes. */
+    Map<String, Long> getLaneWaitP99Micros();
+
+    /**
+     * Entries discarded, for any reason, by severity lane: HIGH for ERROR and above, NORMAL, LOW for DEBUG. Entries
+     * whose severity is unknown, such as spilled ones that could not be read back, count towards no lane.
+     */
+    Map<String, Long> getLaneDroppedCounts();
+
+    /** Write requests sent over the direct transport and not acknowledged yet. */
+    long getInFlightWriteCount();
+
+    /** Entries written to stdout because their write failed or the circuit breaker was open. */
+    long getFailoverCount();
+
+    /** Whether the circuit breaker is open, letting writes through to the API only as probes. */
+    boolean isCircuitBreakerOpen();
+
+    /** Write requests sent, whether they succeeded or not. */
+    long getWriteCount();
+
+    /** Flushes that failed. */
+    long getFailedFlushCount();
+
+    /** Estimated size of the entries written. */
+    long getBytesSent();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeP50();
+
+    long getBatchSizeP99();
+
+    long getBatchSizeMax();
+
+    long getWriteLatencyP50Micros();
+
+    long getWriteLatencyP99Micros();
+
+    long getWriteLatencyMaxMicros();
+
+    long getFlushLatencyP50Micros();
+
+    long getFlushLatencyP99Micros();
+
+    long getFlushLatencyMaxMicros();
+}
@@ -0,0 +1,68 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.logging.v2.WriteLogEntriesResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of write RPCs in flight at once. Submitting blocks while the bound is reached, which pushes back
+ * on the drain thread and from there on the buffer's overflow policy.
+ * <p>
+ * When ordered, a write is only started once the previous write of the same log name has completed, successfully or
+ * not. Writes of different log names still overlap. Completion is handled on the RPC's callback thread; nothing waits
+ * for a write except {@code flush} and {@code stop}.
+ */
+final class InFlightWrites {
+
+    private final Semaphore permits;
+    private final boolean ordered;
+    private final Map<String, ApiFuture<WriteLogEntriesResponse>> lastWrites = new ConcurrentHashMap<>();
+
+    InFlightWrites(int maxInFlight, boolean ordered) {
+        this.permits = new Semaphore(maxInFlight);
+        this.ordered = ordered;
+    }
+
+    /**
+     * Starts a write once a slot is free and, when ordered, once the previous write of the log name has completed.
+     */
+    ApiFuture<WriteLogEntriesResponse> submit(String logName, Supplier<ApiFuture<WriteLogEntriesResponse>> write)
+            throws InterruptedException {
+        permits.acquire();
+        ApiFuture<WriteLogEntriesResponse> future;
+        try {
+            future = ordered ? submitAfterPrevious(logName, write) : write.get();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        future.addListener(() -> {
+            permits.release();
+            if (ordered) {
+                lastWrites.remove(logName, future);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private ApiFuture<WriteLogEntriesResponse> submitAfterPrevious(
+            String logName, Supplier<ApiFuture<WriteLogEntriesResponse>> write) {
+        ApiFuture<WriteLogEntriesResponse> previous = lastWrites.get(logName);
+        ApiFuture<WriteLogEntriesResponse> future;
+        if (previous == null || previous.isDone()) {
+            future = write.get();
+        } else {
+            ApiFuture<WriteLogEntriesResponse> settled = ApiFutures.catching(previous, Throwable.class,
+                    failure -> null, MoreExecutors.directExecutor());
+            future = ApiFutures.transformAsync(settled, ignored -> write.get(), MoreExecutors.directExecutor());
+        }
+        lastWrites.put(logName, future);
+        return future;
+    }
+}
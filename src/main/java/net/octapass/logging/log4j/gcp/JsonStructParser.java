@@ -0,0 +1,285 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.protobuf.ListValue;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+/**
+ * Parses the JSON object rendered by a layout straight into a protobuf {@link Struct}. Unlike {@code JsonFormat},
+ * which parses into a Gson tree and converts that, values are built as the text is read, and keys and strings
+ * without escapes are a single substring each.
+ */
+final class JsonStructParser {
+
+    private static final int MAX_DEPTH = 100; // same recursion limit as JsonFormat
+    private static final int MAX_EXACT_DIGITS = 15; // integers that fit a double exactly
+    private static final Value TRUE = Value.newBuilder().setBoolValue(true).build();
+    private static final Value FALSE = Value.newBuilder().setBoolValue(false).build();
+    private static final Value NULL = Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
+
+    private final String json;
+    private final int length;
+    private int position;
+
+    private JsonStructParser(String json) {
+        this.json = json;
+        this.length = json.length();
+    }
+
+    /**
+     * Adds the fields of the JSON object to an empty struct.
+     *
+     * @return {@code false} if the text is not a single JSON object, in which case the struct is cleared
+     */
+    static boolean merge(String json, Struct.Builder struct) {
+        JsonStructParser parser = new JsonStructParser(json);
+        try {
+            parser.skipWhitespace();
+            parser.parseObject(struct, 0);
+            parser.skipWhitespace();
+            if (parser.position == parser.length) {
+                return true;
+            }
+        } catch (IllegalArgumentException e) {
+            // not JSON after all
+        }
+        struct.clear();
+        return false;
+    }
+
+    private void parseObject(Struct.Builder struct, int depth) {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = parseString();
+            skipWhitespace();
+            expect(':');
+            struct.putFields(key, parseValue(depth));
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw invalid();
+            }
+        }
+    }
+
+    private ListValue parseArray(int depth) {
+        ListValue.Builder list = ListValue.newBuilder();
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return list.build();
+        }
+        while (true) {
+            list.addValues(parseValue(depth));
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                return list.build();
+            }
+            if (c != ',') {
+                throw invalid();
+            }
+        }
+    }
+
+    private Value parseValue(int depth) {
+        skipWhitespace();
+        switch (peek()) {
+            case '{' -> {
+                if (depth >= MAX_DEPTH) {
+                    throw invalid();
+                }
+                Struct.Builder nested = Struct.newBuilder();
+                parseObject(nested, depth + 1);
+                return Value.newBuilder().setStructValue(nested).build();
+            }
+            case '[' -> {
+                if (depth >= MAX_DEPTH) {
+                    throw invalid();
+                }
+                return Value.newBuilder().setListValue(parseArray(depth + 1)).build();
+            }
+            case '"' -> {
+                return Value.newBuilder().setStringValue(parseString()).build();
+            }
+            case 't' -> {
+                expectLiteral("true");
+                return TRUE;
+            }
+            case 'f' -> {
+                expectLiteral("false");
+                return FALSE;
+            }
+            case 'n' -> {
+                expectLiteral("null");
+                return NULL;
+            }
+            default -> {
+                return Value.newBuilder().setNumberValue(parseNumber()).build();
+            }
+        }
+    }
+
+    private String parseString() {
+        expect('"');
+        int start = position;
+        while (position < length) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                return json.substring(start, position++);
+            }
+            if (c == '\\') {
+                return parseEscapedString(start);
+            }
+            if (c < ' ') {
+                throw invalid();
+            }
+            position++;
+        }
+        throw invalid();
+    }
+
+    private String parseEscapedString(int start) {
+        StringBuilder text = new StringBuilder(position - start + 16).append(json, start, position);
+        while (position < length) {
+            char c = json.charAt(position++);
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c < ' ') {
+                throw invalid();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case '"', '\\', '/' -> text.append(escaped);
+                case 'b' -> text.append('\b');
+                case 'f' -> text.append('\f');
+                case 'n' -> text.append('\n');
+                case 'r' -> text.append('\r');
+                case 't' -> text.append('\t');
+                case 'u' -> {
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw invalid();
+                        }
+                        code = code << 4 | digit;
+                    }
+                    text.append((char) code);
+                }
+                default -> throw invalid();
+            }
+        }
+        throw invalid();
+    }
+
+    /**
+     * Parses {@code -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?}, without a substring for short integers.
+     */
+    private double parseNumber() {
+        int start = position;
+        boolean negative = peek() == '-';
+        if (negative) {
+            position++;
+        }
+        int digitsStart = position;
+        long value = 0;
+        if (peek() == '0') {
+            position++;
+        } else {
+            while (isDigit(peek())) {
+                value = value * 10 + (json.charAt(position++) - '0');
+            }
+        }
+        int digits = position - digitsStart;
+        if (digits == 0) {
+            throw invalid();
+        }
+        boolean exact = digits <= MAX_EXACT_DIGITS;
+        if (peek() == '.') {
+            position++;
+            exact = false;
+            skipDigits();
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            position++;
+            exact = false;
+            if (peek() == '+' || peek() == '-') {
+                position++;
+            }
+            skipDigits();
+        }
+        if (exact) {
+            return negative ? -(double) value : value;
+        }
+        return Double.parseDouble(json.substring(start, position));
+    }
+
+    private void skipDigits() {
+        int start = position;
+        while (isDigit(peek())) {
+            position++;
+        }
+        if (position == start) {
+            throw invalid();
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void expectLiteral(String literal) {
+        if (!json.startsWith(literal, position)) {
+            throw invalid();
+        }
+        position += literal.length();
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw invalid();
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < length) {
+            char c = json.charAt(position);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Returns the current character, or {@code 0}, which no JSON token starts with, at the end of the text.
+     */
+    private char peek() {
+        return position < length ? json.charAt(position) : 0;
+    }
+
+    private char next() {
+        return position < length ? json.charAt(position++) : 0;
+    }
+
+    private IllegalArgumentException invalid() {
+        return new IllegalArgumentException("Invalid JSON at offset " + position);
+    }
+}
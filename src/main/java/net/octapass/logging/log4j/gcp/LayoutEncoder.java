@@ -0,0 +1,134 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.util.Constants;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders events with a {@link Layout} into reusable per-thread buffers, leaving the payload text as the only
+ * allocation. {@link PatternLayout} writes straight into the appender's {@link StringBuilder}; any other layout is
+ * asked to {@linkplain Layout#encode encode} into a growable byte buffer, which garbage-free layouts such as
+ * {@code JsonTemplateLayout} do without allocating.
+ */
+final class LayoutEncoder {
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+    private static final ThreadLocal<Destination> DESTINATION =
+            ThreadLocal.withInitial(() -> new Destination(INITIAL_BUFFER_BYTES));
+
+    private final Layout<?> layout;
+    private final PatternLayout patternLayout;
+    private final Charset charset;
+    private final boolean json;
+    private final String truncatedSuffix;
+
+    LayoutEncoder(Layout<?> layout, String truncatedSuffix) {
+        this.layout = layout;
+        this.patternLayout = layout instanceof PatternLayout pattern ? pattern : null;
+        this.charset = layout instanceof StringLayout stringLayout ? stringLayout.getCharset() : StandardCharsets.UTF_8;
+        this.json = layout.getContentType() != null && layout.getContentType().startsWith(JSON_CONTENT_TYPE);
+        this.truncatedSuffix = truncatedSuffix;
+    }
+
+    /**
+     * Returns whether the layout produces JSON objects.
+     */
+    boolean isJson() {
+        return json;
+    }
+
+    /**
+     * Renders the event without surrounding whitespace, cut to {@code maxBytes} bytes unless that is {@code 0} or
+     * the layout produces JSON.
+     *
+     * @param payload reusable buffer, cleared
+     */
+    String encode(LogEvent event, StringBuilder payload, int maxBytes) {
+        if (patternLayout != null) {
+            patternLayout.serialize(event, payload);
+            if (!json) {
+                GoogleCloudLoggingAppender.truncate(payload, maxBytes);
+            }
+            return GoogleCloudLoggingAppender.trimmed(payload);
+        }
+        Destination destination = Constants.ENABLE_THREADLOCALS ? DESTINATION.get()
+                : new Destination(INITIAL_BUFFER_BYTES);
+        destination.clear();
+        layout.encode(event, destination);
+        ByteBuffer buffer = destination.buffer;
+        byte[] bytes = buffer.array();
+        int start = 0;
+        int end = buffer.position();
+        while (start < end && (bytes[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (json || maxBytes == 0 || end - start <= maxBytes) {
+            return new String(bytes, start, end - start, charset);
+        }
+        if (charset != StandardCharsets.UTF_8) {
+            payload.append(new String(bytes, start, end - start, charset));
+            GoogleCloudLoggingAppender.truncate(payload, maxBytes);
+            return payload.toString();
+        }
+        int cut = start + maxBytes - truncatedSuffix.length();
+        while (cut > start && (bytes[cut] & 0xc0) == 0x80) {
+            cut--; // do not split a character
+        }
+        return new String(bytes, start, cut - start, charset) + truncatedSuffix;
+    }
+
+    /**
+     * Heap byte buffer that grows instead of being drained. Kept per thread and shrunk back when it has grown past
+     * the size Log4j reuses buffers up to.
+     */
+    private static final class Destination implements ByteBufferDestination {
+        private ByteBuffer buffer;
+
+        Destination(int capacity) {
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void clear() {
+            if (buffer.capacity() > Constants.MAX_REUSABLE_MESSAGE_SIZE * 4) {
+                buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(ByteBuffer full) {
+            ByteBuffer grown = ByteBuffer.allocate(full.capacity() * 2);
+            full.flip();
+            grown.put(full);
+            buffer = grown;
+            return grown;
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer data) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+        }
+    }
+}
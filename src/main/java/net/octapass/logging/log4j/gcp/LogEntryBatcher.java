@@ -0,0 +1,273 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Severity;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects {@link LogEntry} instances in a bounded queue and hands them over to a sink in batches from a dedicated
+ * drain thread. A batch is sent as soon as it holds {@link BufferSettings#batchSize()} entries, its oldest entry
+ * has waited {@link BufferSettings#maxLingerMillis()} or it holds an entry of severity ERROR or above, whichever
+ * comes first. When the queue is full, new entries are handled according to {@link BufferSettings#overflowPolicy()}.
+ * With {@link BufferSettings#severityLanes()}, the queue is split into {@link SeverityLanes}, which let higher
+ * severities overtake lower ones and, unless the policy is {@link OverflowPolicy#BLOCK}, shed lower severities
+ * before the overflow policy applies. With
+ * {@link BufferSettings#offHeapBytes()}, it is an {@link OffHeapEntryQueue}, full when its bytes run out.
+ * <p>
+ * Batches are also packed by estimated size: entries that would push a batch over
+ * {@link BufferSettings#maxBatchBytes()} start the next one, and entries over the per-entry API limit are truncated,
+ * or dropped as {@link DropReason#OVERSIZED} if they cannot be, so that no write is rejected for its size.
+ */
+final class LogEntryBatcher {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final BlockingQueue<LogEntry> queue;
+    private final SeverityLanes lanes;
+    private final OffHeapEntryQueue offHeapQueue;
+    private final int batchSize;
+    private final int maxBatchBytes;
+    private final int maxEntryBytes;
+    private final int[] entryBytes;
+    private final long maxLingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final Severity dropSeverity;
+    private final DropCounters drops;
+    private final Consumer<List<LogEntry>> sink;
+    private final Logger statusLogger;
+    private final Thread drainThread;
+    private volatile boolean running = true;
+    private long batchBytes; // confined to the drain thread, like entryBytes and urgent
+    private boolean urgent;
+
+    LogEntryBatcher(String name,
+                    BufferSettings settings,
+                    DropCounters drops,
+                    Consumer<List<LogEntry>> sink,
+                    Logger statusLogger) {
+        this.lanes = settings.severityLanes() ? new SeverityLanes(settings.bufferSize(),
+                settings.overflowPolicy() != OverflowPolicy.BLOCK, drops) : null;
+        this.offHeapQueue = settings.offHeapBytes() > 0 ? new OffHeapEntryQueue(settings.offHeapBytes(),
+                settings.maxEntryBytes(), settings.maxBatchBytes(), drops) : null;
+        this.queue = lanes != null ? lanes
+                : offHeapQueue != null ? offHeapQueue : new ArrayBlockingQueue<>(settings.bufferSize());
+        this.batchSize = settings.batchSize();
+        this.maxBatchBytes = settings.maxBatchBytes();
+        this.maxEntryBytes = settings.maxEntryBytes();
+        this.entryBytes = new int[batchSize];
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(settings.maxLingerMillis());
+        this.overflowPolicy = settings.overflowPolicy();
+        this.dropSeverity = settings.dropSeverity();
+        this.drops = drops;
+        this.sink = sink;
+        this.statusLogger = statusLogger;
+        this.drainThread = new Log4jThread(this::drain, "GoogleCloudLoggingManager-DrainThread-" + name);
+        this.drainThread.setDaemon(true); // avoid blocking JVM shutdown
+        this.drainThread.start();
+    }
+
+    /**
+     * Queues an entry, applying the overflow policy if the queue is full. Entries offered after {@link #stop} are
+     * sent straight to the sink from the calling thread.
+     */
+    void add(LogEntry entry) {
+        if (queue.offer(entry)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP_NEWEST -> drops.increment(DropReason.QUEUE_FULL, entry);
+            case DROP_OLDEST -> evictOldest(entry);
+            case DROP_BELOW_SEVERITY -> {
+                if (isBelowDropSeverity(entry)) {
+                    drops.increment(DropReason.BELOW_SEVERITY, entry);
+                } else {
+                    put(entry);
+                }
+            }
+            default -> put(entry);
+        }
+    }
+
+    /**
+     * Makes room for an entry by evicting the oldest queued one; with lanes, the oldest of its own lane, and if
+     * only higher lanes hold entries, the entry itself is dropped.
+     */
+    private void evictOldest(LogEntry entry) {
+        if (lanes != null) {
+            LogEntry evicted = lanes.offerEvicting(entry);
+            if (evicted != null) {
+                drops.increment(evicted == entry ? DropReason.QUEUE_FULL : DropReason.EVICTED, evicted);
+            }
+            return;
+        }
+        do {
+            LogEntry evicted = queue.poll();
+            if (evicted != null) {
+                drops.increment(DropReason.EVICTED, evicted);
+            }
+        } while (!queue.offer(entry));
+    }
+
+    private boolean isBelowDropSeverity(LogEntry entry) {
+        Severity severity = entry.getSeverity();
+        return severity == null || severity.compareTo(dropSeverity) < 0;
+    }
+
+    private void put(LogEntry entry) {
+        try {
+            while (running) {
+                if (queue.offer(entry, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LogEntry truncated = LogEntrySizes.truncate(entry, maxEntryBytes);
+        if (truncated == null) {
+            drops.increment(DropReason.OVERSIZED, entry);
+        } else {
+            send(List.of(truncated));
+        }
+    }
+
+    /**
+     * Returns the number of queued entries, not counting the batch being sent.
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the severity lanes of the queue, or {@code null} if it has none.
+     */
+    SeverityLanes lanes() {
+        return lanes;
+    }
+
+    /**
+     * Returns the bytes taken by queued entries outside the heap, {@code 0} without an off-heap buffer.
+     */
+    long offHeapBytes() {
+        return offHeapQueue != null ? offHeapQueue.usedBytes() : 0;
+    }
+
+    /**
+     * Stops the drain thread after it has sent everything queued so far.
+     *
+     * @return {@code true} if the drain thread finished within the timeout
+     */
+    boolean stop(long timeout, TimeUnit timeUnit) {
+        running = false;
+        try {
+            drainThread.join(timeUnit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !drainThread.isAlive();
+    }
+
+    private void drain() {
+        List<LogEntry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                long deadline = System.nanoTime();
+                if (batch.isEmpty()) {
+                    LogEntry first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    measure(batch, 0);
+                    deadline += maxLingerNanos;
+                } // else entries left over from the previous batch, they have waited long enough
+                fill(batch, deadline);
+            } catch (InterruptedException e) {
+                // keep draining, the loop ends once stop() was called and the queue is empty
+            }
+            sendPacked(batch);
+        }
+    }
+
+    private void fill(List<LogEntry> batch, long deadline) throws InterruptedException {
+        while (batch.size() < batchSize && batchBytes < maxBatchBytes) {
+            int from = batch.size();
+            queue.drainTo(batch, batchSize - from);
+            measure(batch, from);
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || batchBytes >= maxBatchBytes || urgent || remaining <= 0 || !running) {
+                return;
+            }
+            LogEntry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            measure(batch, batch.size() - 1);
+        }
+    }
+
+    /**
+     * Records the sizes of the entries from the given index on, truncating entries over the per-entry limit and
+     * dropping those that cannot be.
+     */
+    private void measure(List<LogEntry> batch, int from) {
+        for (int i = from; i < batch.size(); i++) {
+            LogEntry entry = batch.get(i);
+            int bytes = LogEntrySizes.estimate(entry);
+            if (bytes > maxEntryBytes) {
+                LogEntry truncated = LogEntrySizes.truncate(entry, bytes, maxEntryBytes);
+                if (truncated == null) {
+                    drops.increment(DropReason.OVERSIZED, entry);
+                    batch.remove(i--);
+                    continue;
+                }
+                if (truncated != entry) {
+                    entry = truncated;
+                    batch.set(i, entry);
+                    bytes = LogEntrySizes.estimate(entry);
+                }
+            }
+            entryBytes[i] = bytes;
+            batchBytes += bytes;
+            urgent |= entry.getSeverity() != null && entry.getSeverity().compareTo(Severity.ERROR) >= 0;
+        }
+    }
+
+    /**
+     * Sends the longest prefix of the batch that fits in {@code maxBatchBytes}, at least one entry, and keeps the
+     * rest at the start of the batch.
+     */
+    private void sendPacked(List<LogEntry> batch) {
+        int count = 0;
+        long bytes = 0;
+        while (count < batch.size() && (count == 0 || bytes + entryBytes[count] <= maxBatchBytes)) {
+            bytes += entryBytes[count++];
+        }
+        if (count == 0) {
+            return;
+        }
+        List<LogEntry> packed = batch.subList(0, count);
+        urgent = false; // an urgent entry left over goes out with the next batch, which does not linger
+        send(packed);
+        packed.clear();
+        System.arraycopy(entryBytes, count, entryBytes, 0, batch.size());
+        batchBytes -= bytes;
+    }
+
+    private void send(List<LogEntry> batch) {
+        try {
+            sink.accept(batch);
+        } catch (Exception e) {
+            statusLogger.error("Failed to write {} log entries to Google Cloud Logging", batch.size(), e);
+        }
+    }
+}
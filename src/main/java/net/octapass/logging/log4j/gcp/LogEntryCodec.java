@@ -0,0 +1,374 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.HttpRequest;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Operation;
+import com.google.cloud.logging.Payload;
+import com.google.cloud.logging.Severity;
+import com.google.cloud.logging.SourceLocation;
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import org.threeten.bp.Duration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of a {@link LogEntry}, used to keep entries outside the heap. Every nullable field is preceded
+ * by a presence flag; strings are written as a length followed by their UTF-8 bytes.
+ * <p>
+ * Instances keep a reusable encoding buffer and are not thread-safe. The buffer grows to the largest entry encoded;
+ * {@link #trim} gives back one that grew past {@value #MAX_RETAINED_BYTES} bytes.
+ */
+final class LogEntryCodec {
+
+    /**
+     * Version of the encoding, stored along persisted entries; raise it whenever the encoding changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private static final byte PAYLOAD_STRING = 0;
+    private static final byte PAYLOAD_JSON = 1;
+    private static final byte PAYLOAD_PROTO = 2;
+    private static final Severity[] SEVERITIES = Severity.values();
+    private static final int INITIAL_BUFFER_BYTES = 1024;
+    private static final int MAX_RETAINED_BYTES = 16 * 1024;
+
+    private final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * Encodes an entry into the internal buffer.
+     *
+     * @param insertId insert id to store if the entry has none, may be {@code null}
+     * @return a view of the encoded bytes, valid until the next call
+     */
+    ByteBuffer encode(LogEntry entry, String insertId) {
+        bytes.reset();
+        try {
+            writeString(entry.getLogName());
+            writeResource(entry.getResource());
+            Instant timestamp = entry.getInstantTimestamp();
+            out.writeBoolean(timestamp != null);
+            if (timestamp != null) {
+                out.writeLong(timestamp.getEpochSecond());
+                out.writeInt(timestamp.getNano());
+            }
+            Severity severity = entry.getSeverity();
+            out.writeByte(severity == null ? -1 : severity.ordinal());
+            writeString(entry.getInsertId() != null ? entry.getInsertId() : insertId);
+            writeHttpRequest(entry.getHttpRequest());
+            writeMap(entry.getLabels());
+            writeOperation(entry.getOperation());
+            writeString(entry.getTrace());
+            writeString(entry.getSpanId());
+            out.writeBoolean(entry.getTraceSampled());
+            writeSourceLocation(entry.getSourceLocation());
+            writePayload(entry.getPayload());
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot encode log entry", e); // not thrown by in-memory streams
+        }
+        return ByteBuffer.wrap(bytes.buffer(), 0, bytes.size());
+    }
+
+    /**
+     * Replaces the encoding buffer by a small one if an entry made it grow past {@value #MAX_RETAINED_BYTES} bytes,
+     * so that a long lived codec does not keep the largest entry it ever encoded. Ends the validity of the view
+     * returned by {@link #encode}.
+     */
+    void trim() {
+        bytes.trimToSize(MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Decodes an entry from the remaining bytes of the given buffer.
+     *
+     * @throws IllegalArgumentException if the bytes do not hold a valid entry
+     */
+    static LogEntry decode(ByteBuffer in) {
+        try {
+            String logName = readString(in);
+            MonitoredResource resource = readResource(in);
+            Instant timestamp = in.get() != 0 ? Instant.ofEpochSecond(in.getLong(), in.getInt()) : null;
+            byte severity = in.get();
+            String insertId = readString(in);
+            HttpRequest httpRequest = readHttpRequest(in);
+            Map<String, String> labels = readMap(in);
+            Operation operation = readOperation(in);
+            String trace = readString(in);
+            String spanId = readString(in);
+            boolean traceSampled = in.get() != 0;
+            SourceLocation sourceLocation = readSourceLocation(in);
+
+            LogEntry.Builder builder = LogEntry.newBuilder(readPayload(in))
+                    .setLogName(logName)
+                    .setResource(resource)
+                    .setInsertId(insertId)
+                    .setHttpRequest(httpRequest)
+                    .setOperation(operation)
+                    .setTrace(trace)
+                    .setSpanId(spanId)
+                    .setTraceSampled(traceSampled)
+                    .setSourceLocation(sourceLocation);
+            if (labels != null) {
+                builder.setLabels(labels);
+            }
+            if (timestamp != null) {
+                builder.setTimestamp(timestamp);
+            }
+            if (severity >= 0) {
+                builder.setSeverity(SEVERITIES[severity]);
+            }
+            return builder.build();
+        } catch (RuntimeException | InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Cannot decode log entry", e);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (!in.hasArray()) {
+            byte[] utf8 = new byte[length];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private void writeBytes(byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] value = new byte[in.getInt()];
+        in.get(value);
+        return value;
+    }
+
+    private void writeMap(Map<String, String> map) throws IOException {
+        if (map == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(ByteBuffer in) {
+        int size = in.getInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    private void writeResource(MonitoredResource resource) throws IOException {
+        out.writeBoolean(resource != null);
+        if (resource != null) {
+            writeString(resource.getType());
+            writeMap(resource.getLabels());
+        }
+    }
+
+    private static MonitoredResource readResource(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        String type = readString(in);
+        Map<String, String> labels = readMap(in);
+        return MonitoredResource.of(type, labels != null ? labels : Map.of());
+    }
+
+    private void writeHttpRequest(HttpRequest request) throws IOException {
+        out.writeBoolean(request != null);
+        if (request == null) {
+            return;
+        }
+        writeString(request.getRequestMethod() == null ? null : request.getRequestMethod().name());
+        writeString(request.getRequestUrl());
+        writeLong(request.getRequestSize());
+        out.writeInt(request.getStatus() == null ? Integer.MIN_VALUE : request.getStatus());
+        writeLong(request.getResponseSize());
+        writeString(request.getUserAgent());
+        writeString(request.getRemoteIp());
+        writeString(request.getServerIp());
+        writeString(request.getReferer());
+        out.writeBoolean(request.cacheLookup());
+        out.writeBoolean(request.cacheHit());
+        out.writeBoolean(request.cacheValidatedWithOriginServer());
+        writeLong(request.getCacheFillBytes());
+        Duration latency = request.getLatency();
+        out.writeBoolean(latency != null);
+        if (latency != null) {
+            out.writeLong(latency.getSeconds());
+            out.writeInt(latency.getNano());
+        }
+    }
+
+    private static HttpRequest readHttpRequest(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder();
+        String method = readString(in);
+        if (method != null) {
+            builder.setRequestMethod(HttpRequest.RequestMethod.valueOf(method));
+        }
+        builder.setRequestUrl(readString(in));
+        Long requestSize = readLong(in);
+        if (requestSize != null) {
+            builder.setRequestSize(requestSize);
+        }
+        int status = in.getInt();
+        if (status != Integer.MIN_VALUE) {
+            builder.setStatus(status);
+        }
+        Long responseSize = readLong(in);
+        if (responseSize != null) {
+            builder.setResponseSize(responseSize);
+        }
+        builder.setUserAgent(readString(in))
+                .setRemoteIp(readString(in))
+                .setServerIp(readString(in))
+                .setReferer(readString(in))
+                .setCacheLookup(in.get() != 0)
+                .setCacheHit(in.get() != 0)
+                .setCacheValidatedWithOriginServer(in.get() != 0);
+        Long cacheFillBytes = readLong(in);
+        if (cacheFillBytes != null) {
+            builder.setCacheFillBytes(cacheFillBytes);
+        }
+        if (in.get() != 0) {
+            builder.setLatency(Duration.ofSeconds(in.getLong(), in.getInt()));
+        }
+        return builder.build();
+    }
+
+    private void writeLong(Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(ByteBuffer in) {
+        return in.get() != 0 ? in.getLong() : null;
+    }
+
+    private void writeOperation(Operation operation) throws IOException {
+        out.writeBoolean(operation != null);
+        if (operation != null) {
+            writeString(operation.getId());
+            writeString(operation.getProducer());
+            out.writeBoolean(operation.first());
+            out.writeBoolean(operation.last());
+        }
+    }
+
+    private static Operation readOperation(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        return Operation.newBuilder(readString(in), readString(in))
+                .setFirst(in.get() != 0)
+                .setLast(in.get() != 0)
+                .build();
+    }
+
+    private void writeSourceLocation(SourceLocation location) throws IOException {
+        out.writeBoolean(location != null);
+        if (location != null) {
+            writeString(location.getFile());
+            writeLong(location.getLine());
+            writeString(location.getFunction());
+        }
+    }
+
+    private static SourceLocation readSourceLocation(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        SourceLocation.Builder builder = SourceLocation.newBuilder().setFile(readString(in));
+        Long line = readLong(in);
+        if (line != null) {
+            builder.setLine(line);
+        }
+        return builder.setFunction(readString(in)).build();
+    }
+
+    private void writePayload(Payload<?> payload) throws IOException {
+        switch (payload.getType()) {
+            case STRING -> {
+                out.writeByte(PAYLOAD_STRING);
+                writeString(((Payload.StringPayload) payload).getData());
+            }
+            case JSON -> {
+                out.writeByte(PAYLOAD_JSON);
+                writeBytes(((Payload.JsonPayload) payload).getData().toByteArray());
+            }
+            default -> {
+                out.writeByte(PAYLOAD_PROTO);
+                writeBytes(((Payload.ProtoPayload) payload).getData().toByteArray());
+            }
+        }
+    }
+
+    private static Payload<?> readPayload(ByteBuffer in) throws InvalidProtocolBufferException {
+        return switch (in.get()) {
+            case PAYLOAD_STRING -> Payload.StringPayload.of(readString(in));
+            case PAYLOAD_JSON -> Payload.JsonPayload.of(Struct.parseFrom(readBytes(in)));
+            case PAYLOAD_PROTO -> Payload.ProtoPayload.of(Any.parseFrom(readBytes(in)));
+            default -> throw new IllegalArgumentException("Unknown payload type");
+        };
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream() {
+            super(INITIAL_BUFFER_BYTES);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void trimToSize(int maxSize) {
+            if (buf.length > maxSize) {
+                buf = new byte[INITIAL_BUFFER_BYTES];
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.HttpRequest;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Operation;
+import com.google.cloud.logging.Payload;
+import com.google.cloud.logging.Severity;
+import com.google.cloud.logging.SourceLocation;
+import com.google.cloud.logging.spi.v2.LoggingRpc;
+import com.google.logging.type.LogSeverity;
+import com.google.logging.v2.LogEntryOperation;
+import com.google.logging.v2.LogEntrySourceLocation;
+import com.google.logging.v2.LogName;
+import com.google.logging.v2.WriteLogEntriesRequest;
+import com.google.logging.v2.WriteLogEntriesResponse;
+import com.google.protobuf.Duration;
+import com.google.protobuf.Timestamp;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends batches straight to the {@code WriteLogEntries} RPC of the client library, under its credentials, channel
+ * and retry settings.
+ * <p>
+ * {@code Logging.write} copies every entry to fill in metadata the appender already set, capturing a stack trace for
+ * DEBUG entries without a source location, and then converts each copy to protobuf with its own log name and
+ * resource. Here every entry is converted once, with one reused builder per batch, and the log name, resource and
+ * labels common to all entries of a batch are set on the request instead. A batch of an appender with routes mixes
+ * logs: the request then carries the log name of most of its entries, and only the others name their log.
+ */
+final class LogEntryProtoWriter {
+
+    private static final int MAX_CACHED_LOG_NAMES = 256;
+    private static final LogSeverity[] SEVERITIES = severities();
+
+    private final String projectId;
+    private final LoggingRpc rpc;
+    private final Map<String, String> logNames = new ConcurrentHashMap<>();
+    private volatile ConvertedResource lastResource;
+
+    LogEntryProtoWriter(String projectId, LoggingRpc rpc) {
+        this.projectId = projectId;
+        this.rpc = rpc;
+    }
+
+    ApiFuture<WriteLogEntriesResponse> write(List<LogEntry> batch) {
+        return write(toRequest(batch));
+    }
+
+    ApiFuture<WriteLogEntriesResponse> write(WriteLogEntriesRequest request) {
+        return rpc.write(request);
+    }
+
+    WriteLogEntriesRequest toRequest(List<LogEntry> batch) {
+        WriteLogEntriesRequest.Builder request = WriteLogEntriesRequest.newBuilder().setPartialSuccess(true);
+        LogEntry first = batch.get(0);
+        String sharedLogName = first.getLogName();
+        MonitoredResource sharedResource = first.getResource();
+        boolean mixedLogs = false;
+        for (int i = 1; i < batch.size() && (!mixedLogs || sharedResource != null); i++) {
+            LogEntry entry = batch.get(i);
+            if (!mixedLogs && !Objects.equals(sharedLogName, entry.getLogName())) {
+                mixedLogs = true;
+            }
+            if (sharedResource != entry.getResource() && !Objects.equals(sharedResource, entry.getResource())) {
+                sharedResource = null;
+            }
+        }
+        if (mixedLogs) {
+            sharedLogName = mostFrequentLogName(batch);
+        }
+        Map<String, String> sharedLabels = sharedLabels(batch);
+        if (sharedLogName != null) {
+            request.setLogName(logName(sharedLogName));
+        }
+        if (sharedResource != null) {
+            request.setResource(resource(sharedResource));
+        }
+        request.putAllLabels(sharedLabels);
+
+        com.google.logging.v2.LogEntry.Builder builder = com.google.logging.v2.LogEntry.newBuilder();
+        for (LogEntry entry : batch) {
+            request.addEntries(toProto(entry, builder.clear(), !Objects.equals(sharedLogName, entry.getLogName()),
+                    sharedResource == null, sharedLabels));
+        }
+        return request.build();
+    }
+
+    private static String mostFrequentLogName(List<LogEntry> batch) {
+        Map<String, Integer> counts = new HashMap<>();
+        String mostFrequent = null;
+        int maxCount = 0;
+        for (LogEntry entry : batch) {
+            int count = counts.merge(Objects.requireNonNullElse(entry.getLogName(), ""), 1, Integer::sum);
+            if (count > maxCount) {
+                maxCount = count;
+                mostFrequent = entry.getLogName();
+            }
+        }
+        return mostFrequent;
+    }
+
+    private com.google.logging.v2.LogEntry toProto(LogEntry entry, com.google.logging.v2.LogEntry.Builder builder,
+                                                   boolean withLogName, boolean withResource,
+                                                   Map<String, String> sharedLabels) {
+        if (withLogName && entry.getLogName() != null) {
+            builder.setLogName(logName(entry.getLogName()));
+        }
+        if (withResource && entry.getResource() != null) {
+            builder.setResource(resource(entry.getResource()));
+        }
+        for (Map.Entry<String, String> label : entry.getLabels().entrySet()) {
+            if (!sharedLabels.containsKey(label.getKey())) {
+                builder.putLabels(label.getKey(), label.getValue());
+            }
+        }
+        Payload<?> payload = entry.getPayload();
+        switch (payload.getType()) {
+            case STRING -> builder.setTextPayload(((Payload.StringPayload) payload).getData());
+            case JSON -> builder.setJsonPayload(((Payload.JsonPayload) payload).getData());
+            default -> builder.setProtoPayload(((Payload.ProtoPayload) payload).getData());
+        }
+        if (entry.getInstantTimestamp() != null) {
+            builder.setTimestamp(timestamp(entry.getInstantTimestamp()));
+        }
+        if (entry.getInstantReceiveTimestamp() != null) {
+            builder.setReceiveTimestamp(timestamp(entry.getInstantReceiveTimestamp()));
+        }
+        if (entry.getSeverity() != null && SEVERITIES[entry.getSeverity().ordinal()] != null) {
+            builder.setSeverity(SEVERITIES[entry.getSeverity().ordinal()]);
+        }
+        if (entry.getInsertId() != null) {
+            builder.setInsertId(entry.getInsertId());
+        }
+        if (entry.getHttpRequest() != null) {
+            builder.setHttpRequest(httpRequest(entry.getHttpRequest()));
+        }
+        if (entry.getOperation() != null) {
+            Operation operation = entry.getOperation();
+            builder.setOperation(LogEntryOperation.newBuilder()
+                    .setId(operation.getId())
+                    .setProducer(operation.getProducer())
+                    .setFirst(operation.first())
+                    .setLast(operation.last()));
+        }
+        if (entry.getTrace() != null) {
+            builder.setTrace(entry.getTrace());
+        }
+        if (entry.getSpanId() != null) {
+            builder.setSpanId(entry.getSpanId());
+        }
+        builder.setTraceSampled(entry.getTraceSampled());
+        if (entry.getSourceLocation() != null) {
+            SourceLocation sourceLocation = entry.getSourceLocation();
+            LogEntrySourceLocation.Builder location = LogEntrySourceLocation.newBuilder();
+            if (sourceLocation.getFile() != null) {
+                location.setFile(sourceLocation.getFile());
+            }
+            if (sourceLocation.getLine() != null) {
+                location.setLine(sourceLocation.getLine());
+            }
+            if (sourceLocation.getFunction() != null) {
+                location.setFunction(sourceLocation.getFunction());
+            }
+            builder.setSourceLocation(location);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the labels every entry of the batch has with the same value.
+     */
+    private static Map<String, String> sharedLabels(List<LogEntry> batch) {
+        Map<String, String> first = batch.get(0).getLabels();
+        if (first.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, String> shared = new HashMap<>(first);
+        for (int i = 1; i < batch.size() && !shared.isEmpty(); i++) {
+            Map<String, String> labels = batch.get(i).getLabels();
+            shared.entrySet().removeIf(label -> !label.getValue().equals(labels.get(label.getKey())));
+        }
+        return shared;
+    }
+
+    private String logName(String name) {
+        String logName = logNames.get(name);
+        if (logName == null) {
+            logName = LogName.ofProjectLogName(projectId, name).toString();
+            if (logNames.size() < MAX_CACHED_LOG_NAMES) {
+                logNames.put(name, logName);
+            }
+        }
+        return logName;
+    }
+
+    /**
+     * Converts a resource, remembering the last one; the appender uses the same resource for all of its entries.
+     */
+    private com.google.api.MonitoredResource resource(MonitoredResource resource) {
+        ConvertedResource last = lastResource;
+        if (last == null || last.resource() != resource) {
+            last = new ConvertedResource(resource, resource.toPb());
+            lastResource = last;
+        }
+        return last.proto();
+    }
+
+    private static Timestamp timestamp(Instant instant) {
+        return Timestamp.newBuilder().setSeconds(instant.getEpochSecond()).setNanos(instant.getNano()).build();
+    }
+
+    private static com.google.logging.type.HttpRequest httpRequest(HttpRequest httpRequest) {
+        com.google.logging.type.HttpRequest.Builder builder = com.google.logging.type.HttpRequest.newBuilder()
+                .setCacheLookup(httpRequest.cacheLookup())
+                .setCacheHit(httpRequest.cacheHit())
+                .setCacheValidatedWithOriginServer(httpRequest.cacheValidatedWithOriginServer());
+        if (httpRequest.getRequestMethod() != null) {
+            builder.setRequestMethod(httpRequest.getRequestMethod().name());
+        }
+        if (httpRequest.getRequestUrl() != null) {
+            builder.setRequestUrl(httpRequest.getRequestUrl());
+        }
+        if (httpRequest.getRequestSize() != null) {
+            builder.setRequestSize(httpRequest.getRequestSize());
+        }
+        if (httpRequest.getStatus() != null) {
+            builder.setStatus(httpRequest.getStatus());
+        }
+        if (httpRequest.getResponseSize() != null) {
+            builder.setResponseSize(httpRequest.getResponseSize());
+        }
+        if (httpRequest.getUserAgent() != null) {
+            builder.setUserAgent(httpRequest.getUserAgent());
+        }
+        if (httpRequest.getRemoteIp() != null) {
+            builder.setRemoteIp(httpRequest.getRemoteIp());
+        }
+        if (httpRequest.getServerIp() != null) {
+            builder.setServerIp(httpRequest.getServerIp());
+        }
+        if (httpRequest.getReferer() != null) {
+            builder.setReferer(httpRequest.getReferer());
+        }
+        if (httpRequest.getCacheFillBytes() != null) {
+            builder.setCacheFillBytes(httpRequest.getCacheFillBytes());
+        }
+        if (httpRequest.getLatency() != null) {
+            builder.setLatency(Duration.newBuilder()
+                    .setSeconds(httpRequest.getLatency().getSeconds())
+                    .setNanos(httpRequest.getLatency().getNano()));
+        }
+        return builder.build();
+    }
+
+    private static LogSeverity[] severities() {
+        Severity[] severities = Severity.values();
+        LogSeverity[] mapped = new LogSeverity[severities.length];
+        for (Severity severity : severities) {
+            if (severity != Severity.NONE) {
+                mapped[severity.ordinal()] = LogSeverity.valueOf(severity.name());
+            }
+        }
+        return mapped;
+    }
+
+    private record ConvertedResource(MonitoredResource resource, com.google.api.MonitoredResource proto) {
+    }
+}
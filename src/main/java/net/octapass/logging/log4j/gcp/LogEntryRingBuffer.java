@@ -0,0 +1,165 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Severity;
+import com.lmax.disruptor.BatchEventProcessor;
+import com.lmax.disruptor.BatchEventProcessorBuilder;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free front end of the buffered write mode. Application threads publish entries into a preallocated
+ * multi-producer ring buffer; a single consumer thread moves them into the {@link LogEntryBatcher} that does the
+ * batching and the actual writes, so producers never contend on a lock or wait for an RPC unless the policy says so.
+ * <p>
+ * {@link OverflowPolicy#DROP_NEWEST} and {@link OverflowPolicy#DROP_BELOW_SEVERITY} are applied by the producers
+ * when the ring buffer is full. {@link OverflowPolicy#DROP_OLDEST} is applied by the consumer, which evicts the oldest
+ * queued entries instead of waiting for the batcher, so the ring buffer keeps draining.
+ */
+final class LogEntryRingBuffer {
+
+    private static final long SHUTDOWN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RingBuffer<Slot> ringBuffer;
+    private final BatchEventProcessor<Slot> processor;
+    private final Thread consumerThread;
+    private final LogEntryBatcher batcher;
+    private final OverflowPolicy overflowPolicy;
+    private final Severity dropSeverity;
+    private final DropCounters drops;
+    private volatile boolean running = true;
+
+    LogEntryRingBuffer(String name, BufferSettings settings, LogEntryBatcher batcher, DropCounters drops,
+                       Logger statusLogger) {
+        this.batcher = batcher;
+        this.overflowPolicy = settings.overflowPolicy();
+        this.dropSeverity = settings.dropSeverity();
+        this.drops = drops;
+        this.ringBuffer = RingBuffer.createMultiProducer(Slot::new, settings.ringBufferSize(),
+                new SleepingWaitStrategy());
+        this.processor = new BatchEventProcessorBuilder()
+                .build(ringBuffer, ringBuffer.newBarrier(), new SlotHandler(batcher));
+        this.processor.setExceptionHandler(new StatusLoggerExceptionHandler(statusLogger));
+        ringBuffer.addGatingSequences(processor.getSequence());
+        this.consumerThread = new Log4jThread(processor, "GoogleCloudLoggingManager-RingBufferThread-" + name);
+        this.consumerThread.setDaemon(true); // avoid blocking JVM shutdown
+        this.consumerThread.start();
+    }
+
+    /**
+     * Publishes an entry, applying the overflow policy if the ring buffer is full. Entries published after
+     * {@link #stop} are handed to the batcher directly.
+     */
+    void publish(LogEntry entry) {
+        if (!running) {
+            batcher.add(entry);
+            return;
+        }
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST -> {
+                    drops.increment(DropReason.QUEUE_FULL, entry);
+                    return;
+                }
+                case DROP_BELOW_SEVERITY -> {
+                    Severity severity = entry.getSeverity();
+                    if (severity == null || severity.compareTo(dropSeverity) < 0) {
+                        drops.increment(DropReason.BELOW_SEVERITY, entry);
+                        return;
+                    }
+                }
+                default -> {
+                    // BLOCK and DROP_OLDEST wait for the consumer, which never waits on an RPC for DROP_OLDEST
+                }
+            }
+            sequence = ringBuffer.next();
+        }
+        try {
+            ringBuffer.get(sequence).entry = entry;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    /**
+     * Returns the number of published entries not yet handed to the batcher.
+     */
+    long size() {
+        return Math.max(0, ringBuffer.getCursor() - processor.getSequence().get());
+    }
+
+    /**
+     * Stops the consumer thread once everything published so far has reached the batcher.
+     *
+     * @return {@code true} if the ring buffer was drained within the timeout
+     */
+    boolean stop(long timeout, TimeUnit timeUnit) {
+        running = false;
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        while (processor.getSequence().get() < ringBuffer.getCursor() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(SHUTDOWN_POLL_NANOS);
+        }
+        processor.halt();
+        try {
+            consumerThread.join(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) + 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumerThread.isAlive()) {
+            return false;
+        }
+        // entries published while the consumer was halting
+        for (long sequence = processor.getSequence().get() + 1; sequence <= ringBuffer.getCursor(); sequence++) {
+            if (ringBuffer.isAvailable(sequence)) {
+                Slot slot = ringBuffer.get(sequence);
+                batcher.add(slot.entry);
+                slot.entry = null;
+            }
+        }
+        processor.getSequence().set(ringBuffer.getCursor()); // release producers still waiting for capacity
+        return true;
+    }
+
+    private static final class Slot {
+        private LogEntry entry;
+    }
+
+    private record SlotHandler(LogEntryBatcher batcher) implements EventHandler<Slot> {
+
+        @Override
+        public void onEvent(Slot slot, long sequence, boolean endOfBatch) {
+            LogEntry entry = slot.entry;
+            slot.entry = null;
+            batcher.add(entry);
+        }
+    }
+
+    private record StatusLoggerExceptionHandler(Logger statusLogger) implements ExceptionHandler<Slot> {
+
+        @Override
+        public void handleEventException(Throwable ex, long sequence, Slot slot) {
+            statusLogger.error("Failed to buffer log entry for Google Cloud Logging", ex);
+        }
+
+        @Override
+        public void handleOnStartException(Throwable ex) {
+            statusLogger.error("Failed to start Google Cloud Logging ring buffer", ex);
+        }
+
+        @Override
+        public void handleOnShutdownException(Throwable ex) {
+            statusLogger.error("Failed to stop Google Cloud Logging ring buffer", ex);
+        }
+    }
+}
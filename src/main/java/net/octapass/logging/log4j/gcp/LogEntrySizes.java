@@ -0,0 +1,209 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Payload;
+import com.google.cloud.logging.SourceLocation;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Size estimates of log entries as sent to the Cloud Logging API, and truncation of entries that exceed the per-entry
+ * limit. Entries that cannot be truncated enough are dropped by the callers as {@link DropReason#OVERSIZED}.
+ * <p>
+ * Estimates follow the protobuf wire format closely enough to pack requests against the API limits, without
+ * converting entries to protobuf on the drain thread. Struct payloads use their own, memoized, serialized size.
+ */
+final class LogEntrySizes {
+
+    /**
+     * Largest entry accepted by the API.
+     */
+    static final int MAX_ENTRY_BYTES = 256 * 1024;
+
+    /**
+     * Largest write request accepted by the API, minus headroom for the request envelope.
+     */
+    static final int MAX_REQUEST_BYTES = 9 * 1024 * 1024;
+
+    /**
+     * Appended to a payload where it was cut, by the appender and by {@link #truncate}.
+     */
+    static final String TRUNCATION_MARKER = "\n... [payload truncated]";
+
+    private static final int ENTRY_OVERHEAD = 64; // framing, timestamp, severity and trace sampling flag
+    private static final int HTTP_REQUEST_ESTIMATE = 512;
+    private static final String MESSAGE_KEY = "message";
+
+    private LogEntrySizes() {
+    }
+
+    static int estimate(LogEntry entry) {
+        long size = ENTRY_OVERHEAD
+                + fieldSize(entry.getLogName())
+                + fieldSize(entry.getInsertId())
+                + fieldSize(entry.getTrace())
+                + fieldSize(entry.getSpanId())
+                + mapSize(entry.getLabels())
+                + payloadSize(entry.getPayload());
+        MonitoredResource resource = entry.getResource();
+        if (resource != null) {
+            size += 2 + fieldSize(resource.getType()) + mapSize(resource.getLabels());
+        }
+        SourceLocation sourceLocation = entry.getSourceLocation();
+        if (sourceLocation != null) {
+            size += 12 + fieldSize(sourceLocation.getFile()) + fieldSize(sourceLocation.getFunction());
+        }
+        if (entry.getHttpRequest() != null) {
+            size += HTTP_REQUEST_ESTIMATE;
+        }
+        if (entry.getOperation() != null) {
+            size += 4 + fieldSize(entry.getOperation().getId()) + fieldSize(entry.getOperation().getProducer());
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Shortens the text payload of an entry, or the string fields of a JSON payload starting with {@code message},
+     * and then its label values, largest first, so that the estimated size of the entry fits in {@code maxBytes}.
+     *
+     * @return the entry itself if it fits, the shortened entry, or {@code null} if the entry cannot be shortened
+     *         enough, for example because of its nested JSON fields or its resource labels
+     */
+    static LogEntry truncate(LogEntry entry, int maxBytes) {
+        return truncate(entry, estimate(entry), maxBytes);
+    }
+
+    /**
+     * Same as {@link #truncate(LogEntry, int)}, for an entry whose {@link #estimate} is already known.
+     */
+    static LogEntry truncate(LogEntry entry, int estimate, int maxBytes) {
+        int excess = estimate - maxBytes;
+        if (excess <= 0) {
+            return entry;
+        }
+        LogEntry.Builder builder = entry.toBuilder();
+        Payload<?> payload = entry.getPayload();
+        if (payload.getType() == Payload.Type.STRING) {
+            String text = ((Payload.StringPayload) payload).getData();
+            String shortened = shorten(text, excess);
+            excess -= saved(text, shortened);
+            builder.setPayload(Payload.StringPayload.of(shortened));
+        } else if (payload.getType() == Payload.Type.JSON) {
+            Struct.Builder data = ((Payload.JsonPayload) payload).getData().toBuilder();
+            List<String> keys = largestFirst(data.getFieldsMap(), value -> value.getKindCase()
+                    == Value.KindCase.STRING_VALUE ? value.getStringValue().length() : -1);
+            keys.remove(MESSAGE_KEY);
+            if (data.getFieldsOrDefault(MESSAGE_KEY, Value.getDefaultInstance()).hasStringValue()) {
+                keys.add(0, MESSAGE_KEY);
+            }
+            for (int i = 0; i < keys.size() && excess > 0; i++) {
+                String text = data.getFieldsOrThrow(keys.get(i)).getStringValue();
+                String shortened = shorten(text, excess);
+                excess -= saved(text, shortened);
+                data.putFields(keys.get(i), Value.newBuilder().setStringValue(shortened).build());
+            }
+            builder.setPayload(Payload.JsonPayload.of(data.build()));
+        }
+        if (excess > 0 && entry.getLabels() != null && !entry.getLabels().isEmpty()) {
+            Map<String, String> labels = new LinkedHashMap<>(entry.getLabels());
+            for (String key : largestFirst(labels, String::length)) {
+                if (excess <= 0) {
+                    break;
+                }
+                String text = labels.get(key);
+                String shortened = shorten(text, excess);
+                excess -= saved(text, shortened);
+                labels.put(key, shortened);
+            }
+            builder.setLabels(labels);
+        }
+        LogEntry truncated = builder.build();
+        return estimate(truncated) <= maxBytes ? truncated : null;
+    }
+
+    /**
+     * Removes at least {@code excess} bytes from the end of the text, marking the cut, or as many as it can if the
+     * text is shorter than that.
+     *
+     * @return the shortened text, or the text itself if it is not longer than the marker
+     */
+    private static String shorten(String text, int excess) {
+        if (text.length() <= TRUNCATION_MARKER.length()) {
+            return text;
+        }
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            bytes += utf8Length(text.charAt(i));
+        }
+        int budget = bytes - excess - TRUNCATION_MARKER.length();
+        int end = 0;
+        for (int kept = 0; end < text.length(); end++) {
+            kept += utf8Length(text.charAt(end));
+            if (kept > budget) {
+                break;
+            }
+        }
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return new StringBuilder(end + TRUNCATION_MARKER.length()).append(text, 0, end).append(TRUNCATION_MARKER)
+                .toString();
+    }
+
+    private static int utf8Length(char c) {
+        return c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+    }
+
+    private static int saved(String text, String shortened) {
+        return text == shortened ? 0 : fieldSize(text) - fieldSize(shortened);
+    }
+
+    /**
+     * Returns the keys of the map ordered by the size of their values, largest first, leaving out negative sizes.
+     */
+    private static <V> List<String> largestFirst(Map<String, V> map, ToIntFunction<V> size) {
+        List<String> keys = new ArrayList<>(map.size());
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            if (size.applyAsInt(entry.getValue()) >= 0) {
+                keys.add(entry.getKey());
+            }
+        }
+        keys.sort(Comparator.comparingInt((String key) -> size.applyAsInt(map.get(key))).reversed());
+        return keys;
+    }
+
+    private static long payloadSize(Payload<?> payload) {
+        return switch (payload.getType()) {
+            case STRING -> fieldSize(((Payload.StringPayload) payload).getData());
+            case JSON -> messageSize(((Payload.JsonPayload) payload).getData().getSerializedSize());
+            default -> messageSize(((Payload.ProtoPayload) payload).getData().getSerializedSize());
+        };
+    }
+
+    private static long mapSize(Map<String, String> map) {
+        long size = 0;
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                size += messageSize(fieldSize(entry.getKey()) + fieldSize(entry.getValue()));
+            }
+        }
+        return size;
+    }
+
+    private static int fieldSize(String value) {
+        return value == null ? 0 : 1 + CodedOutputStream.computeStringSizeNoTag(value);
+    }
+
+    private static int messageSize(int size) {
+        return 1 + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+}
@@ -0,0 +1,59 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+/**
+ * Sends the events that match one condition to another log than the appender's {@code gcpLogName}, with extra
+ * labels:
+ * <pre>{@code
+ * <LogRoute logName="audit" marker="AUDIT"/>
+ * <LogRoute logName="tenant" mdcKey="tenantId"/>
+ * <LogRoute logName="access" loggerPrefix="org.eclipse.jetty.server.RequestLog">
+ *     <Property name="stream" value="access"/>
+ * </LogRoute>
+ * }</pre>
+ * A route matches events with the given marker or a marker that has it as parent, events whose context data has
+ * {@code mdcKey}, with the value {@code mdcValue} if set, or events of the loggers at or below {@code loggerPrefix}.
+ * Marker routes are tried first and context data routes next, each in the order configured; then the longest
+ * matching logger prefix wins. Routes are checked when the appender is built, so that an invalid one fails the
+ * appender instead of leaving its events in the default log.
+ *
+ * @param labels labels added to the entries of the route, or {@code null}
+ */
+@Plugin(name = "LogRoute", category = Node.CATEGORY, printObject = true)
+public record LogRoute(String logName, String loggerPrefix, String marker, String mdcKey, String mdcValue,
+                       Property[] labels) {
+
+    /**
+     * Checks that the route has a log name and exactly one condition.
+     */
+    void validate() {
+        if (logName == null || logName.isBlank()) {
+            throw new IllegalArgumentException("LogRoute needs a logName");
+        }
+        int conditions = (loggerPrefix != null ? 1 : 0) + (marker != null ? 1 : 0) + (mdcKey != null ? 1 : 0);
+        if (conditions != 1) {
+            throw new IllegalArgumentException("LogRoute " + logName
+                    + " needs exactly one of loggerPrefix, marker and mdcKey");
+        }
+        if (mdcValue != null && mdcKey == null) {
+            throw new IllegalArgumentException("LogRoute " + logName + " has an mdcValue without an mdcKey");
+        }
+    }
+
+    @PluginFactory
+    public static LogRoute createLogRoute(
+            @PluginAttribute("logName") final String logName,
+            @PluginAttribute("loggerPrefix") final String loggerPrefix,
+            @PluginAttribute("marker") final String marker,
+            @PluginAttribute("mdcKey") final String mdcKey,
+            @PluginAttribute("mdcValue") final String mdcValue,
+            @PluginElement("Properties") final Property[] labels) {
+        return new LogRoute(logName, loggerPrefix, marker, mdcKey, mdcValue, labels);
+    }
+}
@@ -0,0 +1,151 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the log, and the extra labels, of each event from the {@link LogRoute}s of an appender.
+ * <p>
+ * The routes are compiled once: marker and context data routes into arrays tried in order, logger prefixes into a
+ * map looked up from the full logger name up the logger hierarchy. The target found for a logger name is cached, so
+ * an event routed by logger costs one map lookup; an event without a marker or a matching context data route skips
+ * those checks without allocating.
+ */
+final class LogRouter {
+
+    private static final int MAX_CACHED_LOGGERS = 4096;
+    private static final String[] NO_LABELS = new String[0];
+
+    private final Target defaultTarget;
+    private final String[] markers;
+    private final Target[] markerTargets;
+    private final String[] mdcKeys;
+    private final String[] mdcValues;
+    private final Target[] mdcTargets;
+    private final Map<String, Target> prefixes;
+    private final Map<String, Target> loggers = new ConcurrentHashMap<>();
+
+    private LogRouter(Target defaultTarget, List<LogRoute> markerRoutes, List<LogRoute> mdcRoutes,
+                      Map<String, Target> prefixes) {
+        this.defaultTarget = defaultTarget;
+        this.markers = markerRoutes.stream().map(LogRoute::marker).toArray(String[]::new);
+        this.markerTargets = markerRoutes.stream().map(LogRouter::targetOf).toArray(Target[]::new);
+        this.mdcKeys = mdcRoutes.stream().map(LogRoute::mdcKey).toArray(String[]::new);
+        this.mdcValues = mdcRoutes.stream().map(LogRoute::mdcValue).toArray(String[]::new);
+        this.mdcTargets = mdcRoutes.stream().map(LogRouter::targetOf).toArray(Target[]::new);
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Returns the router of the given routes, or {@code null} if there are none and every event goes to the
+     * default log.
+     */
+    static LogRouter compile(String defaultLogName, LogRoute[] routes) {
+        if (routes == null || routes.length == 0) {
+            return null;
+        }
+        List<LogRoute> markerRoutes = new ArrayList<>();
+        List<LogRoute> mdcRoutes = new ArrayList<>();
+        Map<String, Target> prefixes = new HashMap<>();
+        for (LogRoute route : routes) {
+            route.validate();
+            if (route.marker() != null) {
+                markerRoutes.add(route);
+            } else if (route.mdcKey() != null) {
+                mdcRoutes.add(route);
+            } else {
+                prefixes.putIfAbsent(route.loggerPrefix(), targetOf(route));
+            }
+        }
+        return new LogRouter(new Target(defaultLogName, NO_LABELS), markerRoutes, mdcRoutes, prefixes);
+    }
+
+    private static Target targetOf(LogRoute route) {
+        if (route.labels() == null || route.labels().length == 0) {
+            return new Target(route.logName(), NO_LABELS);
+        }
+        String[] labels = new String[route.labels().length * 2];
+        for (int i = 0; i < route.labels().length; i++) {
+            labels[2 * i] = route.labels()[i].getName();
+            labels[2 * i + 1] = route.labels()[i].getValue();
+        }
+        return new Target(route.logName(), labels);
+    }
+
+    Target route(LogEvent event) {
+        Marker marker = event.getMarker();
+        if (marker != null) {
+            for (int i = 0; i < markers.length; i++) {
+                if (marker.isInstanceOf(markers[i])) {
+                    return markerTargets[i];
+                }
+            }
+        }
+        if (mdcKeys.length > 0) {
+            ReadOnlyStringMap contextData = event.getContextData();
+            for (int i = 0; i < mdcKeys.length; i++) {
+                Object value = contextData.getValue(mdcKeys[i]);
+                if (value != null && (mdcValues[i] == null || mdcValues[i].equals(value.toString()))) {
+                    return mdcTargets[i];
+                }
+            }
+        }
+        return route(event.getLoggerName());
+    }
+
+    /**
+     * Returns the target of a logger by its name alone, for entries that no event stands behind.
+     */
+    Target route(String loggerName) {
+        return prefixes.isEmpty() ? defaultTarget : forLogger(loggerName);
+    }
+
+    private Target forLogger(String loggerName) {
+        String name = loggerName != null ? loggerName : "";
+        Target target = loggers.get(name);
+        if (target == null) {
+            target = longestPrefix(name);
+            if (loggers.size() < MAX_CACHED_LOGGERS) {
+                loggers.put(name, target);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Looks up the logger name and its parents in the logger hierarchy, {@code a.b.c}, {@code a.b}, {@code a} and
+     * the root, so that a prefix only matches whole name segments.
+     */
+    private Target longestPrefix(String loggerName) {
+        String name = loggerName;
+        while (!name.isEmpty()) {
+            Target target = prefixes.get(name);
+            if (target != null) {
+                return target;
+            }
+            int dot = name.lastIndexOf('.');
+            name = dot < 0 ? "" : name.substring(0, dot);
+        }
+        return prefixes.getOrDefault("", defaultTarget);
+    }
+
+    /**
+     * A log and the labels added to its entries, as name and value pairs.
+     */
+    record Target(String logName, String[] labels) {
+
+        void addLabels(LogEntry.Builder builder) {
+            for (int i = 0; i < labels.length; i += 2) {
+                builder.addLabel(labels[i], labels[i + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms of a {@link GoogleCloudLoggingManager}. Recording only touches {@link LongAdder}s and
+ * atomic bucket counters, so it is cheap enough to stay on; the MBean getters do the aggregation.
+ */
+final class ManagerMetrics implements GoogleCloudLoggingManagerMXBean {
+
+    private final DropCounters drops;
+    private final LongSupplier bufferDepth;
+    private final LongSupplier offHeapBytes;
+    private final LongSupplier inFlightWrites;
+    private final BooleanSupplier circuitBreakerOpen;
+    private final SeverityLanes lanes;
+    private final MetricsListener listener;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private final LongAdder failedOver = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram writeLatencies = new Histogram();
+    private final Histogram flushLatencies = new Histogram();
+
+    /**
+     * @param bufferDepth    number of entries waiting in memory
+     * @param offHeapBytes   bytes taken by waiting entries outside the heap
+     * @param inFlightWrites number of write requests not acknowledged yet
+     * @param circuitBreakerOpen whether writes to the API are stopped
+     * @param lanes          the severity lanes of the buffer, or {@code null}
+     * @param listener       notified of every write and flush, or {@code null}
+     */
+    ManagerMetrics(DropCounters drops, LongSupplier bufferDepth, LongSupplier offHeapBytes, LongSupplier inFlightWrites,
+                   BooleanSupplier circuitBreakerOpen, SeverityLanes lanes, MetricsListener listener) {
+        this.drops = drops;
+        this.bufferDepth = bufferDepth;
+        this.offHeapBytes = offHeapBytes;
+        this.inFlightWrites = inFlightWrites;
+        this.circuitBreakerOpen = circuitBreakerOpen;
+        this.lanes = lanes;
+        this.listener = listener;
+    }
+
+    void recordAccepted() {
+        accepted.increment();
+    }
+
+    void recordWrite(List<LogEntry> batch, long nanos, boolean success) {
+        int entries = batch.size();
+        long bytes = 0;
+        for (int i = 0; i < entries; i++) {
+            bytes += LogEntrySizes.estimate(batch.get(i));
+        }
+        batchSizes.record(entries);
+        writeLatencies.record(nanos);
+        if (success) {
+            written.add(entries);
+            bytesSent.add(bytes);
+        } else {
+            failed.add(entries);
+        }
+        if (listener != null) {
+            listener.onWrite(entries, bytes, nanos, success);
+        }
+    }
+
+    void recordFlush(long nanos, boolean success) {
+        flushLatencies.record(nanos);
+        if (!success) {
+            failedFlushes.increment();
+        }
+        if (listener != null) {
+            listener.onFlush(nanos, success);
+        }
+    }
+
+    void recordFailover(int entries) {
+        failedOver.add(entries);
+        if (listener != null) {
+            listener.onFailover(entries);
+        }
+    }
+
+    @Override
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        long total = 0;
+        for (DropReason reason : DropReason.values()) {
+            total += drops.get(reason);
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getDroppedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (DropReason reason : DropReason.values()) {
+            counts.put(reason.name(), drops.get(reason));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBufferDepth() {
+        return bufferDepth.getAsLong();
+    }
+
+    @Override
+    public long getOffHeapBufferBytes() {
+        return offHeapBytes.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getLaneDepths() {
+        return lanes != null ? lanes.depths() : Map.of();
+    }
+
+    @Override
+    public Map<String, Long> getLaneWaitP50Micros() {
+        return lanes != null ? lanes.waitMicros(0.5) : Map.of();
+    }
+
+    @Override
+    public Map<String, Long> getLaneWaitP99Micros() {
+        return lanes != null ? lanes.waitMicros(0.99) : Map.of();
+    }
+
+    @Override
+    public Map<String, Long> getLaneDroppedCounts() {
+        return drops.byLane();
+    }
+
+    @Override
+    public long getInFlightWriteCount() {
+        return inFlightWrites.getAsLong();
+    }
+
+    @Override
+    public long getFailoverCount() {
+        return failedOver.sum();
+    }
+
+    @Override
+    public boolean isCircuitBreakerOpen() {
+        return circuitBreakerOpen.getAsBoolean();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeLatencies.count();
+    }
+
+    @Override
+    public long getFailedFlushCount() {
+        return failedFlushes.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSizes.mean();
+    }
+
+    @Override
+    public long getBatchSizeP50() {
+        return batchSizes.percentile(0.5);
+    }
+
+    @Override
+    public long getBatchSizeP99() {
+        return batchSizes.percentile(0.99);
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.max();
+    }
+
+    @Override
+    public long getWriteLatencyP50Micros() {
+        return micros(writeLatencies.percentile(0.5));
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return micros(writeLatencies.percentile(0.99));
+    }
+
+    @Override
+    public long getWriteLatencyMaxMicros() {
+        return micros(writeLatencies.max());
+    }
+
+    @Override
+    public long getFlushLatencyP50Micros() {
+        return micros(flushLatencies.percentile(0.5));
+    }
+
+    @Override
+    public long getFlushLatencyP99Micros() {
+        return micros(flushLatencies.percentile(0.99));
+    }
+
+    @Override
+    public long getFlushLatencyMaxMicros() {
+        return micros(flushLatencies.max());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,42 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * Callback for the metrics recorded by {@link GoogleCloudLoggingManager}, for forwarding them to a metrics library.
+ * Set with the {@code metricsListener} attribute of the appender, which names a class with a public no-arg
+ * constructor.
+ * <p>
+ * Callbacks run on the thread that did the work, application threads included, so they must be cheap and must not
+ * block or log through the appender.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after a batch of entries was sent, or failed to send.
+     *
+     * @param entries number of entries in the batch
+     * @param bytes   estimated size of the entries as sent to the API
+     * @param nanos   time until the batch was acknowledged, or failed
+     * @param success whether the batch was accepted
+     */
+    default void onWrite(int entries, long bytes, long nanos, boolean success) {
+    }
+
+    /**
+     * Called after the client flushed its pending writes, or failed to.
+     */
+    default void onFlush(long nanos, boolean success) {
+    }
+
+    /**
+     * Called after entries were written to stdout instead of the API, because their write failed or the circuit
+     * breaker was open.
+     */
+    default void onFailover(int entries) {
+    }
+
+    /**
+     * Called for every discarded entry.
+     */
+    default void onDropped(DropReason reason) {
+    }
+}
@@ -0,0 +1,371 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.core.util.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the buffered write mode that keeps entries outside the heap, bounded by bytes instead of entries.
+ * <p>
+ * Entries are encoded in {@link LogEntryCodec} form by the thread that adds them and copied into a ring of
+ * {@code [length][bytes]} records in a direct buffer allocated once, so a backlog during an API slowdown holds no
+ * object graphs that would be promoted to the old generation. The drain thread copies the records of a batch out
+ * and decodes them after releasing the lock; only the batch being sent lives on the heap.
+ * <p>
+ * Entries are truncated to the per-entry limit before they are encoded, or dropped as {@link DropReason#OVERSIZED}
+ * if they cannot be. One whose record is still larger than the whole buffer cannot ever fit and is dropped as
+ * {@link DropReason#QUEUE_FULL} instead of waiting for room. The
+ * codecs of the adding threads and the array the drain thread copies records to give back memory a large entry or
+ * batch made them grow.
+ */
+final class OffHeapEntryQueue extends AbstractQueue<LogEntry> implements BlockingQueue<LogEntry> {
+
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    private static final ThreadLocal<LogEntryCodec> CODECS = ThreadLocal.withInitial(LogEntryCodec::new);
+    private static final int INITIAL_RECORDS_BYTES = 64 * 1024;
+
+    private final ByteBuffer arena;
+    private final int capacity;
+    private final int maxEntryBytes;
+    private final int maxBatchBytes;
+    private final DropCounters drops;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private int head; // guarded by lock, like used and count
+    private int used;
+    private int count;
+    private byte[] records = new byte[INITIAL_RECORDS_BYTES]; // guarded by takeLock, like lengths
+    private int[] lengths = new int[64];
+
+    /**
+     * @param capacity      size of the direct buffer in bytes
+     * @param maxEntryBytes entries encoded larger than this are truncated
+     * @param maxBatchBytes a drain stops taking entries once it has taken this many encoded bytes
+     */
+    OffHeapEntryQueue(int capacity, int maxEntryBytes, int maxBatchBytes, DropCounters drops) {
+        this.arena = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+        this.maxEntryBytes = maxEntryBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        this.drops = drops;
+    }
+
+    @Override
+    public boolean offer(LogEntry entry) {
+        LogEntryCodec codec = codec();
+        try {
+            ByteBuffer record = encode(codec, entry);
+            if (record == null) {
+                return true;
+            }
+            lock.lock();
+            try {
+                if (!fits(record)) {
+                    return false;
+                }
+                append(record);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            codec.trim();
+        }
+    }
+
+    @Override
+    public boolean offer(LogEntry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        LogEntryCodec codec = codec();
+        try {
+            ByteBuffer record = encode(codec, entry);
+            if (record == null) {
+                return true;
+            }
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (!fits(record)) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                append(record);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            codec.trim();
+        }
+    }
+
+    @Override
+    public void put(LogEntry entry) throws InterruptedException {
+        offer(entry, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private static LogEntryCodec codec() {
+        return Constants.ENABLE_THREADLOCALS ? CODECS.get() : new LogEntryCodec();
+    }
+
+    /**
+     * Truncates an entry if needed and encodes it, or drops it and returns {@code null} if it can never fit.
+     */
+    private ByteBuffer encode(LogEntryCodec codec, LogEntry entry) {
+        Objects.requireNonNull(entry);
+        LogEntry truncated = LogEntrySizes.truncate(entry, maxEntryBytes);
+        if (truncated == null) {
+            drops.increment(DropReason.OVERSIZED, entry);
+            return null;
+        }
+        ByteBuffer record = codec.encode(truncated, null);
+        if (LENGTH_BYTES + record.remaining() > capacity) {
+            drops.increment(DropReason.QUEUE_FULL, entry);
+            return null;
+        }
+        return record;
+    }
+
+    private boolean fits(ByteBuffer record) {
+        return LENGTH_BYTES + record.remaining() <= capacity - used;
+    }
+
+    private void append(ByteBuffer record) {
+        int length = record.remaining();
+        int tail = (head + used) % capacity;
+        putInt(tail, length);
+        int start = (tail + LENGTH_BYTES) % capacity;
+        int first = Math.min(length, capacity - start);
+        arena.put(start, record, record.position(), first);
+        arena.put(0, record, record.position() + first, length - first);
+        used += LENGTH_BYTES + length;
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Copies the oldest record to the given array and removes it.
+     */
+    private void removeFirst(byte[] target, int offset, int length) {
+        int start = (head + LENGTH_BYTES) % capacity;
+        int first = Math.min(length, capacity - start);
+        arena.get(start, target, offset, first);
+        arena.get(0, target, offset + first, length - first);
+        head = (start + length) % capacity;
+        used -= LENGTH_BYTES + length;
+        count--;
+        if (count == 0) {
+            head = 0; // keep records contiguous while the queue keeps up
+        }
+    }
+
+    private void putInt(int index, int value) {
+        for (int i = 0; i < LENGTH_BYTES; i++) {
+            arena.put((index + i) % capacity, (byte) (value >>> (Integer.SIZE - Byte.SIZE * (i + 1))));
+        }
+    }
+
+    private int getInt(int index) {
+        int value = 0;
+        for (int i = 0; i < LENGTH_BYTES; i++) {
+            value = value << Byte.SIZE | arena.get((index + i) % capacity) & 0xff;
+        }
+        return value;
+    }
+
+    /**
+     * Removes the oldest entry, in the caller's lock, decoding it into a fresh array.
+     */
+    private LogEntry dequeue() {
+        int length = getInt(head);
+        byte[] record = new byte[length];
+        removeFirst(record, 0, length);
+        notFull.signalAll();
+        return LogEntryCodec.decode(ByteBuffer.wrap(record));
+    }
+
+    @Override
+    public LogEntry poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry peek() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            return LogEntryCodec.decode(ByteBuffer.wrap(copy(head)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] copy(int index) {
+        int length = getInt(index);
+        byte[] record = new byte[length];
+        int start = (index + LENGTH_BYTES) % capacity;
+        int first = Math.min(length, capacity - start);
+        arena.get(start, record, 0, first);
+        arena.get(0, record, first, length - first);
+        return record;
+    }
+
+    @Override
+    public int drainTo(Collection<? super LogEntry> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes up to {@code maxEntries} entries, and at most {@code maxBatchBytes} of them unless the first is larger.
+     * The records are copied out under the lock and decoded after it is released.
+     */
+    @Override
+    public int drainTo(Collection<? super LogEntry> target, int maxEntries) {
+        takeLock.lock();
+        try {
+            int taken = 0;
+            int offset = 0;
+            lock.lock();
+            try {
+                while (taken < maxEntries && count > 0 && (taken == 0 || offset < maxBatchBytes)) {
+                    int length = getInt(head);
+                    if (offset + length > records.length) {
+                        records = Arrays.copyOf(records, Math.max(offset + length, records.length * 2));
+                    }
+                    if (taken == lengths.length) {
+                        lengths = Arrays.copyOf(lengths, taken * 2);
+                    }
+                    removeFirst(records, offset, length);
+                    lengths[taken++] = length;
+                    offset += length;
+                }
+                if (taken > 0) {
+                    notFull.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            int copied = offset;
+            offset = 0;
+            for (int i = 0; i < taken; i++) {
+                target.add(LogEntryCodec.decode(ByteBuffer.wrap(records, offset, lengths[i])));
+                offset += lengths[i];
+            }
+            // halved while batches use less than a quarter of it, so a burst of large batches is not kept for good
+            if (copied < records.length / 4 && records.length > INITIAL_RECORDS_BYTES) {
+                records = new byte[Math.max(INITIAL_RECORDS_BYTES, records.length / 2)];
+            }
+            return taken;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes taken by queued entries, including their length prefixes.
+     */
+    int usedBytes() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of entries of the average encoded size that still fit.
+     */
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return count == 0 ? capacity : (int) ((long) (capacity - used) * count / used);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queued entries, decoded.
+     */
+    @Override
+    public Iterator<LogEntry> iterator() {
+        List<LogEntry> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            int index = head;
+            for (int i = 0; i < count; i++) {
+                byte[] record = copy(index);
+                snapshot.add(LogEntryCodec.decode(ByteBuffer.wrap(record)));
+                index = (index + LENGTH_BYTES + record.length) % capacity;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
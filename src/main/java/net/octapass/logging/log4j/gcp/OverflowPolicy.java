@@ -0,0 +1,15 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * What {@link GoogleCloudLoggingManager} does with a new log entry when its buffer is full.
+ */
+public enum OverflowPolicy {
+    /** Wait until the drain thread frees up space. */
+    BLOCK,
+    /** Discard the entry that could not be queued. */
+    DROP_NEWEST,
+    /** Discard the oldest queued entry to make room for the new one. */
+    DROP_OLDEST,
+    /** Discard the new entry if its severity is below the configured threshold, otherwise wait. */
+    DROP_BELOW_SEVERITY
+}
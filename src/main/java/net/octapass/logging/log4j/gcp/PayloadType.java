@@ -0,0 +1,14 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * How {@link GoogleCloudLoggingAppender} sends the rendered event.
+ */
+public enum PayloadType {
+    /**
+     * A {@code jsonPayload} holding the rendered event in its {@code message} field, with the Error Reporting type
+     * on errors. If the layout produces JSON, its fields become the payload instead.
+     */
+    JSON,
+    /** A {@code textPayload}, without any conversion to a protobuf {@code Struct}. */
+    TEXT
+}
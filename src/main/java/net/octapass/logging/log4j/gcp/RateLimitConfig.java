@@ -0,0 +1,75 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.Severity;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Rate limiting of the events of each logger and severity below {@link Severity#ERROR}:
+ * <pre>{@code
+ * <RateLimit eventsPerSecond="100" burst="500" sampling="DEBUG=0.01, INFO=0.1" summaryIntervalSeconds="60"/>
+ * }</pre>
+ * Events of a severity listed in {@code sampling} are first kept with the given probability. Events then pass a token
+ * bucket per logger and severity, refilled at {@code eventsPerSecond} and holding up to {@code burst} tokens. Every
+ * {@code summaryIntervalSeconds}, an entry reports how many events of each logger were suppressed.
+ *
+ * @param eventsPerSecond        sustained events per second per logger and severity
+ * @param burst                  events let through at once after a quiet period
+ * @param sampleRates            fraction of events kept by severity, before rate limiting
+ * @param summaryIntervalSeconds interval between reports of suppressed events
+ */
+@Plugin(name = "RateLimit", category = Node.CATEGORY, printObject = true)
+public record RateLimitConfig(double eventsPerSecond, int burst, Map<Severity, Double> sampleRates,
+                              long summaryIntervalSeconds) {
+
+    private static final long DEFAULT_SUMMARY_INTERVAL_SECONDS = 60;
+
+    public RateLimitConfig {
+        if (!(eventsPerSecond > 0)) {
+            throw new IllegalArgumentException("eventsPerSecond must be positive");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        if (summaryIntervalSeconds < 1) {
+            throw new IllegalArgumentException("summaryIntervalSeconds must be at least 1");
+        }
+        for (Map.Entry<Severity, Double> sampleRate : sampleRates.entrySet()) {
+            if (!(sampleRate.getValue() >= 0 && sampleRate.getValue() <= 1)) {
+                throw new IllegalArgumentException("Sample rate of " + sampleRate.getKey() + " must be in [0, 1]");
+            }
+        }
+        sampleRates = Map.copyOf(sampleRates);
+    }
+
+    @PluginFactory
+    public static RateLimitConfig createRateLimitConfig(
+            @Required @PluginAttribute("eventsPerSecond") final double eventsPerSecond,
+            @PluginAttribute("burst") final int burst,
+            @PluginAttribute("sampling") final String sampling,
+            @PluginAttribute(value = "summaryIntervalSeconds", defaultLong = DEFAULT_SUMMARY_INTERVAL_SECONDS)
+            final long summaryIntervalSeconds) {
+        Map<Severity, Double> sampleRates = new EnumMap<>(Severity.class);
+        if (sampling != null) {
+            for (String pair : sampling.split(",")) {
+                if (pair.isBlank()) {
+                    continue;
+                }
+                int separator = pair.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Invalid sampling '" + pair + "', expected SEVERITY=rate");
+                }
+                sampleRates.put(Severity.valueOf(pair.substring(0, separator).trim()),
+                        Double.parseDouble(pair.substring(separator + 1).trim()));
+            }
+        }
+        return new RateLimitConfig(eventsPerSecond, burst > 0 ? burst : (int) Math.ceil(eventsPerSecond),
+                sampleRates, summaryIntervalSeconds);
+    }
+}
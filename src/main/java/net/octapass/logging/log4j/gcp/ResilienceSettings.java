@@ -0,0 +1,31 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * Settings of how {@link GoogleCloudLoggingManager} deals with failing writes.
+ *
+ * @param maxRetries            retries of a write that failed with a retryable status, after a jittered exponential
+ *                              backoff
+ * @param failureThreshold      consecutive failed writes after which the circuit breaker opens, or {@code 0} to
+ *                              keep writing to the API whatever happens
+ * @param probeIntervalMillis   time between the writes that probe the API while the circuit breaker is open
+ * @param failoverToStdout      whether entries that cannot be written to the API, or are not sent because the
+ *                              circuit breaker is open, are written to stdout in the structured logging format
+ *                              instead of being discarded
+ */
+record ResilienceSettings(int maxRetries, int failureThreshold, long probeIntervalMillis,
+                          boolean failoverToStdout) {
+
+    static final ResilienceSettings DEFAULT = new ResilienceSettings(3, 5, 30_000, true);
+
+    ResilienceSettings {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative: " + maxRetries);
+        }
+        if (failureThreshold < 0) {
+            throw new IllegalArgumentException("failureThreshold must not be negative: " + failureThreshold);
+        }
+        if (probeIntervalMillis <= 0) {
+            throw new IllegalArgumentException("probeIntervalMillis must be positive: " + probeIntervalMillis);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.MonitoredResourceUtil;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects the monitored resource, and with it the project, away from the configuration thread.
+ * <p>
+ * {@link MonitoredResourceUtil} asks the metadata server for the resource type and each of its labels, a few round
+ * trips on Google Cloud and connect timeouts anywhere else. Here detection runs on a daemon thread, once per JVM and
+ * set of inputs, so a reconfiguration finds the result ready. With a cache file, the result is also written to disk
+ * and later starts on the same host read it back instead of detecting again. A cached result is only used for the
+ * same configured project, resource type and {@code HOSTNAME}, which changes with every container.
+ */
+final class ResourceDetector {
+
+    private static final String PROJECT_ID_KEY = "projectId";
+    private static final String RESOURCE_TYPE_KEY = "resourceType";
+    private static final String HOST_KEY = "host";
+    private static final String TYPE_KEY = "type";
+    private static final String LABEL_PREFIX = "label.";
+    private static final Map<Key, CompletableFuture<MonitoredResource>> DETECTIONS = new ConcurrentHashMap<>();
+
+    private ResourceDetector() {
+    }
+
+    /**
+     * Returns the resource detected for the given project and resource type, either of which may be {@code null};
+     * the future is complete when the result was known already.
+     *
+     * @param cacheFile file the result is kept in across restarts, or {@code null}
+     */
+    static CompletableFuture<MonitoredResource> detect(String projectId, String resourceType, Path cacheFile,
+                                                       Logger statusLogger) {
+        Key key = new Key(blankToEmpty(projectId), blankToEmpty(resourceType), cacheFile);
+        return DETECTIONS.computeIfAbsent(key, ignored -> {
+            MonitoredResource cached = cacheFile != null ? read(key, statusLogger) : null;
+            return cached != null ? CompletableFuture.completedFuture(cached) : start(key, statusLogger);
+        });
+    }
+
+    private static CompletableFuture<MonitoredResource> start(Key key, Logger statusLogger) {
+        CompletableFuture<MonitoredResource> detection = new CompletableFuture<>();
+        Thread thread = new Log4jThread(() -> {
+            try {
+                MonitoredResource resource = MonitoredResourceUtil.getResource(
+                        key.projectId().isEmpty() ? null : key.projectId(),
+                        key.resourceType().isEmpty() ? null : key.resourceType());
+                if (key.cacheFile() != null) {
+                    write(key, resource, statusLogger);
+                }
+                detection.complete(resource);
+            } catch (RuntimeException e) {
+                DETECTIONS.remove(key, detection); // detect again on the next configuration
+                detection.completeExceptionally(e);
+            }
+        }, "GoogleCloudLoggingAppender-ResourceDetector");
+        thread.setDaemon(true); // avoid blocking JVM shutdown
+        thread.start();
+        return detection;
+    }
+
+    private static MonitoredResource read(Key key, Logger statusLogger) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(key.cacheFile())) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            statusLogger.warn("Cannot read resource cache {}, detecting the resource again", key.cacheFile(), e);
+            return null;
+        }
+        String type = properties.getProperty(TYPE_KEY);
+        if (type == null
+                || !key.projectId().equals(properties.getProperty(PROJECT_ID_KEY))
+                || !key.resourceType().equals(properties.getProperty(RESOURCE_TYPE_KEY))
+                || !host().equals(properties.getProperty(HOST_KEY))) {
+            return null;
+        }
+        Map<String, String> labels = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(LABEL_PREFIX)) {
+                labels.put(name.substring(LABEL_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+        return MonitoredResource.of(type, labels);
+    }
+
+    /**
+     * Replaces the cache file through a temporary file, so that a concurrent start never reads half of it.
+     */
+    private static void write(Key key, MonitoredResource resource, Logger statusLogger) {
+        Properties properties = new Properties();
+        properties.setProperty(PROJECT_ID_KEY, key.projectId());
+        properties.setProperty(RESOURCE_TYPE_KEY, key.resourceType());
+        properties.setProperty(HOST_KEY, host());
+        properties.setProperty(TYPE_KEY, resource.getType());
+        resource.getLabels().forEach((name, value) -> {
+            if (value != null) {
+                properties.setProperty(LABEL_PREFIX + name, value);
+            }
+        });
+        Path file = key.cacheFile().toAbsolutePath();
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    properties.store(out, "Monitored resource detected by GoogleCloudLoggingAppender");
+                }
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException | RuntimeException e) {
+            statusLogger.warn("Cannot write resource cache {}", file, e);
+        }
+    }
+
+    private static String host() {
+        return Objects.requireNonNullElse(System.getenv("HOSTNAME"), "");
+    }
+
+    private static String blankToEmpty(String value) {
+        return value == null || value.isBlank() ? "" : value;
+    }
+
+    private record Key(String projectId, String resourceType, Path cacheFile) {
+    }
+}
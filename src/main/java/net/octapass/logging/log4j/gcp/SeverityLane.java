@@ -0,0 +1,44 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Severity;
+
+/**
+ * Severity classes of buffered entries, in order of priority. Log4j levels map to severities as in the appender:
+ * FATAL and ERROR go to {@link #HIGH}, WARN and INFO to {@link #NORMAL}, DEBUG and TRACE to {@link #LOW}.
+ */
+enum SeverityLane {
+    /** ERROR and above. */
+    HIGH(4),
+    /** INFO, NOTICE and WARNING. */
+    NORMAL(2),
+    /** DEBUG, and entries without a severity. */
+    LOW(1);
+
+    private static final SeverityLane[] VALUES = values();
+
+    /**
+     * Share of a batch the lane gets while all lanes have entries, relative to the others.
+     */
+    final int weight;
+
+    SeverityLane(int weight) {
+        this.weight = weight;
+    }
+
+    static SeverityLane of(LogEntry entry) {
+        Severity severity = entry.getSeverity();
+        if (severity == null) {
+            return LOW;
+        }
+        return switch (severity) {
+            case EMERGENCY, ALERT, CRITICAL, ERROR -> HIGH;
+            case WARNING, NOTICE, INFO -> NORMAL;
+            default -> LOW;
+        };
+    }
+
+    static SeverityLane[] all() {
+        return VALUES;
+    }
+}
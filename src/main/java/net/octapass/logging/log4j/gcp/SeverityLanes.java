@@ -0,0 +1,373 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the buffered write mode with one lane per {@link SeverityLane}, so that an ERROR entry neither
+ * waits behind a backlog of DEBUG entries nor is dropped along with them:
+ * <ul>
+ *     <li>the lanes share the capacity; when it is reached and shedding is on, a new entry takes the place of the
+ *     oldest entry of the lowest lane below its own, which is dropped as {@link DropReason#SHED}. Only when no
+ *     lower lane holds entries, or shedding is off, does the new entry wait, or fail to be added, as with any
+ *     bounded queue;</li>
+ *     <li>entries are taken by weight: while several lanes hold entries, each gets a share of every drain in
+ *     proportion to its weight, highest lane first, so a flood of ERROR entries slows the other lanes down
+ *     without stopping them.</li>
+ * </ul>
+ * The time every entry spends in its lane is recorded per lane. A single lock guards all lanes, as in
+ * {@link ArrayBlockingQueue}; each lane preallocates room for the whole capacity.
+ */
+final class SeverityLanes extends AbstractQueue<LogEntry> implements BlockingQueue<LogEntry> {
+
+    private final int capacity;
+    private final Lane[] lanes;
+    private final boolean shedding;
+    private final DropCounters drops;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int count; // guarded by lock, like the lanes
+
+    /**
+     * @param shedding whether a full queue drops entries of lower lanes to make room for higher ones; off for a
+     *                 producer that waits for room instead of losing entries
+     */
+    SeverityLanes(int capacity, boolean shedding, DropCounters drops) {
+        this.capacity = capacity;
+        this.shedding = shedding;
+        this.drops = drops;
+        this.lanes = new Lane[SeverityLane.all().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(capacity);
+        }
+    }
+
+    @Override
+    public boolean offer(LogEntry entry) {
+        Objects.requireNonNull(entry);
+        SeverityLane lane = SeverityLane.of(entry);
+        LogEntry shed;
+        lock.lock();
+        try {
+            shed = count < capacity || !shedding ? null : shedBelow(lane);
+            if (count == capacity) {
+                return false;
+            }
+            enqueue(entry, lane);
+        } finally {
+            lock.unlock();
+        }
+        if (shed != null) {
+            drops.increment(DropReason.SHED, shed);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(LogEntry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(entry);
+        SeverityLane lane = SeverityLane.of(entry);
+        long nanos = unit.toNanos(timeout);
+        LogEntry shed = null;
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity && (!shedding || (shed = shedBelow(lane)) == null)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(entry, lane);
+        } finally {
+            lock.unlock();
+        }
+        if (shed != null) {
+            drops.increment(DropReason.SHED, shed);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(LogEntry entry) throws InterruptedException {
+        offer(entry, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adds an entry like {@link #offer(LogEntry)}, but if there is no room even after shedding lower lanes, evicts
+     * the oldest entry of its own lane. A shed entry is counted here; returns the entry evicted from its own lane,
+     * or the given entry itself if its lane is empty and only higher lanes hold entries, or {@code null} if nothing
+     * is left for the caller to count.
+     */
+    LogEntry offerEvicting(LogEntry entry) {
+        SeverityLane lane = SeverityLane.of(entry);
+        LogEntry shed = null;
+        LogEntry evicted = null;
+        lock.lock();
+        try {
+            if (count == capacity && (shed = shedBelow(lane)) == null) {
+                Lane own = lanes[lane.ordinal()];
+                if (own.size == 0) {
+                    return entry;
+                }
+                evicted = own.removeFirst();
+                count--;
+            }
+            enqueue(entry, lane);
+        } finally {
+            lock.unlock();
+        }
+        if (shed != null) {
+            drops.increment(DropReason.SHED, shed);
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the oldest entry of the lowest lane below the given one, or returns {@code null} if those lanes are
+     * empty. The caller counts the removed entry as shed once it has released the lock.
+     */
+    private LogEntry shedBelow(SeverityLane lane) {
+        for (int i = lanes.length - 1; i > lane.ordinal(); i--) {
+            if (lanes[i].size > 0) {
+                count--;
+                return lanes[i].removeFirst();
+            }
+        }
+        return null;
+    }
+
+    private void enqueue(LogEntry entry, SeverityLane lane) {
+        lanes[lane.ordinal()].add(entry, System.nanoTime());
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Takes the oldest entry of the highest lane holding any.
+     */
+    private LogEntry dequeue() {
+        long now = System.nanoTime();
+        for (Lane lane : lanes) {
+            if (lane.size > 0) {
+                count--;
+                notFull.signal();
+                return lane.take(now);
+            }
+        }
+        throw new IllegalStateException("No entries queued");
+    }
+
+    @Override
+    public LogEntry poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LogEntry peek() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (lane.size > 0) {
+                    return lane.entries[lane.head];
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super LogEntry> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes up to {@code maxEntries} entries: first each non-empty lane its weighted share, at least one entry,
+     * then whatever the others left, highest lane first.
+     */
+    @Override
+    public int drainTo(Collection<? super LogEntry> target, int maxEntries) {
+        lock.lock();
+        try {
+            int wanted = Math.min(maxEntries, count);
+            if (wanted <= 0) {
+                return 0;
+            }
+            int weights = 0;
+            for (SeverityLane lane : SeverityLane.all()) {
+                weights += lanes[lane.ordinal()].size > 0 ? lane.weight : 0;
+            }
+            long now = System.nanoTime();
+            int taken = 0;
+            for (SeverityLane lane : SeverityLane.all()) {
+                int share = Math.max(1, (int) ((long) wanted * lane.weight / weights));
+                taken += lanes[lane.ordinal()].drainTo(target, Math.min(share, wanted - taken), now);
+            }
+            for (Lane lane : lanes) {
+                taken += lane.drainTo(target, wanted - taken, now);
+            }
+            count -= taken;
+            notFull.signalAll();
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns a snapshot of the queued entries, highest lane first.
+     */
+    @Override
+    public Iterator<LogEntry> iterator() {
+        List<LogEntry> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                for (int i = 0; i < lane.size; i++) {
+                    snapshot.add(lane.entries[(lane.head + i) % lane.entries.length]);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Returns the number of entries in each lane.
+     */
+    Map<String, Long> depths() {
+        Map<String, Long> depths = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (SeverityLane lane : SeverityLane.all()) {
+                depths.put(lane.name(), (long) lanes[lane.ordinal()].size);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the given percentile of the time entries of each lane waited to be taken.
+     */
+    Map<String, Long> waitMicros(double fraction) {
+        Map<String, Long> waits = new LinkedHashMap<>();
+        for (SeverityLane lane : SeverityLane.all()) {
+            waits.put(lane.name(), TimeUnit.NANOSECONDS.toMicros(lanes[lane.ordinal()].waits.percentile(fraction)));
+        }
+        return waits;
+    }
+
+    /**
+     * Ring of the entries of one lane and the times they were added.
+     */
+    private static final class Lane {
+        final LogEntry[] entries;
+        final long[] times;
+        final Histogram waits = new Histogram();
+        int head;
+        int size;
+
+        Lane(int capacity) {
+            this.entries = new LogEntry[capacity];
+            this.times = new long[capacity];
+        }
+
+        void add(LogEntry entry, long now) {
+            int tail = (head + size) % entries.length;
+            entries[tail] = entry;
+            times[tail] = now;
+            size++;
+        }
+
+        LogEntry removeFirst() {
+            LogEntry entry = entries[head];
+            entries[head] = null;
+            head = (head + 1) % entries.length;
+            size--;
+            return entry;
+        }
+
+        LogEntry take(long now) {
+            waits.record(now - times[head]);
+            return removeFirst();
+        }
+
+        int drainTo(Collection<? super LogEntry> target, int maxEntries, long now) {
+            int taken = 0;
+            while (taken < maxEntries && size > 0) {
+                target.add(take(now));
+                taken++;
+            }
+            return taken;
+        }
+    }
+}
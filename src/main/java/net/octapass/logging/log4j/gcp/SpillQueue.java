@@ -0,0 +1,375 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Severity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead queue of log entries, stored as a sequence of memory-mapped segment files. Entries are appended
+ * in {@link LogEntryCodec} form and stay on disk until the sender acknowledges them, so they survive both Cloud
+ * Logging outages and process restarts; a reopened queue replays everything after the last acknowledged position.
+ * <p>
+ * Each segment starts with a magic number and the {@link LogEntryCodec#FORMAT_VERSION} of its records, checked when
+ * it is opened. Each record is laid out as {@code [length][crc32][bytes]}. A length of {@code -1} closes a segment, a
+ * torn record left behind by a crash fails its checksum and marks the end of the queue. A record failing its checksum
+ * anywhere else takes the rest of its segment with it, since the records after it cannot be located; the skip is
+ * reported by the {@link Batch} it was read into, like records that pass their checksum but cannot be decoded. Replayed
+ * entries
+ * keep the insert id assigned on first append, so Cloud Logging discards duplicates of entries that were sent but
+ * not acknowledged.
+ * <p>
+ * When the queue is nearly full, the last tenth of {@link SpillSettings#maxBytes()} is reserved for entries of
+ * severity {@link Severity#ERROR} and above.
+ */
+final class SpillQueue implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_FILE = "ack";
+    private static final int MAGIC = 0x4743_5351; // "GCSQ"
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int HEADER_BYTES = 8;
+    private static final int SEGMENT_END = -1;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long nonErrorMaxBytes;
+    private final String insertIdPrefix;
+    private final LogEntryCodec codec = new LogEntryCodec();
+    private final CRC32 crc = new CRC32();
+    private final NavigableMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final FileChannel ackChannel;
+    private final FileLock lock;
+    private final MappedByteBuffer ackBuffer;
+
+    private long writeSegment;
+    private int writeOffset;
+    private long ackSegment;
+    private int ackOffset;
+    private boolean readerWaiting;
+
+    private SpillQueue(SpillSettings settings, FileChannel ackChannel, FileLock lock) throws IOException {
+        this.directory = settings.directory();
+        this.segmentBytes = settings.segmentBytes();
+        this.maxBytes = settings.maxBytes();
+        this.nonErrorMaxBytes = maxBytes - Math.max(segmentBytes, maxBytes / 10);
+        this.insertIdPrefix = Long.toHexString(ThreadLocalRandom.current().nextLong()) + '-';
+        this.ackChannel = ackChannel;
+        this.lock = lock;
+        this.ackBuffer = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES + Integer.BYTES);
+        this.ackSegment = ackBuffer.getLong(0);
+        this.ackOffset = Math.max(ackBuffer.getInt(Long.BYTES), SEGMENT_HEADER_BYTES);
+        recover();
+    }
+
+    /**
+     * Opens the queue in the configured directory, creating it if needed.
+     *
+     * @throws IOException if the directory cannot be used, is owned by another process or holds segments of
+     *                     another format
+     */
+    static SpillQueue open(SpillSettings settings) throws IOException {
+        Files.createDirectories(settings.directory());
+        FileChannel ackChannel = FileChannel.open(settings.directory().resolve(ACK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = ackChannel.tryLock();
+            if (lock == null) {
+                throw new IOException("Spill directory " + settings.directory() + " is used by another process");
+            }
+            return new SpillQueue(settings, ackChannel, lock);
+        } catch (IOException | OverlappingFileLockException e) {
+            ackChannel.close();
+            throw e instanceof IOException ioe ? ioe : new IOException("Spill directory "
+                    + settings.directory() + " is used by another queue", e);
+        }
+    }
+
+    /**
+     * Appends an entry to the queue.
+     *
+     * @return {@code false} if there is no space left for the entry
+     */
+    synchronized boolean append(LogEntry entry) throws IOException {
+        boolean error = entry.getSeverity() != null && entry.getSeverity().compareTo(Severity.ERROR) >= 0;
+        long limit = error ? maxBytes : nonErrorMaxBytes;
+        if ((long) segments.size() * segmentBytes > limit) {
+            return false;
+        }
+        ByteBuffer record = codec.encode(entry, insertIdPrefix + writeSegment + '-' + writeOffset);
+        try {
+            return appendRecord(record, limit);
+        } finally {
+            codec.trim();
+        }
+    }
+
+    /**
+     * Writes an encoded entry, in the lock of {@link #append}.
+     */
+    private boolean appendRecord(ByteBuffer record, long limit) throws IOException {
+        int length = record.remaining();
+        if (SEGMENT_HEADER_BYTES + HEADER_BYTES + length + Integer.BYTES > segmentBytes) {
+            return false;
+        }
+        if (writeOffset + HEADER_BYTES + length + Integer.BYTES > segmentBytes) {
+            if ((long) (segments.size() + 1) * segmentBytes > limit) {
+                return false;
+            }
+            segments.get(writeSegment).putInt(writeOffset, SEGMENT_END);
+            writeSegment++;
+            writeOffset = SEGMENT_HEADER_BYTES;
+            segments.put(writeSegment, map(writeSegment));
+        }
+        crc.reset();
+        crc.update(record.duplicate());
+        MappedByteBuffer segment = segments.get(writeSegment);
+        segment.put(writeOffset + HEADER_BYTES, record, record.position(), length);
+        segment.putInt(writeOffset + Integer.BYTES, (int) crc.getValue());
+        segment.putInt(writeOffset, length);
+        writeOffset += HEADER_BYTES + length;
+        if (readerWaiting) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until there are unacknowledged entries or the timeout elapses.
+     */
+    synchronized boolean awaitEntries(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        while (isEmpty()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            readerWaiting = true;
+            try {
+                wait(remaining);
+            } finally {
+                readerWaiting = false;
+            }
+        }
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return ackSegment == writeSegment && ackOffset >= writeOffset;
+    }
+
+    /**
+     * Reads up to {@code maxEntries} entries after the last acknowledged position without consuming them. The batch
+     * stops before the encoded size of its entries exceeds {@code maxBytes}, but holds at least one record.
+     */
+    Batch peek(int maxEntries, int maxBytes) {
+        List<byte[]> records = new ArrayList<>(Math.min(maxEntries, 1024));
+        long segmentId;
+        int offset;
+        long bytes = 0;
+        int skips = 0;
+        long skippedBytes = 0;
+        synchronized (this) {
+            segmentId = ackSegment;
+            offset = ackOffset;
+            while (records.size() < maxEntries && !(segmentId == writeSegment && offset >= writeOffset)) {
+                MappedByteBuffer segment = segments.get(segmentId);
+                byte[] record = segment == null ? null : readRecord(segment, offset);
+                if (record == null) {
+                    Long next = segments.higherKey(segmentId);
+                    int end = next == null ? writeOffset : segmentBytes;
+                    if (segment != null && segment.getInt(offset) != SEGMENT_END) {
+                        skips++; // a corrupted record, the rest of the segment cannot be read
+                        skippedBytes += end - offset;
+                    }
+                    if (next == null) {
+                        offset = end;
+                        break;
+                    }
+                    segmentId = next;
+                    offset = SEGMENT_HEADER_BYTES;
+                    continue;
+                }
+                bytes += record.length;
+                if (!records.isEmpty() && bytes > maxBytes) {
+                    break;
+                }
+                records.add(record);
+                offset += HEADER_BYTES + record.length;
+            }
+        }
+        List<LogEntry> entries = new ArrayList<>(records.size());
+        int corrupt = 0;
+        for (byte[] record : records) {
+            try {
+                entries.add(LogEntryCodec.decode(ByteBuffer.wrap(record)));
+            } catch (IllegalArgumentException e) {
+                corrupt++; // unreadable despite a valid checksum, nothing to replay
+            }
+        }
+        return new Batch(entries, corrupt + skips, skippedBytes, segmentId, offset);
+    }
+
+    /**
+     * Acknowledges everything up to the end of the given batch and deletes segments that are no longer needed.
+     */
+    synchronized void ack(Batch batch) throws IOException {
+        ackSegment = batch.segmentId;
+        ackOffset = batch.offset;
+        ackBuffer.putLong(0, ackSegment);
+        ackBuffer.putInt(Long.BYTES, ackOffset);
+        while (!segments.isEmpty() && segments.firstKey() < ackSegment) {
+            Files.deleteIfExists(segmentPath(segments.pollFirstEntry().getKey()));
+        }
+    }
+
+    /**
+     * Flushes all segments to disk and releases the directory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+        ackBuffer.force();
+        segments.clear();
+        lock.release();
+        ackChannel.close();
+    }
+
+    private byte[] readRecord(MappedByteBuffer segment, int offset) {
+        int length = segment.getInt(offset);
+        if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        segment.get(offset + HEADER_BYTES, record);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue() == segment.getInt(offset + Integer.BYTES) ? record : null;
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (id < ackSegment) {
+                    Files.deleteIfExists(file);
+                } else {
+                    segments.put(id, map(id));
+                }
+            }
+        }
+        if (segments.isEmpty() || segments.firstKey() != ackSegment) {
+            // the acknowledged segment is gone, everything before the first remaining segment was sent
+            ackSegment = segments.isEmpty() ? ackSegment + 1 : segments.firstKey();
+            ackOffset = SEGMENT_HEADER_BYTES;
+            ackBuffer.putLong(0, ackSegment);
+            ackBuffer.putInt(Long.BYTES, ackOffset);
+        }
+        writeSegment = segments.isEmpty() ? ackSegment : segments.lastKey();
+        MappedByteBuffer last = segments.computeIfAbsent(writeSegment, this::mapUnchecked);
+        int offset = writeSegment == ackSegment ? ackOffset : SEGMENT_HEADER_BYTES;
+        byte[] record;
+        while ((record = readRecord(last, offset)) != null) {
+            offset += HEADER_BYTES + record.length;
+        }
+        if (offset + Integer.BYTES <= segmentBytes && last.getInt(offset) != 0) {
+            // drop a record torn by a crash so that it cannot be mistaken for data later on
+            for (int i = offset; i < segmentBytes; i++) {
+                last.put(i, (byte) 0);
+            }
+        }
+        writeOffset = offset;
+    }
+
+    /**
+     * Maps a segment, writing the header of a new one and checking that of an existing one.
+     */
+    private MappedByteBuffer map(long id) throws IOException {
+        MappedByteBuffer segment;
+        try (FileChannel channel = FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        int magic = segment.getInt(0);
+        int version = segment.getInt(Integer.BYTES);
+        if (magic == 0 && version == 0) {
+            segment.putInt(Integer.BYTES, LogEntryCodec.FORMAT_VERSION);
+            segment.putInt(0, MAGIC);
+        } else if (magic != MAGIC || version != LogEntryCodec.FORMAT_VERSION) {
+            throw new IOException("Spill segment " + segmentPath(id) + " is not of format version "
+                    + LogEntryCodec.FORMAT_VERSION + ", move it away to replay it with a matching version");
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer mapUnchecked(long id) {
+        try {
+            return map(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map spill segment " + id, e);
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Entries read by {@link #peek} together with the queue position right after them.
+     */
+    static final class Batch {
+        private final List<LogEntry> entries;
+        private final int corruptRecords;
+        private final long skippedBytes;
+        private final long segmentId;
+        private final int offset;
+
+        private Batch(List<LogEntry> entries, int corruptRecords, long skippedBytes, long segmentId, int offset) {
+            this.entries = entries;
+            this.corruptRecords = corruptRecords;
+            this.skippedBytes = skippedBytes;
+            this.segmentId = segmentId;
+            this.offset = offset;
+        }
+
+        List<LogEntry> entries() {
+            return entries;
+        }
+
+        /**
+         * Returns the number of records in the batch that could not be decoded or failed their checksum, which are
+         * lost once it is acknowledged.
+         */
+        int corruptRecords() {
+            return corruptRecords;
+        }
+
+        /**
+         * Returns the number of bytes skipped after records that failed their checksum.
+         */
+        long skippedBytes() {
+            return skippedBytes;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThread;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends the contents of a {@link SpillQueue} from a dedicated thread. A batch is acknowledged only after the sink
+ * accepted it; failed batches are retried from disk with an exponential backoff until they go through.
+ * <p>
+ * A batch the API rejects with a status that retrying cannot change would otherwise hold up every entry behind it
+ * until the disk fills. A batch rejected for some of its entries is split in halves until those entries are alone,
+ * any other rejection applies to the whole batch; rejected entries are dropped as {@link DropReason#REJECTED}.
+ */
+final class SpillSender {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final SpillQueue queue;
+    private final int batchSize;
+    private final int maxBatchBytes;
+    private final Consumer<List<LogEntry>> sink;
+    private final DropCounters drops;
+    private final Logger statusLogger;
+    private final Thread sendThread;
+    private volatile boolean running = true;
+
+    SpillSender(String name, SpillQueue queue, int batchSize, int maxBatchBytes, Consumer<List<LogEntry>> sink,
+                DropCounters drops, Logger statusLogger) {
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.sink = sink;
+        this.drops = drops;
+        this.statusLogger = statusLogger;
+        this.sendThread = new Log4jThread(this::send, "GoogleCloudLoggingManager-SpillThread-" + name);
+        this.sendThread.setDaemon(true); // avoid blocking JVM shutdown
+        this.sendThread.start();
+    }
+
+    /**
+     * Stops the send thread, giving it until the timeout to empty the queue. Whatever is left stays on disk and is
+     * replayed by the next sender of the same directory.
+     *
+     * @return {@code true} if the queue was empty when the thread finished
+     */
+    boolean stop(long timeout, TimeUnit timeUnit) {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        try {
+            while (!queue.isEmpty() && sendThread.isAlive() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(Math.min(IDLE_POLL_MILLIS, timeUnit.toMillis(timeout)));
+            }
+            running = false;
+            sendThread.interrupt();
+            sendThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return queue.isEmpty();
+    }
+
+    private void send() {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                if (!queue.awaitEntries(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                SpillQueue.Batch batch = queue.peek(batchSize, maxBatchBytes);
+                try {
+                    if (!batch.entries().isEmpty()) {
+                        send(batch.entries());
+                    }
+                } catch (RuntimeException e) {
+                    if (backoffMillis == MIN_BACKOFF_MILLIS) {
+                        statusLogger.warn("Failed to write spilled log entries to Google Cloud Logging, "
+                                + "retrying until it succeeds", e);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                    backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                    continue;
+                }
+                if (backoffMillis != MIN_BACKOFF_MILLIS) {
+                    statusLogger.info("Resumed writing spilled log entries to Google Cloud Logging");
+                    backoffMillis = MIN_BACKOFF_MILLIS;
+                }
+                queue.ack(batch);
+                if (batch.skippedBytes() > 0) {
+                    statusLogger.error("Skipped {} bytes of spilled log entries after a record that failed its "
+                            + "checksum", batch.skippedBytes());
+                }
+                if (batch.corruptRecords() > 0) {
+                    statusLogger.error("Dropped {} spilled log entries that could not be decoded or failed their "
+                            + "checksum", batch.corruptRecords());
+                    for (int i = 0; i < batch.corruptRecords(); i++) {
+                        drops.increment(DropReason.SPILL_CORRUPT);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop() was called, the loop condition takes care of it
+            } catch (Exception e) {
+                statusLogger.error("Failed to read spilled log entries", e);
+            }
+        }
+    }
+
+    /**
+     * Sends entries, dropping those the API rejects. Throws the failures worth retrying, in which case the entries
+     * sent so far are sent again with the batch; their insert ids let the API discard the duplicates.
+     */
+    private void send(List<LogEntry> entries) {
+        try {
+            sink.accept(entries);
+        } catch (RuntimeException e) {
+            if (!ApiErrors.isRejected(e)) {
+                throw e;
+            }
+            if (entries.size() > 1 && ApiErrors.isEntryRejected(e)) {
+                int half = entries.size() / 2;
+                send(entries.subList(0, half));
+                send(entries.subList(half, entries.size()));
+                return;
+            }
+            statusLogger.error("Google Cloud Logging rejected {} spilled log entries, dropping them", entries.size(),
+                    e);
+            for (LogEntry entry : entries) {
+                drops.increment(DropReason.REJECTED, entry);
+            }
+        }
+    }
+}
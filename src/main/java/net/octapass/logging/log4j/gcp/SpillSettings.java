@@ -0,0 +1,25 @@
+package net.octapass.logging.log4j.gcp;
+
+import java.nio.file.Path;
+
+/**
+ * Settings of the on-disk spill queue of {@link GoogleCloudLoggingManager}.
+ *
+ * @param directory    directory holding the queue segments, owned by a single manager at a time
+ * @param maxBytes     maximum disk space used by the segments
+ * @param segmentBytes size of each memory-mapped segment file
+ */
+record SpillSettings(Path directory, long maxBytes, int segmentBytes) {
+
+    SpillSettings {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is required");
+        }
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1024: " + segmentBytes);
+        }
+        if (maxBytes < 2L * segmentBytes) {
+            throw new IllegalArgumentException("maxBytes must hold at least two segments: " + maxBytes);
+        }
+    }
+}
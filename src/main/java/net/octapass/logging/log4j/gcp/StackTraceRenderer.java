@@ -0,0 +1,163 @@
+package net.octapass.logging.log4j.gcp;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the throwable of a log event as text, with optional limits on the number of frames per throwable, the
+ * depth of the cause chain and the total length.
+ * <p>
+ * Rendering every {@link ExtendedStackTraceElement} is by far the most expensive part of an entry, and the same
+ * exception tends to be logged over and over. Rendered text is therefore kept in a small cache, keyed by a 64-bit
+ * fingerprint of the cause chain: class, message and frames of every throwable. A cache hit skips both the
+ * {@link ThrowableProxy} and the rendering, and takes no lock. A full cache evicts with a second chance: entries hit
+ * since the last sweep are spared once, which approximates LRU without ordering every read.
+ */
+final class StackTraceRenderer {
+
+    static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_FINGERPRINT_DEPTH = 64; // also guards against circular cause chains
+
+    private final int maxFrames;
+    private final int maxCauseDepth;
+    private final int maxLength;
+    private final int cacheSize;
+    private final ConcurrentHashMap<Long, Rendered> cache;
+
+    /**
+     * @param maxFrames     frames rendered per throwable, {@code 0} for no limit
+     * @param maxCauseDepth causes rendered below the logged throwable, {@code 0} for no limit
+     * @param maxLength     length after which rendering stops, {@code 0} for no limit
+     * @param cacheSize     number of rendered stack traces kept, {@code 0} to disable the cache
+     */
+    StackTraceRenderer(int maxFrames, int maxCauseDepth, int maxLength, int cacheSize) {
+        if (maxFrames < 0 || maxCauseDepth < 0 || maxLength < 0 || cacheSize < 0) {
+            throw new IllegalArgumentException("Stack trace limits must not be negative");
+        }
+        this.maxFrames = maxFrames == 0 ? Integer.MAX_VALUE : maxFrames;
+        this.maxCauseDepth = maxCauseDepth == 0 ? Integer.MAX_VALUE : maxCauseDepth;
+        this.maxLength = maxLength == 0 ? Integer.MAX_VALUE : maxLength;
+        this.cacheSize = cacheSize;
+        this.cache = cacheSize == 0 ? null : new ConcurrentHashMap<>(cacheSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Appends the rendered throwable of the event, if any.
+     */
+    void render(LogEvent event, StringBuilder payload) {
+        Throwable thrown = event.getThrown();
+        if (cache == null || thrown == null) {
+            writeStack(event.getThrownProxy(), payload);
+            return;
+        }
+        Long key = fingerprint(thrown, maxCauseDepth);
+        Rendered cached = cache.get(key);
+        if (cached != null) {
+            if (!cached.used) {
+                cached.used = true;
+            }
+            payload.append(cached.text);
+            return;
+        }
+        StringBuilder rendered = new StringBuilder(1024);
+        writeStack(event.getThrownProxy(), rendered);
+        String text = rendered.toString();
+        if (cache.putIfAbsent(key, new Rendered(text)) == null && cache.size() > cacheSize) {
+            evict();
+        }
+        payload.append(text);
+    }
+
+    /**
+     * Removes entries not hit since the last sweep until the cache is back to its size, clearing the mark of those
+     * that were. Concurrent sweeps may evict a few entries too many, which only costs a rendering.
+     */
+    private void evict() {
+        Iterator<Rendered> entries = cache.values().iterator();
+        while (entries.hasNext() && cache.size() > cacheSize) {
+            Rendered entry = entries.next();
+            if (entry.used) {
+                entry.used = false;
+            } else {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the class, message and frames of the throwable and its causes, down to the given
+     * depth.
+     */
+    static long fingerprint(Throwable thrown, int maxCauseDepth) {
+        long hash = FNV_OFFSET_BASIS;
+        int depth = 0;
+        int maxDepth = Math.min(maxCauseDepth, MAX_FINGERPRINT_DEPTH);
+        for (Throwable t = thrown; t != null && depth <= maxDepth; t = t.getCause(), depth++) {
+            hash = mix(hash, t.getClass().getName().hashCode());
+            hash = mix(hash, String.valueOf(t.getMessage()).hashCode());
+            StackTraceElement[] frames = t.getStackTrace();
+            hash = mix(hash, frames.length);
+            for (StackTraceElement frame : frames) {
+                hash = mix(hash, frame.hashCode());
+            }
+        }
+        return hash;
+    }
+
+    static long mix(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private void writeStack(ThrowableProxy throwProxy, StringBuilder payload) {
+        long limit = (long) payload.length() + maxLength;
+        String prefix = "";
+        for (int depth = 0; throwProxy != null; depth++) {
+            if (depth > maxCauseDepth) {
+                payload.append("    ... more causes truncated\n");
+                return;
+            }
+            payload
+                    .append(prefix)
+                    .append(throwProxy.getName())
+                    .append(": ")
+                    .append(throwProxy.getMessage())
+                    .append('\n');
+            ExtendedStackTraceElement[] trace = throwProxy.getExtendedStackTrace();
+            int commonFrames = throwProxy.getCommonElementCount();
+            int printFrames = trace == null ? 0 : trace.length - commonFrames;
+            int frames = Math.min(printFrames, maxFrames);
+            for (int i = 0; i < frames; i++) {
+                if (payload.length() >= limit) {
+                    return;
+                }
+                payload.append("    ").append(trace[i]).append('\n');
+            }
+            if (frames < printFrames) {
+                payload.append("    ... ").append(printFrames - frames).append(" more frames truncated\n");
+            }
+            if (commonFrames != 0) {
+                payload.append("    ... ").append(commonFrames).append(" common frames elided\n");
+            }
+            throwProxy = throwProxy.getCauseProxy();
+            prefix = "caused by: ";
+        }
+    }
+
+    /**
+     * Rendered text and whether it was hit since the last eviction sweep; the mark is racy by design, a lost update
+     * only changes which entry is evicted.
+     */
+    private static final class Rendered {
+        private final String text;
+        private boolean used;
+
+        Rendered(String text) {
+            this.text = text;
+        }
+    }
+}
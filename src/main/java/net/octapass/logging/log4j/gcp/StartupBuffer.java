@@ -0,0 +1,99 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.MonitoredResource;
+import com.google.cloud.logging.LogEntry;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the entries an appender receives before its resource is detected and its manager is created, and hands
+ * them to the manager, with the resource filled in, once it is there. Holds at most {@code capacity} entries and
+ * counts the ones it discards.
+ */
+final class StartupBuffer {
+
+    private static final long DEFAULT_TIMEOUT = 7000;
+
+    private final int capacity;
+    private final Logger statusLogger;
+    private final List<LogEntry> held = new ArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private GoogleCloudLoggingManager manager; // guarded by this, like the fields below
+    private boolean closed;
+    private long dropped;
+
+    StartupBuffer(int capacity, Logger statusLogger) {
+        this.capacity = capacity;
+        this.statusLogger = statusLogger;
+    }
+
+    /**
+     * Holds an entry until the manager is started, or returns the manager if it is.
+     */
+    synchronized GoogleCloudLoggingManager hold(LogEntry entry) {
+        if (manager != null) {
+            return manager;
+        }
+        if (!closed && held.size() < capacity) {
+            held.add(entry);
+        } else {
+            dropped++;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the held entries to the manager, backfilling the resource, and from then on returns the manager to
+     * callers of {@link #hold}. Returns {@code false} if the buffer was closed before.
+     */
+    synchronized boolean start(GoogleCloudLoggingManager manager, MonitoredResource resource) {
+        if (closed) {
+            return false;
+        }
+        for (LogEntry entry : held) {
+            manager.writeLogEntry(entry.toBuilder().setResource(resource).build());
+        }
+        if (!held.isEmpty()) {
+            statusLogger.debug("Wrote {} log entries held until the resource was detected", held.size());
+        }
+        held.clear();
+        this.manager = manager;
+        reportDropped();
+        started.countDown();
+        return true;
+    }
+
+    /**
+     * Waits for the manager to be started; if it is not in time, discards the held entries and refuses a late
+     * start. Returns whether the manager was started.
+     *
+     * @param timeout how long to wait, {@code 0} for a default of seven seconds
+     */
+    boolean stop(long timeout, TimeUnit timeUnit) {
+        try {
+            started.await(timeout > 0 ? timeUnit.toMillis(timeout) : DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (manager == null && !closed) {
+                closed = true;
+                dropped += held.size();
+                held.clear();
+                reportDropped();
+            }
+            return manager != null;
+        }
+    }
+
+    private void reportDropped() {
+        if (dropped > 0) {
+            statusLogger.warn("Discarded {} log entries logged before the resource was detected", dropped);
+            dropped = 0;
+        }
+    }
+}
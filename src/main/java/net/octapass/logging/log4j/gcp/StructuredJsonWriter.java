@@ -0,0 +1,429 @@
+package net.octapass.logging.log4j.gcp;
+
+import com.google.cloud.logging.LogEntry;
+import com.google.cloud.logging.Payload;
+import com.google.cloud.logging.Severity;
+import com.google.cloud.logging.SourceLocation;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes log entries in the Cloud Logging
+ * <a href="https://cloud.google.com/logging/docs/structured-logging">structured logging</a> format, one JSON object
+ * per line. The output has the same fields, in the same order and with the same escaping, as
+ * {@link LogEntry#toStructuredJsonString()}, but it is encoded as UTF-8 straight into a reusable byte buffer and
+ * written to the channel in as few system calls as possible.
+ * <p>
+ * Entries carrying an {@code httpRequest} or {@code operation}, which this appender never sets itself, are rendered
+ * by {@link LogEntry#toStructuredJsonString()}.
+ */
+final class StructuredJsonWriter {
+
+    private static final WritableByteChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+    private static final long MIN_FORMATTED_SECOND = -62167219200L; // 0000-01-01T00:00:00Z
+    private static final long MAX_FORMATTED_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+
+    private static final byte[] SEVERITY = fieldName("severity");
+    private static final byte[] TIME = fieldName("time");
+    private static final byte[] INSERT_ID = fieldName("logging.googleapis.com/insertId");
+    private static final byte[] LABELS = fieldName("logging.googleapis.com/labels");
+    private static final byte[] SOURCE_LOCATION = fieldName("logging.googleapis.com/sourceLocation");
+    private static final byte[] SPAN_ID = fieldName("logging.googleapis.com/spanId");
+    private static final byte[] TRACE = fieldName("logging.googleapis.com/trace");
+    private static final byte[] TRACE_SAMPLED = fieldName("logging.googleapis.com/trace_sampled");
+    private static final byte[] MESSAGE = fieldName("message");
+    private static final byte[] FILE = fieldName("file");
+    private static final byte[] LINE = fieldName("line");
+    private static final byte[] FUNCTION = fieldName("function");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[][] SEVERITY_NAMES = new byte[Severity.values().length][];
+    private static final byte[] HEX = ascii("0123456789abcdef");
+    private static final char UNICODE_ESCAPE = 'u';
+    private static final char[] ESCAPES = new char[128];
+
+    static {
+        for (Severity severity : Severity.values()) {
+            SEVERITY_NAMES[severity.ordinal()] = ascii('"' + severity.name() + '"');
+        }
+        // same escaping as Gson's default, HTML-safe JsonWriter
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = UNICODE_ESCAPE;
+        }
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        for (char c : new char[] {'<', '>', '&', '=', '\''}) {
+            ESCAPES[c] = UNICODE_ESCAPE;
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private byte[] buffer = new byte[FLUSH_THRESHOLD];
+    private int length;
+
+    StructuredJsonWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Returns a writer for the standard output file descriptor, bypassing {@link System#out}.
+     */
+    static StructuredJsonWriter stdout() {
+        return new StructuredJsonWriter(STDOUT);
+    }
+
+    synchronized void write(LogEntry entry) throws IOException {
+        try {
+            encode(entry);
+            flush();
+        } finally {
+            length = 0;
+        }
+    }
+
+    synchronized void write(List<LogEntry> entries) throws IOException {
+        try {
+            for (LogEntry entry : entries) {
+                encode(entry);
+                if (length >= FLUSH_THRESHOLD) {
+                    flush();
+                }
+            }
+            flush();
+        } finally {
+            length = 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        length = 0;
+        if (buffer.length > MAX_RETAINED_BYTES) {
+            buffer = new byte[FLUSH_THRESHOLD];
+        }
+    }
+
+    private void encode(LogEntry entry) {
+        Payload<?> payload = entry.getPayload();
+        if (entry.getHttpRequest() != null || entry.getOperation() != null
+                || payload.getType() == Payload.Type.PROTO || entry.getSeverity() == Severity.NONE) {
+            writeRaw(entry.toStructuredJsonString()); // throws for the payloads and severities it does not support
+            writeByte('\n');
+            return;
+        }
+        writeByte('{');
+        if (entry.getSeverity() != null) {
+            writeBytes(SEVERITY);
+            writeBytes(SEVERITY_NAMES[entry.getSeverity().ordinal()]);
+            writeByte(',');
+        }
+        Instant time = entry.getInstantTimestamp();
+        if (time != null) {
+            writeBytes(TIME);
+            writeTimestamp(time);
+            writeByte(',');
+        }
+        writeStringField(INSERT_ID, entry.getInsertId());
+        writeBytes(LABELS);
+        writeLabels(entry.getLabels());
+        writeByte(',');
+        SourceLocation sourceLocation = entry.getSourceLocation();
+        if (sourceLocation != null) {
+            writeBytes(SOURCE_LOCATION);
+            writeSourceLocation(sourceLocation);
+            writeByte(',');
+        }
+        writeStringField(SPAN_ID, entry.getSpanId());
+        writeStringField(TRACE, entry.getTrace());
+        writeBytes(TRACE_SAMPLED);
+        writeBytes(entry.getTraceSampled() ? TRUE : FALSE);
+        writeByte(',');
+        if (payload.getType() == Payload.Type.STRING) {
+            String message = ((Payload.StringPayload) payload).getData();
+            if (message != null) {
+                writeBytes(MESSAGE);
+                writeString(message);
+            }
+        } else {
+            writeFields(((Payload.JsonPayload) payload).getData());
+        }
+        writeByte('}');
+        writeByte('\n');
+    }
+
+    private void writeStringField(byte[] name, String value) {
+        if (value != null) {
+            writeBytes(name);
+            writeString(value);
+            writeByte(',');
+        }
+    }
+
+    private void writeLabels(Map<String, String> labels) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(label.getKey());
+            writeByte(':');
+            writeString(label.getValue());
+        }
+        writeByte('}');
+    }
+
+    private void writeSourceLocation(SourceLocation sourceLocation) {
+        writeByte('{');
+        boolean comma = false;
+        if (sourceLocation.getFile() != null) {
+            writeBytes(FILE);
+            writeString(sourceLocation.getFile());
+            comma = true;
+        }
+        if (sourceLocation.getLine() != null) {
+            if (comma) {
+                writeByte(',');
+            }
+            writeBytes(LINE);
+            writeByte('"');
+            writeLong(sourceLocation.getLine());
+            writeByte('"');
+            comma = true;
+        }
+        if (sourceLocation.getFunction() != null) {
+            if (comma) {
+                writeByte(',');
+            }
+            writeBytes(FUNCTION);
+            writeString(sourceLocation.getFunction());
+        }
+        writeByte('}');
+    }
+
+    /**
+     * Writes the fields of a struct without the surrounding braces. Like Gson, fields holding {@code null} are left
+     * out.
+     */
+    private void writeFields(Struct struct) {
+        boolean first = true;
+        for (Map.Entry<String, Value> field : struct.getFieldsMap().entrySet()) {
+            if (field.getValue().getKindCase() == Value.KindCase.NULL_VALUE) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(field.getKey());
+            writeByte(':');
+            writeValue(field.getValue());
+        }
+    }
+
+    private void writeValue(Value value) {
+        switch (value.getKindCase()) {
+            case STRING_VALUE -> writeString(value.getStringValue());
+            case NUMBER_VALUE -> writeRaw(Double.toString(value.getNumberValue()));
+            case BOOL_VALUE -> writeBytes(value.getBoolValue() ? TRUE : FALSE);
+            case STRUCT_VALUE -> {
+                writeByte('{');
+                writeFields(value.getStructValue());
+                writeByte('}');
+            }
+            case LIST_VALUE -> {
+                ListValue list = value.getListValue();
+                writeByte('[');
+                for (int i = 0; i < list.getValuesCount(); i++) {
+                    if (i > 0) {
+                        writeByte(',');
+                    }
+                    writeValue(list.getValues(i));
+                }
+                writeByte(']');
+            }
+            default -> writeBytes(NULL);
+        }
+    }
+
+    /**
+     * Writes the timestamp the way {@link Instant#toString()} does.
+     */
+    private void writeTimestamp(Instant time) {
+        long epochSecond = time.getEpochSecond();
+        if (epochSecond < MIN_FORMATTED_SECOND || epochSecond > MAX_FORMATTED_SECOND) {
+            writeString(time.toString());
+            return;
+        }
+        long days = Math.floorDiv(epochSecond, 86400);
+        int secondOfDay = Math.floorMod(epochSecond, 86400);
+        // civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeByte('"');
+        writeDigits(year, 4);
+        writeByte('-');
+        writeDigits(month, 2);
+        writeByte('-');
+        writeDigits(day, 2);
+        writeByte('T');
+        writeDigits(secondOfDay / 3600, 2);
+        writeByte(':');
+        writeDigits(secondOfDay / 60 % 60, 2);
+        writeByte(':');
+        writeDigits(secondOfDay % 60, 2);
+        int nanos = time.getNano();
+        if (nanos != 0) {
+            writeByte('.');
+            if (nanos % 1_000_000 == 0) {
+                writeDigits(nanos / 1_000_000, 3);
+            } else if (nanos % 1000 == 0) {
+                writeDigits(nanos / 1000, 6);
+            } else {
+                writeDigits(nanos, 9);
+            }
+        }
+        writeByte('Z');
+        writeByte('"');
+    }
+
+    private void writeDigits(int value, int digits) {
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            writeRaw(Long.toString(value));
+            return;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeString(String value) {
+        int n = value.length();
+        ensureCapacity(n * 6 + 2);
+        byte[] out = buffer;
+        int pos = length;
+        out[pos++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                char escape = ESCAPES[c];
+                if (escape == 0) {
+                    out[pos++] = (byte) c;
+                } else if (escape == UNICODE_ESCAPE) {
+                    pos = writeUnicodeEscape(out, pos, c);
+                } else {
+                    out[pos++] = '\\';
+                    out[pos++] = (byte) escape;
+                }
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | c >> 6);
+                out[pos++] = (byte) (0x80 | c & 0x3f);
+            } else if (c == '\u2028' || c == '\u2029') {
+                pos = writeUnicodeEscape(out, pos, c);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out[pos++] = (byte) (0xf0 | codePoint >> 18);
+                    out[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    out[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    out[pos++] = (byte) (0x80 | codePoint & 0x3f);
+                } else {
+                    out[pos++] = '?'; // unpaired surrogate, as replaced by the UTF-8 encoder
+                }
+            } else {
+                out[pos++] = (byte) (0xe0 | c >> 12);
+                out[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[pos++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        out[pos++] = '"';
+        length = pos;
+    }
+
+    private static int writeUnicodeEscape(byte[] out, int pos, char c) {
+        out[pos++] = '\\';
+        out[pos++] = 'u';
+        out[pos++] = HEX[c >> 12 & 0xf];
+        out[pos++] = HEX[c >> 8 & 0xf];
+        out[pos++] = HEX[c >> 4 & 0xf];
+        out[pos++] = HEX[c & 0xf];
+        return pos;
+    }
+
+    private void writeRaw(String ascii) {
+        writeBytes(ascii.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] fieldName(String name) {
+        return ascii('"' + name + "\":");
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -3,12 +3,68 @@ package net.octapass.logging.log4j.gcp;
 import com.google.cloud.logging.LogEntry;
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
 
-/** Adds support for grouping logs by incoming http request.*/
+/**
+ * Adds support for grouping logs by incoming http request. Declared in the appender as {@code <TraceContext/>}.
+ * <p>
+ * Sets the trace, span ID and sampled flag of an entry from the first of these context data keys found:
+ * <ul>
+ *     <li>{@code logging.googleapis.trace}, a trace in the form {@code projects/[PROJECT_ID]/traces/[TRACE_ID]},
+ *     set as is;</li>
+ *     <li>{@code trace_id}, {@code span_id} and {@code trace_flags}, as put by OpenTelemetry instrumentation;</li>
+ *     <li>{@code traceparent}, a W3C Trace Context header, ignored unless lowercase and of a version other than
+ *     {@code ff}, as the specification requires;</li>
+ *     <li>{@code X-Cloud-Trace-Context}, the header of the Google Cloud load balancers, whose decimal span ID is
+ *     converted to hexadecimal.</li>
+ * </ul>
+ * Trace and span IDs of the other sources may use either case, and are lowercased.
+ * A request handler only has to put the header it received in the {@link ThreadContext}. The trace ID is prefixed
+ * with {@code projects/[PROJECT_ID]/traces/}, built once from the {@code projectId} attribute or else from the
+ * project of the appender, once known; entries logged before are given the bare trace ID. Headers are parsed in
+ * place, and the result is kept per thread for as long as the context data holds the same values, so the events of
+ * a request after its first allocate nothing.
+ */
+@Plugin(name = "TraceContext", category = Node.CATEGORY, printObject = true)
 public class TraceLoggingEventEnhancer implements LoggingEventEnhancer {
 
     // A key used by Cloud Logging for trace Id
     private static final String TRACE_ID = "logging.googleapis.trace";
+    private static final String OTEL_TRACE_ID = "trace_id";
+    private static final String OTEL_SPAN_ID = "span_id";
+    private static final String OTEL_TRACE_FLAGS = "trace_flags";
+    private static final String TRACEPARENT = "traceparent";
+    private static final String CLOUD_TRACE_CONTEXT = "X-Cloud-Trace-Context";
+    private static final int TRACE_ID_LENGTH = 32;
+    private static final int SPAN_ID_LENGTH = 16;
+    private static final int TRACEPARENT_LENGTH = 55;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final boolean isProjectConfigured;
+    private final ThreadLocal<Correlation> correlations = ThreadLocal.withInitial(Correlation::new);
+    private volatile String tracePrefix;
+
+    public TraceLoggingEventEnhancer() {
+        this(null);
+    }
+
+    /**
+     * @param projectId project of the traces, or {@code null} for the project of the appender
+     */
+    TraceLoggingEventEnhancer(String projectId) {
+        this.isProjectConfigured = projectId != null && !projectId.isBlank();
+        this.tracePrefix = isProjectConfigured ? tracePrefix(projectId.trim()) : null;
+    }
+
+    @PluginFactory
+    public static TraceLoggingEventEnhancer createTraceContext(@PluginAttribute("projectId") final String projectId) {
+        return new TraceLoggingEventEnhancer(projectId);
+    }
 
     /**
      * Set the Trace ID associated with any logging done by the current thread.
@@ -33,15 +89,259 @@ public class TraceLoggingEventEnhancer implements LoggingEventEnhancer {
         return ThreadContext.get(TRACE_ID);
     }
 
+    /**
+     * Prefixes trace IDs with the given project from now on, unless one was configured.
+     */
+    void useProjectId(String projectId) {
+        if (!isProjectConfigured && projectId != null && !projectId.isBlank()) {
+            tracePrefix = tracePrefix(projectId);
+        }
+    }
+
+    private static String tracePrefix(String projectId) {
+        return "projects/" + projectId + "/traces/";
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void enhanceLogEntry(LogEntry.Builder builder, LogEvent e) {
-        Object value = e.getContextData().getValue(TRACE_ID);
-        String traceId = value != null ? value.toString() : null;
-        if (traceId != null) {
-            builder.setTrace(traceId);
+        ReadOnlyStringMap contextData = e.getContextData();
+        Object value = contextData.getValue(TRACE_ID);
+        if (value != null) {
+            builder.setTrace(value.toString());
+            return;
+        }
+        Correlation correlation = Constants.ENABLE_THREADLOCALS ? correlations.get() : new Correlation();
+        if (correlation.update(contextData, tracePrefix)) {
+            builder.setTrace(correlation.trace);
+            if (correlation.spanId != null) {
+                builder.setSpanId(correlation.spanId);
+            }
+            if (correlation.sampled != null) {
+                builder.setTraceSampled(correlation.sampled);
+            }
+        }
+    }
+
+    /**
+     * The trace, span ID and sampled flag last parsed by a thread, and the context data values and prefix they were
+     * parsed from, compared by identity.
+     */
+    private static final class Correlation {
+        private Object first;
+        private Object second;
+        private Object third;
+        private String prefix;
+        private String trace;
+        private String spanId;
+        private Boolean sampled;
+
+        /**
+         * Parses the first source found in the context data, unless it is the one parsed last. Returns whether it
+         * holds a valid trace ID.
+         */
+        boolean update(ReadOnlyStringMap contextData, String tracePrefix) {
+            Object traceId = contextData.getValue(OTEL_TRACE_ID);
+            if (traceId != null) {
+                Object spanId = contextData.getValue(OTEL_SPAN_ID);
+                Object flags = contextData.getValue(OTEL_TRACE_FLAGS);
+                if (!isParsed(traceId, spanId, flags, tracePrefix)) {
+                    parseOpenTelemetry(text(traceId), spanId != null ? text(spanId) : null,
+                            flags != null ? text(flags) : null);
+                }
+                return trace != null;
+            }
+            Object header = contextData.getValue(TRACEPARENT);
+            if (header != null) {
+                if (!isParsed(header, TRACEPARENT, null, tracePrefix)) {
+                    parseTraceparent(text(header));
+                }
+                return trace != null;
+            }
+            header = contextData.getValue(CLOUD_TRACE_CONTEXT);
+            if (header != null) {
+                if (!isParsed(header, CLOUD_TRACE_CONTEXT, null, tracePrefix)) {
+                    parseCloudTraceContext(text(header));
+                }
+                return trace != null;
+            }
+            return false;
+        }
+
+        private boolean isParsed(Object first, Object second, Object third, String tracePrefix) {
+            if (first == this.first && second == this.second && third == this.third && tracePrefix == prefix) {
+                return true;
+            }
+            this.first = first;
+            this.second = second;
+            this.third = third;
+            this.prefix = tracePrefix;
+            this.trace = null;
+            this.spanId = null;
+            this.sampled = null;
+            return false;
+        }
+
+        private void parseOpenTelemetry(CharSequence traceId, CharSequence spanId, CharSequence flags) {
+            if (traceId.length() != TRACE_ID_LENGTH || !isHexId(traceId, 0, TRACE_ID_LENGTH, false)) {
+                return;
+            }
+            trace = trace(traceId, 0);
+            if (spanId != null && spanId.length() == SPAN_ID_LENGTH && isHexId(spanId, 0, SPAN_ID_LENGTH, false)) {
+                this.spanId = lowerCase(spanId);
+            }
+            if (flags != null && flags.length() == 2 && isHex(flags, 0, 2, false)) {
+                sampled = (hexValue(flags.charAt(1), false) & 1) != 0;
+            }
+        }
+
+        /**
+         * Parses {@code version-traceid-spanid-flags}, all lowercase hexadecimal; versions after {@code 00} may
+         * append fields, and version {@code ff} is invalid.
+         */
+        private void parseTraceparent(CharSequence header) {
+            int length = header.length();
+            if (length < TRACEPARENT_LENGTH || !isHex(header, 0, 2, true) || header.charAt(0) == 'f'
+                    && header.charAt(1) == 'f' || header.charAt(2) != '-' || header.charAt(35) != '-'
+                    || header.charAt(52) != '-' || !isHex(header, 53, 55, true)) {
+                return;
+            }
+            boolean isVersionZero = header.charAt(0) == '0' && header.charAt(1) == '0';
+            if (length > TRACEPARENT_LENGTH && (isVersionZero || header.charAt(TRACEPARENT_LENGTH) != '-')) {
+                return;
+            }
+            if (!isHexId(header, 3, 35, true) || !isHexId(header, 36, 52, true)) {
+                return;
+            }
+            trace = trace(header, 3);
+            spanId = header.subSequence(36, 52).toString();
+            sampled = (hexValue(header.charAt(54), true) & 1) != 0;
+        }
+
+        /**
+         * Parses {@code TRACE_ID[/SPAN_ID][;o=OPTIONS]}, with a decimal span ID.
+         */
+        private void parseCloudTraceContext(CharSequence header) {
+            int length = header.length();
+            if (length < TRACE_ID_LENGTH || !isHexId(header, 0, TRACE_ID_LENGTH, false)) {
+                return;
+            }
+            int index = TRACE_ID_LENGTH;
+            long span = 0;
+            if (index < length && header.charAt(index) == '/') {
+                int start = ++index;
+                while (index < length && header.charAt(index) >= '0' && header.charAt(index) <= '9') {
+                    index++;
+                }
+                if (index == start) {
+                    return;
+                }
+                try {
+                    span = Long.parseUnsignedLong(header, start, index, 10);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+            }
+            Boolean options = null;
+            if (index < length) {
+                if (length - index < 4 || header.charAt(index) != ';' || header.charAt(index + 1) != 'o'
+                        || header.charAt(index + 2) != '=') {
+                    return;
+                }
+                char option = header.charAt(index + 3);
+                if (option < '0' || option > '9') {
+                    return;
+                }
+                options = ((option - '0') & 1) != 0;
+            }
+            trace = trace(header, 0);
+            spanId = span != 0 ? hex(span) : null;
+            sampled = options;
+        }
+
+        /**
+         * Returns the prefixed trace ID at the given index, lowercased.
+         */
+        private String trace(CharSequence text, int start) {
+            StringBuilder trace = new StringBuilder((prefix != null ? prefix.length() : 0) + TRACE_ID_LENGTH);
+            if (prefix != null) {
+                trace.append(prefix);
+            }
+            return appendLowerCase(trace, text, start, start + TRACE_ID_LENGTH).toString();
+        }
+    }
+
+    private static CharSequence text(Object value) {
+        return value instanceof CharSequence text ? text : value.toString();
+    }
+
+    private static String lowerCase(CharSequence hex) {
+        return appendLowerCase(new StringBuilder(hex.length()), hex, 0, hex.length()).toString();
+    }
+
+    /**
+     * Appends a range of hexadecimal digits with {@code A} to {@code F} lowercased.
+     */
+    private static StringBuilder appendLowerCase(StringBuilder target, CharSequence hex, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = hex.charAt(i);
+            target.append(c >= 'A' && c <= 'F' ? (char) (c - 'A' + 'a') : c);
+        }
+        return target;
+    }
+
+    /**
+     * Returns whether the range is hexadecimal and, as the W3C Trace Context requires of IDs, not all zeros.
+     */
+    private static boolean isHexId(CharSequence text, int start, int end, boolean lowercaseOnly) {
+        boolean isZero = true;
+        for (int i = start; i < end; i++) {
+            int value = hexValue(text.charAt(i), lowercaseOnly);
+            if (value < 0) {
+                return false;
+            }
+            isZero &= value == 0;
+        }
+        return !isZero;
+    }
+
+    private static boolean isHex(CharSequence text, int start, int end, boolean lowercaseOnly) {
+        for (int i = start; i < end; i++) {
+            if (hexValue(text.charAt(i), lowercaseOnly) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a hexadecimal digit, or {@code -1} if it is not one, or is uppercase when only lowercase
+     * is allowed.
+     */
+    private static int hexValue(char c, boolean lowercaseOnly) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (!lowercaseOnly && c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Formats a span ID as 16 hexadecimal digits, as Cloud Logging expects.
+     */
+    private static String hex(long value) {
+        char[] digits = new char[SPAN_ID_LENGTH];
+        for (int i = SPAN_ID_LENGTH - 1; i >= 0; i--) {
+            digits[i] = HEX_DIGITS[(int) value & 0xf];
+            value >>>= 4;
         }
+        return new String(digits);
     }
 }
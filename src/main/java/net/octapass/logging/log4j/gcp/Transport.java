@@ -0,0 +1,14 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * How {@link GoogleCloudLoggingManager} hands log entries to Cloud Logging.
+ */
+public enum Transport {
+    /** Through {@code Logging.write}, which converts and completes every entry itself. */
+    CLIENT,
+    /**
+     * Straight to the {@code WriteLogEntries} RPC: every entry is converted to protobuf once, and the log name,
+     * resource and labels shared by a batch are sent once per request.
+     */
+    DIRECT
+}
@@ -0,0 +1,34 @@
+package net.octapass.logging.log4j.gcp;
+
+/**
+ * Settings of how {@link GoogleCloudLoggingManager} sends entries to Cloud Logging.
+ *
+ * @param transport         how entries are handed to Cloud Logging
+ * @param maxInFlightWrites batches the drain thread keeps in flight at once; more than one needs
+ *                          {@link Transport#DIRECT}
+ * @param orderedWrites     whether the batches of each log name are written one after the other, so that they
+ *                          arrive in the order they were appended
+ * @param maxFlushLatencyMillis longest time an entry written over {@link Transport#DIRECT} without a buffer waits
+ *                          for other entries to share its write
+ */
+record TransportSettings(Transport transport, int maxInFlightWrites, boolean orderedWrites,
+                         long maxFlushLatencyMillis) {
+
+    static final TransportSettings DEFAULT = new TransportSettings(Transport.CLIENT, 1, false, 1000);
+
+    TransportSettings {
+        if (maxInFlightWrites < 1) {
+            throw new IllegalArgumentException("maxInFlightWrites must be positive: " + maxInFlightWrites);
+        }
+        if (maxFlushLatencyMillis < 0) {
+            throw new IllegalArgumentException("maxFlushLatencyMillis must not be negative: " + maxFlushLatencyMillis);
+        }
+        if (transport == null) {
+            transport = Transport.CLIENT;
+        }
+    }
+
+    boolean concurrent() {
+        return transport == Transport.DIRECT && maxInFlightWrites > 1;
+    }
+}